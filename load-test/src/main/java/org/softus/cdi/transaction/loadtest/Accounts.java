@@ -0,0 +1,131 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.loadtest;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import javax.inject.Inject;
+
+import javax.transaction.Status;
+
+import org.softus.cdi.transaction.TransactionSupport;
+import org.softus.cdi.transaction.Transactional;
+
+/**
+ * <p>
+ * Updates and reads the balances of the accounts.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+@ApplicationScoped
+@Transactional
+@TransactionAttribute(TransactionAttributeType.MANDATORY)
+public class Accounts
+{
+    @Inject
+    private UnitOfWork unitOfWork;
+
+    @Inject
+    private Database database;
+
+    @Inject
+    private TransactionSupport transactionSupport;
+
+    /**
+     * Creates a new bean.
+     */
+    public Accounts()
+    {
+
+    }
+
+    /**
+     * Adds an amount to the balance of an account.
+     *
+     * @param account the account.
+     * @param amount the amount.
+     * @throws Exception thrown if the balance cannot be updated.
+     */
+    public void add(
+        int account,
+        long amount)
+    throws Exception
+    {
+        PreparedStatement statement = unitOfWork.getConnection()
+            .prepareStatement(
+                "update account set balance = balance + ? where id = ?");
+        try
+        {
+            statement.setLong(1, amount);
+            statement.setInt(2, account);
+            statement.executeUpdate();
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+
+    /**
+     * Returns the balance of an account, within the current transaction if
+     * there is one.
+     *
+     * @param account the account.
+     * @return the balance.
+     * @throws Exception thrown if the balance cannot be read.
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public long getBalance(
+        int account)
+    throws Exception
+    {
+        boolean active = transactionSupport.getStatus()
+            == Status.STATUS_ACTIVE;
+        Connection connection = active ? unitOfWork.getConnection()
+            : database.getConnection();
+        try
+        {
+            PreparedStatement statement = connection
+                .prepareStatement("select balance from account where id = ?");
+            try
+            {
+                statement.setInt(1, account);
+                ResultSet rs = statement.executeQuery();
+                rs.next();
+                return rs.getLong(1);
+            }
+            finally
+            {
+                statement.close();
+            }
+        }
+        finally
+        {
+            if (!active)
+            {
+                connection.close();
+            }
+        }
+    }
+}
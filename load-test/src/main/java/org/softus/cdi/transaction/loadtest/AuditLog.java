@@ -0,0 +1,78 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.loadtest;
+
+import java.sql.PreparedStatement;
+
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import javax.inject.Inject;
+
+import org.softus.cdi.transaction.Transactional;
+
+/**
+ * <p>
+ * Records the transfers in a separate transaction.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+@ApplicationScoped
+@Transactional
+@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+public class AuditLog
+{
+    @Inject
+    private UnitOfWork unitOfWork;
+
+    /**
+     * Creates a new bean.
+     */
+    public AuditLog()
+    {
+
+    }
+
+    /**
+     * Records a transfer.
+     *
+     * @param account the account.
+     * @param amount the amount.
+     * @throws Exception thrown if the transfer cannot be recorded.
+     */
+    public void record(
+        int account,
+        long amount)
+    throws Exception
+    {
+        PreparedStatement statement = unitOfWork.getConnection()
+            .prepareStatement(
+                "insert into audit (account, amount) values (?, ?)");
+        try
+        {
+            statement.setInt(1, account);
+            statement.setLong(2, amount);
+            statement.executeUpdate();
+        }
+        finally
+        {
+            statement.close();
+        }
+    }
+}
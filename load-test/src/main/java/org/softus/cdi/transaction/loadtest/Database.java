@@ -0,0 +1,125 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.loadtest;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.annotation.PostConstruct;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import javax.sql.XAConnection;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+/**
+ * <p>
+ * In-memory H2 database with a table of accounts and an audit table.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+@ApplicationScoped
+public class Database
+{
+    /**
+     * The number of accounts.
+     */
+    public static final int ACCOUNTS = 10000;
+
+    /**
+     * The initial balance of an account.
+     */
+    public static final long INITIAL_BALANCE = 1000000;
+
+    private JdbcDataSource dataSource;
+
+    /**
+     * Creates a new database.
+     */
+    public Database()
+    {
+
+    }
+
+    /**
+     * Creates the schema and the accounts.
+     *
+     * @throws SQLException thrown if the database cannot be created.
+     */
+    @PostConstruct
+    void setup()
+    throws SQLException
+    {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:loadtest;DB_CLOSE_DELAY=-1;MVCC=TRUE;"
+            + "LOCK_TIMEOUT=10000");
+
+        Connection connection = dataSource.getConnection();
+        try
+        {
+            Statement statement = connection.createStatement();
+            statement.execute("create table account (id int primary key, "
+                + "balance bigint not null)");
+            statement.execute("create table audit (id identity, "
+                + "account int not null, amount bigint not null)");
+            statement.close();
+
+            PreparedStatement insert = connection
+                .prepareStatement("insert into account values (?, ?)");
+            for (int i = 0; i < ACCOUNTS; i++)
+            {
+                insert.setInt(1, i);
+                insert.setLong(2, INITIAL_BALANCE);
+                insert.addBatch();
+            }
+
+            insert.executeBatch();
+            insert.close();
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    /**
+     * Opens a new connection that is not enlisted in transactions.
+     *
+     * @return the connection.
+     * @throws SQLException thrown if the connection cannot be opened.
+     */
+    public Connection getConnection()
+    throws SQLException
+    {
+        return dataSource.getConnection();
+    }
+
+    /**
+     * Opens a new XA connection.
+     *
+     * @return the connection.
+     * @throws SQLException thrown if the connection cannot be opened.
+     */
+    public XAConnection getXAConnection()
+    throws SQLException
+    {
+        return dataSource.getXAConnection();
+    }
+}
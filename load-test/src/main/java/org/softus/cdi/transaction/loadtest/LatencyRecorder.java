@@ -0,0 +1,164 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.loadtest;
+
+/**
+ * <p>
+ * Histogram of latencies with a relative error of about 3%. Each power of two
+ * is divided into 32 buckets. Recording does not allocate memory, so it does
+ * not distort the allocation measured per operation. Not thread-safe, every
+ * worker thread has its own recorder and the recorders are merged after the
+ * run.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+class LatencyRecorder
+{
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] counts;
+
+    private long count;
+
+    private long max;
+
+    /**
+     * Creates a new recorder.
+     */
+    LatencyRecorder()
+    {
+        counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds.
+     */
+    void record(
+        long nanos)
+    {
+        long value = Math.max(nanos, 0);
+        counts[indexOf(value)]++;
+        count++;
+        if (value > max)
+        {
+            max = value;
+        }
+    }
+
+    /**
+     * Adds the latencies recorded by another recorder.
+     *
+     * @param other the other recorder.
+     */
+    void add(
+        LatencyRecorder other)
+    {
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] += other.counts[i];
+        }
+
+        count += other.count;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     *
+     * @return the number of latencies.
+     */
+    long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the maximum latency.
+     *
+     * @return the maximum latency in nanoseconds.
+     */
+    long getMax()
+    {
+        return max;
+    }
+
+    /**
+     * Returns a percentile of the latencies.
+     *
+     * @param percentile the percentile, between 0 and 100.
+     * @return the upper bound of the bucket containing the percentile in
+     *         nanoseconds.
+     */
+    long getPercentile(
+        double percentile)
+    {
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank && seen > 0)
+            {
+                return Math.min(upperBoundOf(i), max);
+            }
+        }
+
+        return max;
+    }
+
+    /**
+     * Returns the index of the bucket of a value.
+     *
+     * @param value the value.
+     * @return the index of the bucket.
+     */
+    private static int indexOf(
+        long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS
+            + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * Returns the largest value in a bucket.
+     *
+     * @param index the index of the bucket.
+     * @return the largest value.
+     */
+    private static long upperBoundOf(
+        int index)
+    {
+        if (index < SUB_BUCKETS)
+        {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long base = (long) (index % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return base + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.loadtest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import java.util.Random;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * <p>
+ * Drives closed-loop load: every thread invokes the operation again as soon
+ * as the previous invocation returns. The threads run the operation for the
+ * warm-up period first and then measure the latency of every invocation and
+ * the memory allocated by the thread.
+ * </p>
+ *
+ * <p>
+ * The allocation is measured with the HotSpot extension of
+ * {@link ThreadMXBean} and is reported as -1 on the virtual machines that do
+ * not support it.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+class LoadDriver
+{
+    private static final ThreadMXBean threads = ManagementFactory
+        .getThreadMXBean();
+
+    private final long warmupMillis;
+
+    private final long durationMillis;
+
+    /**
+     * Creates a new driver.
+     *
+     * @param warmupMillis the warm-up period in milliseconds.
+     * @param durationMillis the measurement period in milliseconds.
+     */
+    LoadDriver(
+        long warmupMillis,
+        long durationMillis)
+    {
+        this.warmupMillis = warmupMillis;
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * Runs an operation with the specified number of threads.
+     *
+     * @param operation the operation.
+     * @param threadCount the number of threads.
+     * @return the result of the run.
+     * @throws InterruptedException thrown if the calling thread is
+     *         interrupted.
+     */
+    Result run(
+        Operation operation,
+        int threadCount)
+    throws InterruptedException
+    {
+        Phase phase = new Phase();
+        CountDownLatch done = new CountDownLatch(threadCount);
+        Worker[] workers = new Worker[threadCount];
+        for (int i = 0; i < threadCount; i++)
+        {
+            workers[i] = new Worker(operation, phase, done, i);
+            workers[i].start();
+        }
+
+        Thread.sleep(warmupMillis);
+        long start = System.nanoTime();
+        phase.measuring = true;
+        Thread.sleep(durationMillis);
+        phase.stopped = true;
+        long elapsed = System.nanoTime() - start;
+        done.await();
+
+        LatencyRecorder latencies = new LatencyRecorder();
+        long errors = 0;
+        long allocated = 0;
+        for (Worker worker : workers)
+        {
+            latencies.add(worker.latencies);
+            errors += worker.errors;
+            allocated = worker.allocated < 0 || allocated < 0 ? -1
+                : allocated + worker.allocated;
+        }
+
+        return new Result(threadCount, elapsed, latencies, errors, allocated);
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread.
+     *
+     * @return the number of bytes, or -1 if the virtual machine does not
+     *         support the measurement.
+     */
+    private static long getAllocatedBytes()
+    {
+        if (threads instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return -1;
+    }
+
+    /**
+     * <p>
+     * The phase of a run shared by its threads.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class Phase
+    {
+        private volatile boolean measuring;
+
+        private volatile boolean stopped;
+    }
+
+    /**
+     * <p>
+     * A thread that invokes the operation in a loop.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class Worker
+    extends Thread
+    {
+        private final Operation operation;
+
+        private final Phase phase;
+
+        private final CountDownLatch done;
+
+        private final LatencyRecorder latencies;
+
+        private long errors;
+
+        private long allocated;
+
+        /**
+         * Creates a new worker.
+         *
+         * @param operation the operation.
+         * @param phase the phase of the run.
+         * @param done the latch to count down when the worker stops.
+         * @param index the index of the worker.
+         */
+        Worker(
+            Operation operation,
+            Phase phase,
+            CountDownLatch done,
+            int index)
+        {
+            super("load-test-" + index);
+            this.operation = operation;
+            this.phase = phase;
+            this.done = done;
+            latencies = new LatencyRecorder();
+            setDaemon(true);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run()
+        {
+            Random random = new Random();
+            try
+            {
+                while (!phase.measuring)
+                {
+                    invoke(random);
+                }
+
+                long startBytes = getAllocatedBytes();
+                errors = 0;
+                while (!phase.stopped)
+                {
+                    long start = System.nanoTime();
+                    invoke(random);
+                    latencies.record(System.nanoTime() - start);
+                }
+
+                allocated = startBytes < 0 ? -1 : getAllocatedBytes()
+                    - startBytes;
+            }
+            finally
+            {
+                done.countDown();
+            }
+        }
+
+        /**
+         * Invokes the operation once and counts the failure if it fails.
+         *
+         * @param random the random generator.
+         */
+        private void invoke(
+            Random random)
+        {
+            try
+            {
+                operation.run(random);
+            }
+            catch (Exception e)
+            {
+                errors++;
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * The result of a run.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    static class Result
+    {
+        private final int threadCount;
+
+        private final long elapsedNanos;
+
+        private final LatencyRecorder latencies;
+
+        private final long errors;
+
+        private final long allocated;
+
+        /**
+         * Creates a new result.
+         *
+         * @param threadCount the number of threads.
+         * @param elapsedNanos the measurement period in nanoseconds.
+         * @param latencies the latencies of the measured invocations.
+         * @param errors the number of failed invocations.
+         * @param allocated the number of bytes allocated during the
+         *        measurement, or -1 if unknown.
+         */
+        Result(
+            int threadCount,
+            long elapsedNanos,
+            LatencyRecorder latencies,
+            long errors,
+            long allocated)
+        {
+            this.threadCount = threadCount;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+            this.errors = errors;
+            this.allocated = allocated;
+        }
+
+        /**
+         * Formats the result as a row of the report.
+         *
+         * @return the row.
+         */
+        String format()
+        {
+            long count = latencies.getCount();
+            double throughput = count * 1e9 / elapsedNanos;
+            return String.format("%7d %12.0f %9.1f %9.1f %9.1f %9.1f %9.1f "
+                + "%10s %8d", threadCount, throughput, micros(50),
+                micros(90), micros(99), micros(99.9), latencies.getMax()
+                    / 1e3, allocated < 0 || count == 0 ? "n/a" : String
+                    .valueOf(allocated / count), errors);
+        }
+
+        /**
+         * Returns a percentile of the latencies in microseconds.
+         *
+         * @param percentile the percentile.
+         * @return the latency in microseconds.
+         */
+        private double micros(
+            double percentile)
+        {
+            return latencies.getPercentile(percentile) / 1e3;
+        }
+
+        /**
+         * Returns the header of the report.
+         *
+         * @return the header.
+         */
+        static String header()
+        {
+            return String.format("%7s %12s %9s %9s %9s %9s %9s %10s %8s",
+                "threads", "ops/s", "p50 us", "p90 us", "p99 us", "p99.9 us",
+                "max us", "bytes/op", "errors");
+        }
+    }
+}
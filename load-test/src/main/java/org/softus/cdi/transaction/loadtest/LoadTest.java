@@ -0,0 +1,187 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.loadtest;
+
+import java.io.File;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.jboss.weld.environment.se.Weld;
+import org.jboss.weld.environment.se.WeldContainer;
+
+/**
+ * <p>
+ * Boots Weld SE with the Narayana transaction manager and an in-memory H2
+ * database and runs every operation with an increasing number of threads.
+ * Prints the throughput, the latency percentiles and the allocation per
+ * operation for every run.
+ * </p>
+ *
+ * <p>
+ * Configured by the system properties:
+ * <ul>
+ *   <li>{@code loadtest.threads} - comma separated thread counts,
+ *   {@code 1,2,4,8,16,32} by default;</li>
+ *   <li>{@code loadtest.warmup} - warm-up period of a run in seconds, 5 by
+ *   default;</li>
+ *   <li>{@code loadtest.duration} - measurement period of a run in seconds, 10
+ *   by default;</li>
+ *   <li>{@code loadtest.operations} - comma separated names of the operations
+ *   to run, all by default.</li>
+ * </ul>
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public class LoadTest
+{
+    /**
+     * Creates a new load test.
+     */
+    private LoadTest()
+    {
+
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @param args the command line arguments, not used.
+     * @throws Exception thrown if the load test fails.
+     */
+    public static void main(
+        String[] args)
+    throws Exception
+    {
+        // Keep the transaction log of Narayana out of the working directory.
+        String objectStore = new File(System.getProperty("java.io.tmpdir"),
+            "transaction-cdi-load-test").getPath();
+        System.setProperty("ObjectStoreEnvironmentBean.objectStoreDir",
+            objectStore);
+        System.setProperty("com.arjuna.ats.arjuna.objectstore.objectStoreDir",
+            objectStore);
+
+        String[] threadCounts = System.getProperty("loadtest.threads",
+            "1,2,4,8,16,32").split(",");
+        long warmup = Long.getLong("loadtest.warmup", 5) * 1000;
+        long duration = Long.getLong("loadtest.duration", 10) * 1000;
+        String selected = System.getProperty("loadtest.operations");
+
+        Weld weld = new Weld();
+        WeldContainer container = weld.initialize();
+        try
+        {
+            TransferService service = container.instance().select(
+                TransferService.class).get();
+            LoadDriver driver = new LoadDriver(warmup, duration);
+            for (Map.Entry<String, Operation> e : operations(service)
+                .entrySet())
+            {
+                if (selected != null
+                    && !("," + selected + ",").contains("," + e.getKey() + ","))
+                {
+                    continue;
+                }
+
+                System.out.println();
+                System.out.println(e.getKey());
+                System.out.println(LoadDriver.Result.header());
+                for (String threadCount : threadCounts)
+                {
+                    System.out.println(driver.run(e.getValue(),
+                        Integer.parseInt(threadCount.trim())).format());
+                }
+            }
+        }
+        finally
+        {
+            weld.shutdown();
+        }
+    }
+
+    /**
+     * Creates the operations.
+     *
+     * @param service the service.
+     * @return the operations by their names.
+     */
+    private static Map<String, Operation> operations(
+        final TransferService service)
+    {
+        Map<String, Operation> operations =
+            new LinkedHashMap<String, Operation>();
+        operations.put("never", new Operation()
+        {
+            public void run(
+                Random random)
+            {
+                service.ping();
+            }
+        });
+        operations.put("notSupported+supports", new Operation()
+        {
+            public void run(
+                Random random)
+            throws Exception
+            {
+                service.getTotalBalance(random.nextInt(Database.ACCOUNTS),
+                    random.nextInt(Database.ACCOUNTS));
+            }
+        });
+        operations.put("required+mandatory", new Operation()
+        {
+            public void run(
+                Random random)
+            throws Exception
+            {
+                transfer(service, random, false);
+            }
+        });
+        operations.put("required+mandatory+requiresNew", new Operation()
+        {
+            public void run(
+                Random random)
+            throws Exception
+            {
+                transfer(service, random, true);
+            }
+        });
+
+        return operations;
+    }
+
+    /**
+     * Transfers a random amount between two random accounts.
+     *
+     * @param service the service.
+     * @param random the random generator.
+     * @param audit {@code true} if the transfer should be audited.
+     * @throws Exception thrown if the transfer fails.
+     */
+    private static void transfer(
+        TransferService service,
+        Random random,
+        boolean audit)
+    throws Exception
+    {
+        int from = random.nextInt(Database.ACCOUNTS);
+        int to = (from + 1 + random.nextInt(Database.ACCOUNTS - 1))
+            % Database.ACCOUNTS;
+        service.transfer(from, to, 1 + random.nextInt(100), audit);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.loadtest;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import javax.enterprise.inject.Alternative;
+import javax.enterprise.inject.Typed;
+
+import javax.transaction.TransactionManager;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.softus.cdi.transaction.TransactionSupport;
+
+import org.softus.cdi.transaction.impl.AbstractTransactionSupport;
+
+import com.arjuna.ats.internal.jta.transaction.arjunacore.TransactionSynchronizationRegistryImple;
+
+/**
+ * <p>
+ * Transaction support that uses the embedded Narayana transaction manager
+ * instead of looking it up in JNDI.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+@Alternative
+@ApplicationScoped
+@Typed(TransactionSupport.class)
+public class NarayanaTransactionSupport
+extends AbstractTransactionSupport
+{
+    /**
+     * Creates a new transaction support.
+     */
+    public NarayanaTransactionSupport()
+    {
+
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected TransactionManager lookupTransactionManager()
+    {
+        return com.arjuna.ats.jta.TransactionManager.transactionManager();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected TransactionSynchronizationRegistry lookupSynchronizationRegistry()
+    {
+        return new TransactionSynchronizationRegistryImple();
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.loadtest;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.Callable;
+
+import javax.ejb.ApplicationException;
+import javax.ejb.TransactionAttributeType;
+
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+
+import org.h2.jdbcx.JdbcDataSource;
+
+import org.softus.cdi.transaction.ReadOnlyTransactions;
+import org.softus.cdi.transaction.TransactionSupport;
+
+import org.softus.cdi.transaction.impl.TransactionTemplate;
+
+import org.softus.cdi.transaction.jdbc.ReadReplicaRoutingDataSource;
+
+/**
+ * <p>
+ * Smoke test of the extension compiled into a GraalVM native image, built and
+ * run by the {@code native} profile. It exercises the code that does not need
+ * a CDI container, so it can run without one: the demarcation of nested
+ * transactions, the rollback rules read from {@link ApplicationException} and
+ * the proxies that guard the replica connections. It fails if the reflection
+ * or the proxy configuration shipped with the extension is incomplete for
+ * these paths.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public class NativeSmokeTest
+{
+    /**
+     * Creates a new smoke test.
+     */
+    private NativeSmokeTest()
+    {
+
+    }
+
+    /**
+     * Runs the smoke test.
+     *
+     * @param args the command line arguments, not used.
+     * @throws Exception thrown if the smoke test fails.
+     */
+    public static void main(
+        String[] args)
+    throws Exception
+    {
+        final LocalTransactionSupport transactionSupport =
+            new LocalTransactionSupport();
+        TransactionTemplate required = new TransactionTemplate(
+            transactionSupport);
+        final TransactionTemplate mandatory = required
+            .withAttribute(TransactionAttributeType.MANDATORY);
+
+        required.execute(new Callable<Object>()
+        {
+            public Object call()
+            throws Exception
+            {
+                return mandatory.execute(new Callable<Object>()
+                {
+                    public Object call()
+                    {
+                        return null;
+                    }
+                });
+            }
+        });
+        check(transactionSupport.commits == 1, "nested transaction commit");
+
+        try
+        {
+            required.execute(new Callable<Object>()
+            {
+                public Object call()
+                throws Exception
+                {
+                    throw new RollbackRequired();
+                }
+            });
+        }
+        catch (RollbackRequired e)
+        {
+            // Expected.
+        }
+        check(transactionSupport.rollbacks == 1, "application exception "
+            + "rollback");
+
+        JdbcDataSource database = new JdbcDataSource();
+        database.setURL("jdbc:h2:mem:smoke;DB_CLOSE_DELAY=-1");
+        final ReadReplicaRoutingDataSource dataSource =
+            new ReadReplicaRoutingDataSource(transactionSupport, database,
+                database, true);
+        Boolean rejected = required.execute(new Callable<Boolean>()
+        {
+            public Boolean call()
+            throws Exception
+            {
+                ReadOnlyTransactions.markReadOnly(transactionSupport);
+                Connection connection = dataSource.getConnection();
+                try
+                {
+                    connection.createStatement().executeUpdate(
+                        "create table smoke (id int)");
+                    return false;
+                }
+                catch (SQLException e)
+                {
+                    return true;
+                }
+                finally
+                {
+                    connection.close();
+                }
+            }
+        });
+        check(rejected, "read-only connection guard");
+
+        System.out.println("Native smoke test passed");
+    }
+
+    /**
+     * Fails the smoke test if a condition does not hold.
+     *
+     * @param condition the condition.
+     * @param name the name of the check.
+     */
+    private static void check(
+        boolean condition,
+        String name)
+    {
+        if (!condition)
+        {
+            throw new IllegalStateException("Native smoke test failed: "
+                + name);
+        }
+    }
+
+    /**
+     * <p>
+     * Checked exception that rolls the transaction back.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    @ApplicationException(rollback = true)
+    private static class RollbackRequired
+    extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * <p>
+     * Transaction support of local transactions bound to the current thread.
+     * The transactions cannot be suspended.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class LocalTransactionSupport
+    implements TransactionSupport
+    {
+        private final ThreadLocal<LocalTransaction> current =
+            new ThreadLocal<LocalTransaction>();
+
+        private int commits;
+
+        private int rollbacks;
+
+        /**
+         * {@inheritDoc}
+         */
+        public void begin()
+        throws NotSupportedException
+        {
+            if (current.get() != null)
+            {
+                throw new NotSupportedException(
+                    "Nested transactions are not supported");
+            }
+
+            current.set(new LocalTransaction());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void commit()
+        throws RollbackException
+        {
+            LocalTransaction transaction = getTransaction();
+            current.remove();
+            if (transaction.status == Status.STATUS_MARKED_ROLLBACK)
+            {
+                transaction.complete(Status.STATUS_ROLLEDBACK);
+                rollbacks++;
+                throw new RollbackException(
+                    "Transaction is marked for rollback");
+            }
+
+            for (Synchronization synchronization : transaction.synchronizations)
+            {
+                synchronization.beforeCompletion();
+            }
+
+            transaction.complete(Status.STATUS_COMMITTED);
+            commits++;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void rollback()
+        {
+            LocalTransaction transaction = getTransaction();
+            current.remove();
+            transaction.complete(Status.STATUS_ROLLEDBACK);
+            rollbacks++;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public int getStatus()
+        {
+            LocalTransaction transaction = current.get();
+            return transaction != null ? transaction.status
+                : Status.STATUS_NO_TRANSACTION;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Transaction suspend()
+        throws SystemException
+        {
+            throw new SystemException("Suspension is not supported");
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void resume(
+            Transaction transaction)
+        throws SystemException
+        {
+            throw new SystemException("Suspension is not supported");
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void setRollbackOnly()
+        {
+            getTransaction().status = Status.STATUS_MARKED_ROLLBACK;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void registerSynchronization(
+            Synchronization synchronization)
+        {
+            getTransaction().synchronizations.add(synchronization);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object getResource(
+            Object key)
+        {
+            return getTransaction().resources.get(key);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void putResource(
+            Object key,
+            Object value)
+        {
+            getTransaction().resources.put(key, value);
+        }
+
+        /**
+         * Returns the transaction of the current thread.
+         *
+         * @return the transaction.
+         * @throws IllegalStateException thrown if there is no transaction.
+         */
+        private LocalTransaction getTransaction()
+        {
+            LocalTransaction transaction = current.get();
+            if (transaction == null)
+            {
+                throw new IllegalStateException("No transaction");
+            }
+
+            return transaction;
+        }
+    }
+
+    /**
+     * <p>
+     * State of a local transaction.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class LocalTransaction
+    {
+        private final Map<Object, Object> resources =
+            new HashMap<Object, Object>();
+
+        private final List<Synchronization> synchronizations =
+            new ArrayList<Synchronization>();
+
+        private int status = Status.STATUS_ACTIVE;
+
+        /**
+         * Notifies the synchronizations that the transaction has completed.
+         *
+         * @param status the status of the transaction.
+         */
+        void complete(
+            int status)
+        {
+            this.status = status;
+            for (Synchronization synchronization : synchronizations)
+            {
+                synchronization.afterCompletion(status);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.loadtest;
+
+import java.util.Random;
+
+/**
+ * <p>
+ * An operation the load test invokes repeatedly.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+interface Operation
+{
+    /**
+     * Invokes the operation once.
+     *
+     * @param random the random generator of the calling thread.
+     * @throws Exception thrown if the operation fails.
+     */
+    void run(
+        Random random)
+    throws Exception;
+}
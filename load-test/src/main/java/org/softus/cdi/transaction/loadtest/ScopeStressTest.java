@@ -0,0 +1,400 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.loadtest;
+
+import java.io.File;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.enterprise.context.ContextNotActiveException;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.jboss.weld.environment.se.Weld;
+import org.jboss.weld.environment.se.WeldContainer;
+
+/**
+ * <p>
+ * Stress run of the transaction scope. Every round starts a transaction that
+ * is shared by several threads, all of which look up the same
+ * {@link ScopedProbe} at once: half of them directly and the other half
+ * through the {@code @Transactional} method of {@link ScopedProbeService},
+ * which joins the transaction through the interceptor. Every other round
+ * completes the transaction from another thread while the lookups are still
+ * running, so the creation of the instances races with their destruction.
+ * The rounds are run with an increasing number of threads and the number of
+ * rounds per second is printed for every run.
+ * </p>
+ *
+ * <p>
+ * The run fails if a transaction creates more than one instance, if an
+ * instance is destroyed more than once or used after it is destroyed, or if
+ * any instance is left alive after the transactions complete.
+ * </p>
+ *
+ * <p>
+ * Configured by the system properties:
+ * <ul>
+ *   <li>{@code stress.threads} - comma separated numbers of threads that
+ *   share a transaction, {@code 1,2,4,8,16,32} by default;</li>
+ *   <li>{@code stress.rounds} - the number of transactions of a run, 2000 by
+ *   default.</li>
+ * </ul>
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public class ScopeStressTest
+{
+    private final TransactionManager transactionManager;
+
+    private final ScopedProbe probe;
+
+    private final ScopedProbeService service;
+
+    private long late;
+
+    private long duplicated;
+
+    /**
+     * Creates a new stress run.
+     *
+     * @param transactionManager the transaction manager.
+     * @param probe the client proxy of the probe.
+     * @param service the service that looks up the probe.
+     */
+    private ScopeStressTest(
+        TransactionManager transactionManager,
+        ScopedProbe probe,
+        ScopedProbeService service)
+    {
+        this.transactionManager = transactionManager;
+        this.probe = probe;
+        this.service = service;
+    }
+
+    /**
+     * Runs the stress run.
+     *
+     * @param args the command line arguments, not used.
+     * @throws Exception thrown if the stress run fails.
+     */
+    public static void main(
+        String[] args)
+    throws Exception
+    {
+        // Keep the transaction log of Narayana out of the working directory.
+        String objectStore = new File(System.getProperty("java.io.tmpdir"),
+            "transaction-cdi-load-test").getPath();
+        System.setProperty("ObjectStoreEnvironmentBean.objectStoreDir",
+            objectStore);
+        System.setProperty("com.arjuna.ats.arjuna.objectstore.objectStoreDir",
+            objectStore);
+
+        String[] threadCounts = System.getProperty("stress.threads",
+            "1,2,4,8,16,32").split(",");
+        int rounds = Integer.getInteger("stress.rounds", 2000);
+
+        Weld weld = new Weld();
+        WeldContainer container = weld.initialize();
+        try
+        {
+            ScopeStressTest test = new ScopeStressTest(
+                com.arjuna.ats.jta.TransactionManager.transactionManager(),
+                container.instance().select(ScopedProbe.class).get(),
+                container.instance().select(ScopedProbeService.class).get());
+
+            System.out.println(String.format("%7s %12s", "threads",
+                "rounds/s"));
+            for (String threadCount : threadCounts)
+            {
+                int count = Integer.parseInt(threadCount.trim());
+                long nanos = test.run(count, rounds);
+                System.out.println(String.format("%7d %12.0f", count, rounds
+                    * 1e9 / nanos));
+            }
+
+            test.report(rounds * threadCounts.length);
+        }
+        finally
+        {
+            weld.shutdown();
+        }
+    }
+
+    /**
+     * Runs the rounds with a number of threads.
+     *
+     * @param threadCount the number of threads per transaction.
+     * @param rounds the number of transactions.
+     * @return the time in nanoseconds the rounds took.
+     * @throws Exception thrown if a round fails.
+     */
+    private long run(
+        int threadCount,
+        int rounds)
+    throws Exception
+    {
+        ExecutorService executor = Executors
+            .newFixedThreadPool(threadCount + 1);
+        try
+        {
+            long started = System.nanoTime();
+            for (int round = 0; round < rounds; round++)
+            {
+                transactionManager.begin();
+                Transaction transaction = transactionManager.suspend();
+                boolean commit = round % 4 < 2;
+                boolean racing = round % 2 == 1;
+
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<Long>> lookups = new ArrayList<Future<Long>>();
+                for (int i = 0; i < threadCount; i++)
+                {
+                    lookups.add(executor.submit(new Lookup(transactionManager,
+                        transaction, probe, i % 2 == 1 ? service : null,
+                        start)));
+                }
+
+                Future<Void> completion = racing ? executor
+                    .submit(new Completion(transaction, commit, start))
+                    : null;
+                start.countDown();
+
+                Set<Long> ids = new HashSet<Long>();
+                for (Future<Long> lookup : lookups)
+                {
+                    Long id = lookup.get();
+                    if (id == null)
+                    {
+                        late++;
+                    }
+                    else
+                    {
+                        ids.add(id);
+                    }
+                }
+
+                if (completion != null)
+                {
+                    completion.get();
+                }
+                else
+                {
+                    new Completion(transaction, commit, start).call();
+                }
+
+                if (ids.size() > 1)
+                {
+                    duplicated++;
+                }
+            }
+
+            return System.nanoTime() - started;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Prints the counts and checks them.
+     *
+     * @param rounds the total number of transactions.
+     * @throws Exception thrown if the counts are wrong or the management
+     *         bean cannot be read.
+     */
+    private void report(
+        int rounds)
+    throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName scope = new ObjectName(
+            "org.softus.cdi.transaction:type=TransactionScope");
+        int live = ((Number) server.getAttribute(scope, "LiveCount"))
+            .intValue();
+
+        long created = ScopedProbe.getCreatedCount();
+        long destroyed = ScopedProbe.getDestroyedCount();
+        System.out.println(rounds + " transactions");
+        System.out.println("created = " + created + ", destroyed = "
+            + destroyed + ", destroyed twice = "
+            + ScopedProbe.getDestroyedTwiceCount() + ", used after destroy = "
+            + ScopedProbe.getUsedAfterDestroyCount() + ", live = " + live
+            + ", duplicated = " + duplicated + ", late lookups = " + late);
+
+        if (created != destroyed || live != 0 || duplicated != 0
+            || ScopedProbe.getDestroyedTwiceCount() != 0
+            || ScopedProbe.getUsedAfterDestroyCount() != 0)
+        {
+            throw new IllegalStateException(
+                "Transaction scope stress run failed");
+        }
+    }
+
+    /**
+     * <p>
+     * Looks up the probe within a shared transaction, directly or through
+     * {@link ScopedProbeService}.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class Lookup
+    implements Callable<Long>
+    {
+        private final TransactionManager transactionManager;
+
+        private final Transaction transaction;
+
+        private final ScopedProbe probe;
+
+        private final ScopedProbeService service;
+
+        private final CountDownLatch start;
+
+        /**
+         * Creates a new lookup.
+         *
+         * @param transactionManager the transaction manager.
+         * @param transaction the shared transaction.
+         * @param probe the client proxy of the probe.
+         * @param service the service to look the probe up through or
+         *        {@code null} to look it up directly.
+         * @param start the latch that starts the round.
+         */
+        Lookup(
+            TransactionManager transactionManager,
+            Transaction transaction,
+            ScopedProbe probe,
+            ScopedProbeService service,
+            CountDownLatch start)
+        {
+            this.transactionManager = transactionManager;
+            this.transaction = transaction;
+            this.probe = probe;
+            this.service = service;
+            this.start = start;
+        }
+
+        /**
+         * Returns the identifier of the probe of the transaction.
+         *
+         * @return the identifier or {@code null} if the transaction has
+         *         completed before the lookup.
+         * @throws Exception thrown if the round is interrupted.
+         */
+        public Long call()
+        throws Exception
+        {
+            start.await();
+            try
+            {
+                transactionManager.resume(transaction);
+            }
+            catch (Exception e)
+            {
+                return null;
+            }
+
+            try
+            {
+                return service != null ? service.getProbeId() : probe.getId();
+            }
+            catch (ContextNotActiveException e)
+            {
+                return null;
+            }
+            finally
+            {
+                transactionManager.suspend();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Completes a shared transaction.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class Completion
+    implements Callable<Void>
+    {
+        private final Transaction transaction;
+
+        private final boolean commit;
+
+        private final CountDownLatch start;
+
+        /**
+         * Creates a new completion.
+         *
+         * @param transaction the shared transaction.
+         * @param commit {@code true} to commit the transaction, {@code false}
+         *        to roll it back.
+         * @param start the latch that starts the round.
+         */
+        Completion(
+            Transaction transaction,
+            boolean commit,
+            CountDownLatch start)
+        {
+            this.transaction = transaction;
+            this.commit = commit;
+            this.start = start;
+        }
+
+        /**
+         * Commits or rolls back the transaction.
+         *
+         * @return {@code null}.
+         * @throws Exception thrown if the transaction cannot be completed.
+         */
+        public Void call()
+        throws Exception
+        {
+            start.await();
+            if (commit)
+            {
+                transaction.commit();
+            }
+            else
+            {
+                transaction.rollback();
+            }
+
+            return null;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.loadtest;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.softus.cdi.transaction.TransactionScoped;
+
+/**
+ * <p>
+ * Transaction scoped bean that counts its instances, so
+ * {@link ScopeStressTest} can check that every transaction creates at most
+ * one instance and destroys it exactly once.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+@TransactionScoped
+public class ScopedProbe
+{
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private static final AtomicLong created = new AtomicLong();
+
+    private static final AtomicLong destroyed = new AtomicLong();
+
+    private static final AtomicLong destroyedTwice = new AtomicLong();
+
+    private static final AtomicLong usedAfterDestroy = new AtomicLong();
+
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private long id;
+
+    /**
+     * Creates a new bean.
+     */
+    public ScopedProbe()
+    {
+
+    }
+
+    /**
+     * Counts the created instance.
+     */
+    @PostConstruct
+    void create()
+    {
+        id = sequence.incrementAndGet();
+        created.incrementAndGet();
+    }
+
+    /**
+     * Counts the destroyed instance.
+     */
+    @PreDestroy
+    void destroy()
+    {
+        if (!closed.compareAndSet(false, true))
+        {
+            destroyedTwice.incrementAndGet();
+        }
+
+        destroyed.incrementAndGet();
+    }
+
+    /**
+     * Returns the identifier of the instance.
+     *
+     * @return the identifier.
+     */
+    public long getId()
+    {
+        if (closed.get())
+        {
+            usedAfterDestroy.incrementAndGet();
+        }
+
+        return id;
+    }
+
+    /**
+     * Returns the number of instances created.
+     *
+     * @return the number of instances created.
+     */
+    static long getCreatedCount()
+    {
+        return created.get();
+    }
+
+    /**
+     * Returns the number of instances destroyed.
+     *
+     * @return the number of instances destroyed.
+     */
+    static long getDestroyedCount()
+    {
+        return destroyed.get();
+    }
+
+    /**
+     * Returns the number of instances destroyed more than once.
+     *
+     * @return the number of instances destroyed more than once.
+     */
+    static long getDestroyedTwiceCount()
+    {
+        return destroyedTwice.get();
+    }
+
+    /**
+     * Returns the number of calls to the instances that have been destroyed.
+     *
+     * @return the number of calls.
+     */
+    static long getUsedAfterDestroyCount()
+    {
+        return usedAfterDestroy.get();
+    }
+}
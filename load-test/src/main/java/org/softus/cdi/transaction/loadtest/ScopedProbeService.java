@@ -0,0 +1,72 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.loadtest;
+
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.ContextNotActiveException;
+
+import javax.inject.Inject;
+
+import org.softus.cdi.transaction.Transactional;
+
+/**
+ * <p>
+ * Looks up the {@link ScopedProbe} of the current transaction from within a
+ * transactional method, so {@link ScopeStressTest} covers the lookups made
+ * through the interceptor as well as the direct ones.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+@ApplicationScoped
+@Transactional
+public class ScopedProbeService
+{
+    @Inject
+    private ScopedProbe probe;
+
+    /**
+     * Creates a new bean.
+     */
+    public ScopedProbeService()
+    {
+
+    }
+
+    /**
+     * Returns the identifier of the probe of the current transaction. The
+     * method joins the transaction the thread is associated with and runs
+     * without a transaction if it has already completed.
+     *
+     * @return the identifier or {@code null} if the transaction scope is not
+     *         active.
+     */
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public Long getProbeId()
+    {
+        try
+        {
+            return probe.getId();
+        }
+        catch (ContextNotActiveException e)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.loadtest;
+
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import javax.inject.Inject;
+
+import org.softus.cdi.transaction.Transactional;
+
+/**
+ * <p>
+ * Entry points of the load test that cover every transaction attribute.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+@ApplicationScoped
+@Transactional
+public class TransferService
+{
+    @Inject
+    private Accounts accounts;
+
+    @Inject
+    private AuditLog auditLog;
+
+    /**
+     * Creates a new bean.
+     */
+    public TransferService()
+    {
+
+    }
+
+    /**
+     * Transfers an amount between two accounts within a new transaction that
+     * the {@code MANDATORY} methods of {@link Accounts} join.
+     *
+     * @param from the account to debit.
+     * @param to the account to credit.
+     * @param amount the amount.
+     * @param audit {@code true} if the transfer should also be recorded by
+     *        the {@code REQUIRES_NEW} method of {@link AuditLog}.
+     * @throws Exception thrown if the transfer fails.
+     */
+    public void transfer(
+        int from,
+        int to,
+        long amount,
+        boolean audit)
+    throws Exception
+    {
+        // Lock the rows in the same order to avoid deadlocks.
+        if (from < to)
+        {
+            accounts.add(from, -amount);
+            accounts.add(to, amount);
+        }
+        else
+        {
+            accounts.add(to, amount);
+            accounts.add(from, -amount);
+        }
+
+        if (audit)
+        {
+            auditLog.record(from, -amount);
+        }
+    }
+
+    /**
+     * Reads the balance of two accounts outside of a transaction through the
+     * {@code SUPPORTS} method of {@link Accounts}.
+     *
+     * @param first the first account.
+     * @param second the second account.
+     * @return the total balance.
+     * @throws Exception thrown if the balances cannot be read.
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public long getTotalBalance(
+        int first,
+        int second)
+    throws Exception
+    {
+        return accounts.getBalance(first) + accounts.getBalance(second);
+    }
+
+    /**
+     * Does nothing outside of a transaction, which measures the overhead of
+     * the interceptor alone.
+     */
+    @TransactionAttribute(TransactionAttributeType.NEVER)
+    public void ping()
+    {
+
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.loadtest;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.annotation.PreDestroy;
+
+import javax.inject.Inject;
+
+import javax.sql.XAConnection;
+
+import javax.transaction.RollbackException;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.softus.cdi.transaction.TransactionScoped;
+
+/**
+ * <p>
+ * Database connection enlisted in the current transaction. Opened on first
+ * use and closed when the transaction scope is destroyed.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+@TransactionScoped
+public class UnitOfWork
+{
+    private static final Logger log = LoggerFactory
+        .getLogger(UnitOfWork.class);
+
+    @Inject
+    private Database database;
+
+    private XAConnection xaConnection;
+
+    private Connection connection;
+
+    /**
+     * Creates a new unit of work.
+     */
+    public UnitOfWork()
+    {
+
+    }
+
+    /**
+     * Returns the connection enlisted in the current transaction.
+     *
+     * @return the connection.
+     * @throws SQLException thrown if the connection cannot be opened.
+     * @throws SystemException thrown if the connection cannot be enlisted.
+     */
+    public Connection getConnection()
+    throws SQLException, SystemException
+    {
+        if (connection == null)
+        {
+            xaConnection = database.getXAConnection();
+            Transaction transaction = com.arjuna.ats.jta.TransactionManager
+                .transactionManager().getTransaction();
+            try
+            {
+                transaction.enlistResource(xaConnection.getXAResource());
+            }
+            catch (RollbackException e)
+            {
+                xaConnection.close();
+                throw new SystemException(e.toString());
+            }
+
+            connection = xaConnection.getConnection();
+        }
+
+        return connection;
+    }
+
+    /**
+     * Closes the connection.
+     */
+    @PreDestroy
+    void close()
+    {
+        if (xaConnection != null)
+        {
+            try
+            {
+                xaConnection.close();
+            }
+            catch (SQLException e)
+            {
+                log.warn("Cannot close connection", e);
+            }
+        }
+    }
+}
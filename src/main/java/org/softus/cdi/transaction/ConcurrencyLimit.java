@@ -0,0 +1,75 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>
+ * Limits the number of concurrent transactions started for the methods of a
+ * group. The limit adapts to the observed commit latency: it grows slowly
+ * while the latency is stable and shrinks quickly when the latency rises, so
+ * the resources are kept near their throughput limit instead of being
+ * overrun.
+ * </p>
+ *
+ * <p>
+ * The limit applies to the transactions that the interceptor starts, i.e. the
+ * invocations that join the transaction of the caller are not limited. When
+ * the limit is reached, the callers wait for up to {@link #timeout()}
+ * milliseconds, and then {@link TransactionRejectedException} is thrown. The
+ * callers are rejected immediately if there are more callers waiting than the
+ * current limit.
+ * </p>
+ *
+ * <p>
+ * The methods with the same {@link #value()} share one limit. The settings of
+ * the first method discovered in a group apply to the whole group.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ * @see TransactionRejectedException
+ */
+@Target({ ElementType.TYPE, ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface ConcurrencyLimit
+{
+    /**
+     * The name of the group. Defaults to the name of the declaring class.
+     */
+    String value() default "";
+
+    /**
+     * The initial limit.
+     */
+    int initialLimit() default 10;
+
+    /**
+     * The maximum limit.
+     */
+    int maxLimit() default 100;
+
+    /**
+     * The maximum time in milliseconds to wait for a transaction to finish
+     * when the limit is reached.
+     */
+    long timeout() default 1000;
+}
@@ -0,0 +1,77 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * <p>
+ * Enables group commit for {@link Transactional} methods with the
+ * {@link TransactionAttributeType#REQUIRES_NEW} transaction attribute.
+ * Concurrent invocations of such a method are queued and executed one after
+ * another within one physical transaction, so the cost of a commit is shared
+ * by the whole group. Each caller blocks until the group has been committed
+ * and then receives the result of its own invocation.
+ * </p>
+ *
+ * <p>
+ * A group is executed when it reaches {@link #batchSize()} invocations or when
+ * {@link #window()} milliseconds have passed since the first invocation was
+ * queued. If the group fails to commit, or one of the invocations marks it
+ * for rollback, the invocations of the group are re-executed one by one in
+ * separate transactions, so only the failing invocation is affected.
+ * </p>
+ *
+ * <p>
+ * Each caller proceeds with its own invocation on its own thread, with the
+ * transaction of the group resumed for the duration of the invocation, so
+ * the invocation keeps its thread context, such as the request scope, the
+ * security identity and the thread locals. The invocations of a group do not
+ * overlap. The methods may be invoked more than once, though the effects of
+ * a failed group are rolled back.
+ * </p>
+ *
+ * <p>
+ * If the annotation is specified on a class, it applies to the
+ * {@link TransactionAttributeType#REQUIRES_NEW} methods of the class only. It
+ * is an error to specify it on a method with a different transaction
+ * attribute.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+@Target({ ElementType.TYPE, ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface GroupCommit
+{
+    /**
+     * The maximum time in milliseconds an invocation waits for other
+     * invocations to join its group.
+     */
+    long window() default 5;
+
+    /**
+     * The maximum number of invocations in a group.
+     */
+    int batchSize() default 32;
+}
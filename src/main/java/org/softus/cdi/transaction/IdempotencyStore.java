@@ -0,0 +1,52 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction;
+
+/**
+ * <p>
+ * Persistent store of the committed keys of {@link Idempotent} methods. The
+ * store is consulted when a key is not found in the in-memory cache. An
+ * implementation is used if it is available as a bean.
+ * </p>
+ *
+ * <p>
+ * The keys are recorded within the transaction of the invocation, so the
+ * store should write them to a transactional resource enlisted in that
+ * transaction, e.g. insert them into a table with a unique constraint so that
+ * concurrent duplicates fail to commit.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public interface IdempotencyStore
+{
+    /**
+     * Checks if a key has been committed.
+     *
+     * @param key the key.
+     * @return {@code true} if the key has been committed.
+     */
+    public boolean contains(
+        String key);
+
+    /**
+     * Records a key within the current transaction.
+     *
+     * @param key the key.
+     */
+    public void record(
+        String key);
+}
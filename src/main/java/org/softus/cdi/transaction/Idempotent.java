@@ -0,0 +1,79 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import javax.enterprise.util.Nonbinding;
+
+import javax.interceptor.InterceptorBinding;
+
+/**
+ * <p>
+ * Interceptor binding that skips the invocations of a method whose
+ * idempotency key has already been committed. The key consists of the
+ * {@link #value()} and the string representations of the arguments annotated
+ * with {@link IdempotencyKey}. A method without such arguments, or with an
+ * argument whose type does not override {@link Object#toString()}, fails the
+ * deployment, since its key would not identify the request. If the class is
+ * annotated, this applies to all of its business methods.
+ * </p>
+ *
+ * <p>
+ * When the invocation succeeds, its key is recorded within the current
+ * transaction and becomes known only when the transaction commits, so a
+ * rolled back invocation can be retried. The committed keys are kept in a
+ * bounded in-memory cache and, if there is an {@link IdempotencyStore} bean,
+ * in the store. A skipped invocation returns {@code null}, zero or
+ * {@code false}, so the methods should not return anything.
+ * </p>
+ *
+ * <p>
+ * The in-memory cache only knows the committed keys, so the invocations with
+ * the same key running concurrently in different transactions are not
+ * excluded and may both commit. Only an {@link IdempotencyStore} that records
+ * the keys in a shared resource with a unique constraint rejects such
+ * duplicates.
+ * </p>
+ *
+ * <p>
+ * The method must be invoked within a transaction. The
+ * {@code org.softus.cdi.transaction.impl.IdempotentInterceptor} interceptor
+ * must be enabled in {@code beans.xml} after the
+ * {@code TransactionalInterceptor}. The size of the cache is set by the
+ * {@code org.softus.cdi.transaction.idempotent.cacheSize} system property,
+ * 10000 by default.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ * @see IdempotencyStore
+ */
+@Target({ ElementType.TYPE, ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+@InterceptorBinding
+public @interface Idempotent
+{
+    /**
+     * The namespace of the keys. Defaults to the name of the method.
+     */
+    @Nonbinding
+    String value() default "";
+}
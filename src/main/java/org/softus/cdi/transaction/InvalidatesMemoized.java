@@ -0,0 +1,53 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import javax.enterprise.util.Nonbinding;
+
+import javax.interceptor.InterceptorBinding;
+
+/**
+ * <p>
+ * Interceptor binding that invalidates the {@link TransactionMemoized}
+ * results of the current transaction in the specified regions after the
+ * method is invoked, whether it succeeds or not.
+ * </p>
+ *
+ * <p>
+ * The {@code org.softus.cdi.transaction.impl.MemoInvalidatingInterceptor}
+ * interceptor must be enabled in {@code beans.xml}.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+@Target({ ElementType.TYPE, ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+@InterceptorBinding
+public @interface InvalidatesMemoized
+{
+    /**
+     * The names of the regions to invalidate.
+     */
+    @Nonbinding
+    String[] value();
+}
@@ -0,0 +1,42 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction;
+
+/**
+ * <p>
+ * Invalidates the {@link TransactionMemoized} results of the current
+ * transaction. Available as an application scoped bean.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public interface MemoizedResults
+{
+    /**
+     * Discards the results cached in a region by the current transaction. Has
+     * no effect if there is no current transaction.
+     *
+     * @param region the name of the region.
+     */
+    public void invalidate(
+        String region);
+
+    /**
+     * Discards all the results cached by the current transaction. Has no
+     * effect if there is no current transaction.
+     */
+    public void invalidateAll();
+}
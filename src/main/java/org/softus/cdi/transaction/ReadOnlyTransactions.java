@@ -0,0 +1,72 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction;
+
+/**
+ * <p>
+ * Exposes the read-only flag of the current transaction. The flag is set when
+ * a transaction is started for a {@link Transactional#readOnly()} method and
+ * stays set until the transaction completes, including the methods that join
+ * the transaction.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public final class ReadOnlyTransactions
+{
+    private static final Object READ_ONLY_KEY = new Object();
+
+    /**
+     * Prevents instantiation.
+     */
+    private ReadOnlyTransactions()
+    {
+
+    }
+
+    /**
+     * Checks if the current transaction is read-only.
+     *
+     * @param transactionSupport the transaction support.
+     * @return {@code true} if the current transaction is read-only,
+     *         {@code false} if it is not or there is no current transaction.
+     */
+    public static boolean isReadOnly(
+        TransactionSupport transactionSupport)
+    {
+        try
+        {
+            return transactionSupport.getResource(READ_ONLY_KEY) != null;
+        }
+        catch (IllegalStateException e)
+        {
+            // No transaction.
+            return false;
+        }
+    }
+
+    /**
+     * Marks the current transaction read-only.
+     *
+     * @param transactionSupport the transaction support.
+     * @throws IllegalStateException thrown if there is no current transaction.
+     */
+    public static void markReadOnly(
+        TransactionSupport transactionSupport)
+    {
+        transactionSupport.putResource(READ_ONLY_KEY, Boolean.TRUE);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>
+ * Defers the completion of the transaction started for a {@link Transactional}
+ * method until the caller has consumed its result, so the result can be read
+ * from an open cursor instead of being materialized in memory. The method
+ * must return an interface that extends {@link java.util.Iterator} or has a
+ * {@code close()} method, such as {@code java.util.stream.Stream} or
+ * {@link java.io.Closeable}.
+ * </p>
+ *
+ * <p>
+ * When the interceptor starts a transaction for the method and the method
+ * returns normally, the transaction is suspended rather than committed and
+ * the caller receives a proxy of the result. The transaction is committed
+ * when the result is closed, an iterator is exhausted, or a terminal
+ * operation of a stream completes. It is rolled back if the result throws an
+ * exception that requires a rollback, or if it has not been consumed within
+ * {@link #timeout()} milliseconds, in which case the result is closed too.
+ * When the method joins the transaction of the caller, the result is returned
+ * as is.
+ * </p>
+ *
+ * <p>
+ * Each call to the result resumes the transaction on the consuming thread and
+ * suspends it again when the call returns, so the cursor stays enlisted in
+ * the transaction and the transaction scoped beans are available. A
+ * transaction the consuming thread is associated with is suspended for the
+ * duration of the call. The result must not be consumed by several threads
+ * at once. It is an error to combine the annotation with {@link GroupCommit}.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface StreamingResult
+{
+    /**
+     * The maximum time in milliseconds the transaction stays open after the
+     * method has returned.
+     */
+    long timeout() default 60000;
+}
@@ -0,0 +1,43 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction;
+
+/**
+ * <p>
+ * Thrown when a method is not invoked because the transaction it would join
+ * has already been marked for rollback, so none of its work could be
+ * committed. Thrown only if the fail-fast policy is enabled by the
+ * {@code org.softus.cdi.transaction.doomed.failFast} system property.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public class TransactionDoomedException
+extends RuntimeException
+{
+    private static final long serialVersionUID = -6473210981541652013L;
+
+    /**
+     * Creates a new exception.
+     *
+     * @param message the detail message.
+     */
+    public TransactionDoomedException(
+        String message)
+    {
+        super(message);
+    }
+}
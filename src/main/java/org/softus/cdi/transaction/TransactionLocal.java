@@ -0,0 +1,339 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * A variable that has its own value in every transaction, the transactional
+ * counterpart of {@link ThreadLocal}. The values are discarded when the
+ * transaction completes. Subclasses may override {@link #initialValue()} to
+ * provide the value a transaction starts with and {@link #onCompletion} to
+ * release the value when the transaction completes.
+ * </p>
+ *
+ * <p>
+ * Each variable is assigned an index when it is created. The values of a
+ * transaction are stored in one array kept as a single resource of the
+ * transaction, which is allocated when a variable is first accessed within
+ * the transaction, so accessing a variable costs one resource lookup and an
+ * array access regardless of the number of variables. The indexes are not
+ * reused, so the variables are meant to be created once and stored in
+ * static or application scoped fields.
+ * </p>
+ *
+ * @param <T> the type of the value.
+ * @author Vlad Arkhipov
+ */
+public class TransactionLocal<T>
+{
+    private static final Logger log = LoggerFactory
+        .getLogger(TransactionLocal.class);
+
+    private static final Object SLOTS_KEY = new Object();
+
+    private static final AtomicInteger nextIndex = new AtomicInteger();
+
+    private final int index;
+
+    /**
+     * Creates a new variable.
+     */
+    public TransactionLocal()
+    {
+        index = nextIndex.getAndIncrement();
+    }
+
+    /**
+     * Returns the value the variable has in a transaction before it is set.
+     * Invoked when the variable is first accessed within a transaction. The
+     * default implementation returns {@code null}.
+     *
+     * @return the initial value.
+     */
+    protected T initialValue()
+    {
+        return null;
+    }
+
+    /**
+     * Invoked after a transaction that has a value of the variable completes.
+     * Not invoked for the values that have been removed. The default
+     * implementation does nothing.
+     *
+     * @param value the value of the variable in the transaction.
+     * @param status the status of the transaction.
+     */
+    protected void onCompletion(
+        T value,
+        int status)
+    {
+
+    }
+
+    /**
+     * Returns the value of the variable in the current transaction,
+     * initializing it if necessary.
+     *
+     * @param transactionSupport the transaction support.
+     * @return the value.
+     * @throws IllegalStateException thrown if there is no current
+     *         transaction.
+     */
+    public T get(
+        TransactionSupport transactionSupport)
+    {
+        Slots slots = getSlots(transactionSupport);
+        synchronized (slots)
+        {
+            if (slots.isSet(index))
+            {
+                return cast(slots.get(index));
+            }
+
+            T value = initialValue();
+            slots.set(index, this, value);
+            return value;
+        }
+    }
+
+    /**
+     * Sets the value of the variable in the current transaction.
+     *
+     * @param transactionSupport the transaction support.
+     * @param value the value.
+     * @throws IllegalStateException thrown if there is no current
+     *         transaction.
+     */
+    public void set(
+        TransactionSupport transactionSupport,
+        T value)
+    {
+        Slots slots = getSlots(transactionSupport);
+        synchronized (slots)
+        {
+            slots.set(index, this, value);
+        }
+    }
+
+    /**
+     * Removes the value of the variable in the current transaction. The next
+     * access within the transaction initializes the value again.
+     *
+     * @param transactionSupport the transaction support.
+     * @throws IllegalStateException thrown if there is no current
+     *         transaction.
+     */
+    public void remove(
+        TransactionSupport transactionSupport)
+    {
+        Slots slots = getSlots(transactionSupport);
+        synchronized (slots)
+        {
+            slots.set(index, null, null);
+        }
+    }
+
+    /**
+     * Casts a stored value to the type of the variable.
+     *
+     * @param value the value.
+     * @return the value.
+     */
+    @SuppressWarnings("unchecked")
+    private T cast(
+        Object value)
+    {
+        return (T) value;
+    }
+
+    /**
+     * Invokes {@link #onCompletion} and logs its failure.
+     *
+     * @param value the value of the variable.
+     * @param status the status of the transaction.
+     */
+    private void complete(
+        Object value,
+        int status)
+    {
+        try
+        {
+            onCompletion(cast(value), status);
+        }
+        catch (RuntimeException e)
+        {
+            // Complete the remaining variables anyway.
+            log.error("Cannot complete transaction local value " + value, e);
+        }
+    }
+
+    /**
+     * Returns the values of the current transaction, creating them if
+     * necessary.
+     *
+     * @param transactionSupport the transaction support.
+     * @return the values.
+     * @throws IllegalStateException thrown if there is no current
+     *         transaction.
+     */
+    private static Slots getSlots(
+        TransactionSupport transactionSupport)
+    {
+        Slots slots = (Slots) transactionSupport.getResource(SLOTS_KEY);
+        if (slots == null)
+        {
+            slots = new Slots(nextIndex.get());
+            try
+            {
+                transactionSupport.registerSynchronization(slots);
+            }
+            catch (RollbackException e)
+            {
+                throw new IllegalStateException(e);
+            }
+            catch (SystemException e)
+            {
+                throw new IllegalStateException(e);
+            }
+
+            transactionSupport.putResource(SLOTS_KEY, slots);
+        }
+
+        return slots;
+    }
+
+    /**
+     * <p>
+     * Values of the variables in a transaction, indexed by the indexes of the
+     * variables. Guarded by its own monitor, as a transaction may be shared by
+     * several threads.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class Slots
+    implements Synchronization
+    {
+        private Object[] values;
+
+        private TransactionLocal<?>[] owners;
+
+        /**
+         * Creates new slots.
+         *
+         * @param capacity the initial number of slots.
+         */
+        Slots(
+            int capacity)
+        {
+            values = new Object[Math.max(capacity, 1)];
+            owners = new TransactionLocal<?>[values.length];
+        }
+
+        /**
+         * Checks if a slot is set.
+         *
+         * @param index the index of the slot.
+         * @return {@code true} if the slot is set.
+         */
+        boolean isSet(
+            int index)
+        {
+            return index < owners.length && owners[index] != null;
+        }
+
+        /**
+         * Returns the value of a slot.
+         *
+         * @param index the index of the slot.
+         * @return the value.
+         */
+        Object get(
+            int index)
+        {
+            return values[index];
+        }
+
+        /**
+         * Sets the value of a slot, growing the slots if necessary.
+         *
+         * @param index the index of the slot.
+         * @param owner the variable or {@code null} to clear the slot.
+         * @param value the value.
+         */
+        void set(
+            int index,
+            TransactionLocal<?> owner,
+            Object value)
+        {
+            if (index >= values.length)
+            {
+                int length = Math.max(values.length * 2, index + 1);
+                Object[] newValues = new Object[length];
+                TransactionLocal<?>[] newOwners =
+                    new TransactionLocal<?>[length];
+                System.arraycopy(values, 0, newValues, 0, values.length);
+                System.arraycopy(owners, 0, newOwners, 0, owners.length);
+                values = newValues;
+                owners = newOwners;
+            }
+
+            values[index] = value;
+            owners[index] = owner;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void beforeCompletion()
+        {
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void afterCompletion(
+            int status)
+        {
+            Object[] completedValues;
+            TransactionLocal<?>[] completedOwners;
+            synchronized (this)
+            {
+                completedValues = values;
+                completedOwners = owners;
+                values = new Object[0];
+                owners = new TransactionLocal<?>[0];
+            }
+
+            for (int i = 0; i < completedOwners.length; i++)
+            {
+                if (completedOwners[i] != null)
+                {
+                    completedOwners[i].complete(completedValues[i], status);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import javax.enterprise.util.Nonbinding;
+
+import javax.interceptor.InterceptorBinding;
+
+/**
+ * <p>
+ * Interceptor binding that caches the results of a method for the lifetime
+ * of the current transaction. The results are keyed by the method and its
+ * arguments, so the arguments must implement {@code equals} and
+ * {@code hashCode}. Exceptions are not cached, and the method is invoked
+ * directly if there is no current transaction.
+ * </p>
+ *
+ * <p>
+ * The results are grouped into regions. When the transaction modifies the
+ * underlying data, the region must be invalidated either with
+ * {@link InvalidatesMemoized} or through {@link MemoizedResults}. A cached
+ * result is returned as is, so the callers must not modify it.
+ * </p>
+ *
+ * <p>
+ * The {@code org.softus.cdi.transaction.impl.MemoizingInterceptor}
+ * interceptor must be enabled in {@code beans.xml} after the
+ * {@code TransactionalInterceptor}, so the results are cached in the
+ * transaction the method is invoked in.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+@Target({ ElementType.TYPE, ElementType.METHOD })
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+@InterceptorBinding
+public @interface TransactionMemoized
+{
+    /**
+     * The name of the region. Defaults to the name of the declaring class.
+     */
+    @Nonbinding
+    String value() default "";
+}
@@ -0,0 +1,56 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction;
+
+/**
+ * <p>
+ * Thrown when a transaction is not started because the concurrency limit of
+ * its method has been reached or the circuit breaker around the transaction
+ * manager is open.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ * @see ConcurrencyLimit
+ */
+public class TransactionRejectedException
+extends RuntimeException
+{
+    private static final long serialVersionUID = 3920516744861231807L;
+
+    /**
+     * Creates a new exception.
+     *
+     * @param message the detail message.
+     */
+    public TransactionRejectedException(
+        String message)
+    {
+        super(message);
+    }
+
+    /**
+     * Creates a new exception.
+     *
+     * @param message the detail message.
+     * @param cause the cause.
+     */
+    public TransactionRejectedException(
+        String message,
+        Throwable cause)
+    {
+        super(message, cause);
+    }
+}
@@ -34,6 +34,11 @@ import javax.enterprise.context.NormalScope;
  * back.
  * </p>
  *
+ * <p>
+ * The lifecycle of a bean is bound to the transactions of the
+ * {@link TransactionSupport} bean named by {@link #transactionSupport()}.
+ * </p>
+ *
  * @author Vlad Arkhipov
  */
 @Retention(RetentionPolicy.RUNTIME)
@@ -43,4 +48,11 @@ import javax.enterprise.context.NormalScope;
 @NormalScope
 public @interface TransactionScoped
 {
+    /**
+     * The {@link javax.inject.Named} name of the {@link TransactionSupport}
+     * bean whose transactions own the bean instances, or an empty string for
+     * the default bean. The named bean must declare a qualifier other than
+     * {@link javax.inject.Named}, see {@link Transactional#transactionSupport()}.
+     */
+    String transactionSupport() default "";
 }
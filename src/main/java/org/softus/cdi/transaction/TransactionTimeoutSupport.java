@@ -0,0 +1,56 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction;
+
+import javax.transaction.SystemException;
+
+/**
+ * <p>
+ * A {@link TransactionSupport} that can change the timeout of the
+ * transactions started by the current thread. The timeout overridden at
+ * runtime is only applied by the transaction supports that implement this
+ * interface, the others start the transactions with their own timeout.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public interface TransactionTimeoutSupport
+extends TransactionSupport
+{
+    /**
+     * Modify the timeout value that is associated with the transactions
+     * started by the current thread with the begin method. If an application
+     * has not called this method, the transaction service uses some default
+     * value for the transaction timeout.
+     *
+     * @param seconds the value of the timeout in seconds. If the value is
+     *        zero, the transaction service restores the default value.
+     * @throws SystemException thrown if the transaction manager encounters an
+     *         unexpected error condition.
+     */
+    public void setTransactionTimeout(
+        int seconds)
+    throws SystemException;
+
+    /**
+     * Returns the timeout value set by {@link #setTransactionTimeout} for the
+     * transactions started by the current thread.
+     *
+     * @return the value of the timeout in seconds, or zero if the default
+     *         value is used.
+     */
+    public int getTransactionTimeout();
+}
@@ -22,6 +22,8 @@ import java.lang.annotation.Target;
 
 import javax.ejb.TransactionAttribute;
 
+import javax.enterprise.util.Nonbinding;
+
 import javax.interceptor.InterceptorBinding;
 
 /**
@@ -30,6 +32,22 @@ import javax.interceptor.InterceptorBinding;
  * {@link TransactionAttribute} to control the scope of the transaction.
  * </p>
  *
+ * <p>
+ * A transaction started for a {@link #readOnly()} method is marked read-only
+ * for its whole duration, see {@link ReadOnlyTransactions}. The value
+ * specified on a method overrides the value specified on its class.
+ * </p>
+ *
+ * <p>
+ * The transactions of a method are driven by the {@link TransactionSupport}
+ * bean named by {@link #transactionSupport()}, so the methods that only use
+ * local resources can be served by a cheaper transaction manager than the
+ * methods that need XA. The bean is resolved at bootstrap. The value
+ * specified on a method overrides the value specified on its class. The
+ * {@link TransactionMemoized} and {@link Idempotent} interceptors of the
+ * method keep their state in the transactions of the same bean.
+ * </p>
+ *
  * @author Vlad Arkhipov
  * @see TransactionAttribute
  */
@@ -38,4 +56,19 @@ import javax.interceptor.InterceptorBinding;
 @InterceptorBinding
 public @interface Transactional
 {
+    /**
+     * Whether the transactions started for the method only read data.
+     */
+    @Nonbinding
+    boolean readOnly() default false;
+
+    /**
+     * The {@link javax.inject.Named} name of the {@link TransactionSupport}
+     * bean that drives the transactions of the method, or an empty string for
+     * the default bean. The named bean must declare a qualifier other than
+     * {@link javax.inject.Named}, otherwise it is also a
+     * {@link javax.enterprise.inject.Default} bean and the deployment fails.
+     */
+    @Nonbinding
+    String transactionSupport() default "";
 }
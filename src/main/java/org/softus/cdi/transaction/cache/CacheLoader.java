@@ -0,0 +1,37 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.cache;
+
+/**
+ * <p>
+ * Loads values into a {@link TransactionalCache} on a cache miss.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public interface CacheLoader<K, V>
+{
+    /**
+     * Loads the value for the specified key.
+     *
+     * @param key the key.
+     * @return the value or {@code null} if there is no value for the key.
+     * @throws Exception thrown if the value cannot be loaded.
+     */
+    public V load(
+        K key)
+    throws Exception;
+}
@@ -0,0 +1,40 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.cache;
+
+/**
+ * <p>
+ * Determines which entries are evicted when a {@link TransactionalCache}
+ * exceeds its maximum size.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public enum EvictionPolicy
+{
+    /**
+     * Evicts the least recently used entries first.
+     */
+    LRU,
+
+    /**
+     * Evicts the least frequently used entries first. Access frequencies are
+     * halved each time the number of evicted entries reaches the maximum size
+     * so that entries that were hot a long time ago eventually become eligible
+     * for eviction.
+     */
+    LFU
+}
@@ -0,0 +1,718 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.cache;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.softus.cdi.transaction.TransactionSupport;
+
+/**
+ * <p>
+ * Read-through cache that keeps the changes made within a transaction in a
+ * per-transaction write set. The changes are visible only to the transaction
+ * that made them until it commits, then they are published to the shared
+ * cache. If the transaction rolls back, the changes are discarded.
+ * </p>
+ *
+ * <p>
+ * Outside of a transaction the changes are applied to the shared cache
+ * immediately. If several transactions that changed the same key complete
+ * concurrently, the order of their commits is unknown, so the key is
+ * invalidated instead of being published. A value loaded while a transaction
+ * that changes the same cache is completing is not cached either.
+ * </p>
+ *
+ * <p>
+ * Values loaded by a transaction that has changed the cache are kept in its
+ * write set only, because they may reflect its own uncommitted work. Code that
+ * modifies the underlying data should update or remove the corresponding cache
+ * entries before reading them within the same transaction.
+ * </p>
+ *
+ * <p>
+ * Reads of the shared cache are lock-free. When the number of entries exceeds
+ * the maximum size, the least valuable entries according to the
+ * {@link EvictionPolicy} are evicted in a single pass.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public class TransactionalCache<K, V>
+{
+    private static final Logger log = LoggerFactory
+        .getLogger(TransactionalCache.class);
+
+    /**
+     * Marks a key removed within a transaction.
+     */
+    private static final Object REMOVED = new Object();
+
+    /**
+     * The fraction of the maximum size an eviction pass shrinks the cache to.
+     */
+    private static final float EVICTION_FACTOR = 0.9f;
+
+    private final Object resourceKey = new Object();
+
+    private final TransactionSupport transactionSupport;
+
+    private final CacheLoader<K, V> loader;
+
+    private final int maximumSize;
+
+    private final EvictionPolicy evictionPolicy;
+
+    private final ConcurrentMap<K, CacheEntry<V>> entries;
+
+    private final AtomicInteger size;
+
+    private final AtomicLong publications;
+
+    private final Lock evictionLock;
+
+    private final Map<K, PendingKey> pendingKeys;
+
+    private int evictedSinceAging;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param transactionSupport a {@link TransactionSupport} bean.
+     * @param loader a loader for the cache misses or {@code null} if the cache
+     *        is not read-through.
+     * @param maximumSize the maximum number of entries.
+     * @param evictionPolicy the eviction policy.
+     */
+    public TransactionalCache(
+        TransactionSupport transactionSupport,
+        CacheLoader<K, V> loader,
+        int maximumSize,
+        EvictionPolicy evictionPolicy)
+    {
+        if (transactionSupport == null)
+        {
+            throw new IllegalArgumentException(
+                "No transaction support specified");
+        }
+
+        if (maximumSize <= 0)
+        {
+            throw new IllegalArgumentException(
+                "Maximum size must be positive: " + maximumSize);
+        }
+
+        if (evictionPolicy == null)
+        {
+            throw new IllegalArgumentException("No eviction policy specified");
+        }
+
+        this.transactionSupport = transactionSupport;
+        this.loader = loader;
+        this.maximumSize = maximumSize;
+        this.evictionPolicy = evictionPolicy;
+
+        entries = new ConcurrentHashMap<K, CacheEntry<V>>();
+        size = new AtomicInteger();
+        publications = new AtomicLong();
+        evictionLock = new ReentrantLock();
+        pendingKeys = new HashMap<K, PendingKey>();
+    }
+
+    /**
+     * Returns the value associated with the key, loading it with the
+     * {@link CacheLoader} if it is not cached.
+     *
+     * @param key the key.
+     * @return the value or {@code null} if there is no value for the key.
+     * @throws CacheLoadException thrown if the loader failed.
+     */
+    public V get(
+        K key)
+    {
+        return get(key, true);
+    }
+
+    /**
+     * Returns the value associated with the key if it is cached.
+     *
+     * @param key the key.
+     * @return the value or {@code null} if the key is not cached.
+     */
+    public V getIfPresent(
+        K key)
+    {
+        return get(key, false);
+    }
+
+    /**
+     * Associates the value with the key. Within a transaction, the value is
+     * published when the transaction commits.
+     *
+     * @param key the key.
+     * @param value the value.
+     */
+    public void put(
+        K key,
+        V value)
+    {
+        if (value == null)
+        {
+            throw new IllegalArgumentException("No value specified");
+        }
+
+        change(key, value);
+    }
+
+    /**
+     * Removes the value associated with the key. Within a transaction, the
+     * value is removed from the shared cache when the transaction commits.
+     *
+     * @param key the key.
+     */
+    public void remove(
+        K key)
+    {
+        change(key, REMOVED);
+    }
+
+    /**
+     * Removes all entries from the shared cache immediately, regardless of the
+     * current transaction.
+     */
+    public void invalidateAll()
+    {
+        publications.incrementAndGet();
+        for (K key : entries.keySet())
+        {
+            removeEntry(key);
+        }
+    }
+
+    /**
+     * Returns the number of entries in the shared cache.
+     *
+     * @return the number of entries.
+     */
+    public int size()
+    {
+        return size.get();
+    }
+
+    /**
+     * Looks up the value associated with the key.
+     *
+     * @param key the key.
+     * @param load {@code true} if the value should be loaded on a cache miss.
+     * @return the value or {@code null}.
+     */
+    private V get(
+        K key,
+        boolean load)
+    {
+        if (key == null)
+        {
+            throw new IllegalArgumentException("No key specified");
+        }
+
+        WriteSet writeSet = getWriteSet(false);
+        if (writeSet != null)
+        {
+            Object change = writeSet.changes.get(key);
+            if (change != null && change != REMOVED)
+            {
+                return cast(change);
+            }
+
+            V loaded = writeSet.loaded.get(key);
+            if (loaded != null || change == REMOVED)
+            {
+                return (load && loaded == null) ? load(key, writeSet) : loaded;
+            }
+        }
+
+        CacheEntry<V> entry = entries.get(key);
+        if (entry != null)
+        {
+            entry.touch();
+            return entry.value;
+        }
+
+        return load ? load(key, writeSet) : null;
+    }
+
+    /**
+     * Loads the value and caches it either in the write set or in the shared
+     * cache.
+     *
+     * @param key the key.
+     * @param writeSet the write set of the current transaction or {@code null}.
+     * @return the loaded value or {@code null}.
+     */
+    private V load(
+        K key,
+        WriteSet writeSet)
+    {
+        if (loader == null)
+        {
+            return null;
+        }
+
+        long stamp = publications.get();
+        V value;
+        try
+        {
+            value = loader.load(key);
+        }
+        catch (RuntimeException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new CacheLoadException("Cannot load value for " + key, e);
+        }
+
+        if (value != null)
+        {
+            if (writeSet != null)
+            {
+                writeSet.loaded.put(key, value);
+            }
+            else if (stamp == publications.get())
+            {
+                if (entries.putIfAbsent(key, new CacheEntry<V>(value)) == null)
+                {
+                    size.incrementAndGet();
+                    evictIfNecessary();
+                }
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * Records a change either in the write set of the current transaction or
+     * directly in the shared cache.
+     *
+     * @param key the key.
+     * @param change the new value or {@link #REMOVED}.
+     */
+    private void change(
+        K key,
+        Object change)
+    {
+        if (key == null)
+        {
+            throw new IllegalArgumentException("No key specified");
+        }
+
+        WriteSet writeSet = getWriteSet(true);
+        if (writeSet != null)
+        {
+            writeSet.changes.put(key, change);
+            writeSet.loaded.remove(key);
+        }
+        else
+        {
+            publications.incrementAndGet();
+            publish(key, change);
+            evictIfNecessary();
+        }
+    }
+
+    /**
+     * Applies a change to the shared cache.
+     *
+     * @param key the key.
+     * @param change the new value or {@link #REMOVED}.
+     */
+    private void publish(
+        K key,
+        Object change)
+    {
+        if (change == REMOVED)
+        {
+            removeEntry(key);
+        }
+        else if (entries.put(key, new CacheEntry<V>(this.<V> cast(change))) == null)
+        {
+            size.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes an entry from the shared cache.
+     *
+     * @param key the key.
+     */
+    private void removeEntry(
+        K key)
+    {
+        if (entries.remove(key) != null)
+        {
+            size.decrementAndGet();
+        }
+    }
+
+    /**
+     * Evicts entries if the cache exceeds its maximum size. Only one thread
+     * performs eviction at a time; the others do not wait for it.
+     */
+    private void evictIfNecessary()
+    {
+        if (size.get() <= maximumSize || !evictionLock.tryLock())
+        {
+            return;
+        }
+
+        try
+        {
+            int excess = size.get() - (int) (maximumSize * EVICTION_FACTOR);
+            if (excess <= 0)
+            {
+                return;
+            }
+
+            // Capture the scores first, they change during the sort.
+            @SuppressWarnings("unchecked")
+            Candidate<K, V>[] candidates = new Candidate[entries.size()];
+            int count = 0;
+            for (Map.Entry<K, CacheEntry<V>> e : entries.entrySet())
+            {
+                if (count == candidates.length)
+                {
+                    break;
+                }
+
+                candidates[count++] = new Candidate<K, V>(e.getKey(),
+                    e.getValue(), evictionPolicy);
+            }
+
+            Arrays.sort(candidates, 0, count, Candidate.COMPARATOR);
+
+            int evicted = 0;
+            for (int i = 0; i < count && evicted < excess; i++)
+            {
+                if (entries.remove(candidates[i].key, candidates[i].entry))
+                {
+                    size.decrementAndGet();
+                    evicted++;
+                }
+            }
+
+            // Age the frequencies once per turnover of the cache.
+            evictedSinceAging += evicted;
+            if (evictionPolicy == EvictionPolicy.LFU
+                && evictedSinceAging >= maximumSize)
+            {
+                evictedSinceAging = 0;
+                for (CacheEntry<V> entry : entries.values())
+                {
+                    entry.frequency >>>= 1;
+                }
+            }
+
+            if (log.isDebugEnabled())
+            {
+                log.debug("Evicted " + evicted + " cache entries");
+            }
+        }
+        finally
+        {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the write set of the current transaction.
+     *
+     * @param create {@code true} if the write set should be created if the
+     *        current transaction does not have one yet.
+     * @return the write set or {@code null} if there is no transaction or the
+     *         transaction does not have a write set and {@code create} is
+     *         {@code false}.
+     */
+    private WriteSet getWriteSet(
+        boolean create)
+    {
+        int status;
+        try
+        {
+            status = transactionSupport.getStatus();
+        }
+        catch (SystemException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        if (status != Status.STATUS_ACTIVE
+            && status != Status.STATUS_MARKED_ROLLBACK)
+        {
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        WriteSet writeSet = (WriteSet) transactionSupport
+            .getResource(resourceKey);
+        if (writeSet == null && create)
+        {
+            writeSet = new WriteSet();
+            transactionSupport.putResource(resourceKey, writeSet);
+
+            // A transaction marked for rollback never publishes its changes.
+            if (status == Status.STATUS_ACTIVE)
+            {
+                try
+                {
+                    transactionSupport.registerSynchronization(writeSet);
+                }
+                catch (RollbackException e)
+                {
+                    // The write set is discarded along with the transaction.
+                }
+                catch (SystemException e)
+                {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        return writeSet;
+    }
+
+    /**
+     * Performs an unchecked cast.
+     *
+     * @param value the value.
+     * @return the value.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T cast(
+        Object value)
+    {
+        return (T) value;
+    }
+
+    /**
+     * <p>
+     * Changes made by a transaction. Publishes the changes after the
+     * transaction commits.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private class WriteSet
+    implements Synchronization
+    {
+        private final Map<K, Object> changes = new HashMap<K, Object>();
+
+        private final Map<K, V> loaded = new HashMap<K, V>();
+
+        /**
+         * {@inheritDoc}
+         */
+        public void beforeCompletion()
+        {
+            publications.incrementAndGet();
+            synchronized (pendingKeys)
+            {
+                for (K key : changes.keySet())
+                {
+                    PendingKey pending = pendingKeys.get(key);
+                    if (pending == null)
+                    {
+                        pending = new PendingKey();
+                        pendingKeys.put(key, pending);
+                    }
+                    else
+                    {
+                        pending.conflicted = true;
+                    }
+
+                    pending.count++;
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void afterCompletion(
+            int status)
+        {
+            boolean committed = status == Status.STATUS_COMMITTED;
+            publications.incrementAndGet();
+            synchronized (pendingKeys)
+            {
+                for (Map.Entry<K, Object> e : changes.entrySet())
+                {
+                    K key = e.getKey();
+                    PendingKey pending = pendingKeys.get(key);
+                    boolean conflicted = false;
+
+                    // Absent if beforeCompletion was not called, e.g. when the
+                    // transaction was rolled back.
+                    if (pending != null)
+                    {
+                        conflicted = pending.conflicted;
+                        if (--pending.count == 0)
+                        {
+                            pendingKeys.remove(key);
+                        }
+                    }
+
+                    if (committed)
+                    {
+                        publish(key, conflicted ? REMOVED : e.getValue());
+                    }
+                }
+            }
+
+            if (committed)
+            {
+                evictIfNecessary();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Tracks the transactions that are completing with a change of the same
+     * key.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class PendingKey
+    {
+        private int count;
+
+        private boolean conflicted;
+    }
+
+    /**
+     * <p>
+     * An entry of the shared cache.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class CacheEntry<V>
+    {
+        private final V value;
+
+        private volatile long lastAccess;
+
+        private volatile int frequency;
+
+        /**
+         * Creates a new entry.
+         *
+         * @param value the value.
+         */
+        CacheEntry(
+            V value)
+        {
+            this.value = value;
+            lastAccess = System.nanoTime();
+        }
+
+        /**
+         * Records an access to the entry. The updates are racy, lost updates
+         * only make the eviction slightly less precise.
+         */
+        void touch()
+        {
+            lastAccess = System.nanoTime();
+            frequency++;
+        }
+    }
+
+    /**
+     * <p>
+     * An entry considered for eviction with its score captured.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class Candidate<K, V>
+    {
+        static final Comparator<Candidate<?, ?>> COMPARATOR =
+            new Comparator<Candidate<?, ?>>()
+            {
+                public int compare(
+                    Candidate<?, ?> o1,
+                    Candidate<?, ?> o2)
+                {
+                    if (o1.frequency != o2.frequency)
+                    {
+                        return o1.frequency < o2.frequency ? -1 : 1;
+                    }
+
+                    long d = o1.lastAccess - o2.lastAccess;
+                    return d < 0 ? -1 : (d > 0 ? 1 : 0);
+                }
+            };
+
+        private final K key;
+
+        private final CacheEntry<V> entry;
+
+        private final int frequency;
+
+        private final long lastAccess;
+
+        /**
+         * Creates a new candidate.
+         *
+         * @param key the key.
+         * @param entry the entry.
+         * @param evictionPolicy the eviction policy.
+         */
+        Candidate(
+            K key,
+            CacheEntry<V> entry,
+            EvictionPolicy evictionPolicy)
+        {
+            this.key = key;
+            this.entry = entry;
+            frequency = evictionPolicy == EvictionPolicy.LFU ? entry.frequency
+                : 0;
+            lastAccess = entry.lastAccess;
+        }
+    }
+}
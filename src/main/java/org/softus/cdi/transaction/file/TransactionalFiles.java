@@ -0,0 +1,382 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.softus.cdi.transaction.TransactionSupport;
+
+/**
+ * <p>
+ * Files written within a transaction that replace their targets only when
+ * the transaction commits.
+ * </p>
+ *
+ * <p>
+ * The content of a file is written to a temporary file in the directory of
+ * the target, so the replacement is an atomic rename. Before the transaction
+ * commits the temporary files are flushed to the disk, and if they cannot be
+ * flushed, the transaction is rolled back and {@link FileFlushException} is
+ * thrown. When the transaction commits the temporary files are renamed to
+ * their targets, when it rolls back they are deleted.
+ * </p>
+ *
+ * <p>
+ * On the platforms that cannot rename a file over an existing one, the
+ * target is first renamed aside and restored if the temporary file cannot
+ * take its place, so the target is never deleted before its new content is
+ * in place. The targets that cannot be replaced keep their previous content
+ * and their temporary files are kept. As the transaction has already been
+ * committed by then and an exception thrown from its completion does not
+ * reach the caller, the targets are only logged as errors along with their
+ * temporary files, so the new content can be recovered.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public class TransactionalFiles
+{
+    private static final Logger log = LoggerFactory
+        .getLogger(TransactionalFiles.class);
+
+    private final Object resourceKey = new Object();
+
+    private final TransactionSupport transactionSupport;
+
+    /**
+     * Creates new transactional files.
+     *
+     * @param transactionSupport a {@link TransactionSupport} bean.
+     */
+    public TransactionalFiles(
+        TransactionSupport transactionSupport)
+    {
+        if (transactionSupport == null)
+        {
+            throw new IllegalArgumentException(
+                "No transaction support specified");
+        }
+
+        this.transactionSupport = transactionSupport;
+    }
+
+    /**
+     * Opens a channel that writes the new content of a file within the
+     * current transaction. The channel is closed when the transaction
+     * completes and must not be closed by the caller. Opening the same file
+     * again within the transaction returns the same channel.
+     *
+     * @param file the file.
+     * @return the channel.
+     * @throws IOException thrown if the temporary file cannot be created.
+     * @throws IllegalStateException thrown if there is no active transaction.
+     */
+    public FileChannel open(
+        File file)
+    throws IOException
+    {
+        if (file == null)
+        {
+            throw new IllegalArgumentException("No file specified");
+        }
+
+        TransactionState state = getState();
+        File target = file.getAbsoluteFile();
+        PendingFile pending = state.files.get(target);
+        if (pending == null)
+        {
+            pending = new PendingFile(target);
+            state.files.put(target, pending);
+        }
+
+        return pending.channel;
+    }
+
+    /**
+     * Retrieves the state of the files in the current transaction.
+     *
+     * @return the state.
+     * @throws IllegalStateException thrown if there is no active transaction.
+     */
+    private TransactionState getState()
+    {
+        int status;
+        try
+        {
+            status = transactionSupport.getStatus();
+        }
+        catch (SystemException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        if (status != Status.STATUS_ACTIVE)
+        {
+            throw new IllegalStateException(
+                "Active transaction is required to write files");
+        }
+
+        TransactionState state = (TransactionState) transactionSupport
+            .getResource(resourceKey);
+        if (state == null)
+        {
+            state = new TransactionState();
+            try
+            {
+                transactionSupport.registerSynchronization(state);
+            }
+            catch (RollbackException e)
+            {
+                throw new IllegalStateException(
+                    "Active transaction is required to write files", e);
+            }
+            catch (SystemException e)
+            {
+                throw new RuntimeException(e);
+            }
+
+            transactionSupport.putResource(resourceKey, state);
+        }
+
+        return state;
+    }
+
+    /**
+     * <p>
+     * A file written within a transaction.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class PendingFile
+    {
+        private final File target;
+
+        private final File temporary;
+
+        private final FileChannel channel;
+
+        /**
+         * Creates a temporary file for the target.
+         *
+         * @param target the target.
+         * @throws IOException thrown if the temporary file cannot be created.
+         */
+        PendingFile(
+            File target)
+        throws IOException
+        {
+            this.target = target;
+            temporary = File.createTempFile("." + target.getName() + ".",
+                ".tmp", target.getParentFile());
+
+            FileChannel channel = null;
+            try
+            {
+                channel = new RandomAccessFile(temporary, "rw").getChannel();
+            }
+            finally
+            {
+                if (channel == null)
+                {
+                    delete();
+                }
+            }
+
+            this.channel = channel;
+        }
+
+        /**
+         * Replaces the target with the temporary file.
+         *
+         * @return {@code false} if the target keeps its previous content.
+         */
+        boolean publish()
+        {
+            close();
+            if (temporary.renameTo(target))
+            {
+                return true;
+            }
+
+            if (!target.exists())
+            {
+                return false;
+            }
+
+            // Some platforms cannot rename a file over an existing one, move
+            // the target aside until the new content is in place.
+            File previous = new File(target.getParentFile(), "."
+                + target.getName() + "." + System.nanoTime() + ".old");
+            if (!target.renameTo(previous))
+            {
+                return false;
+            }
+
+            if (temporary.renameTo(target))
+            {
+                if (!previous.delete())
+                {
+                    log.warn("Cannot delete " + previous);
+                }
+
+                return true;
+            }
+
+            if (!previous.renameTo(target))
+            {
+                log.error("Cannot restore " + target + " from " + previous);
+            }
+
+            return false;
+        }
+
+        /**
+         * Closes the channel and deletes the temporary file.
+         */
+        void discard()
+        {
+            close();
+            delete();
+        }
+
+        /**
+         * Closes the channel.
+         */
+        private void close()
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                log.warn("Cannot close " + temporary, e);
+            }
+        }
+
+        /**
+         * Deletes the temporary file.
+         */
+        private void delete()
+        {
+            if (!temporary.delete() && temporary.exists())
+            {
+                log.warn("Cannot delete " + temporary);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * The files written within a transaction. Flushes the files before the
+     * transaction completes and publishes or discards them after.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private class TransactionState
+    implements Synchronization
+    {
+        private final Map<File, PendingFile> files;
+
+        /**
+         * Creates a new state.
+         */
+        TransactionState()
+        {
+            files = new LinkedHashMap<File, PendingFile>();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void beforeCompletion()
+        {
+            if (files.isEmpty())
+            {
+                return;
+            }
+
+            try
+            {
+                for (PendingFile file : files.values())
+                {
+                    file.channel.force(true);
+                }
+            }
+            catch (IOException e)
+            {
+                try
+                {
+                    transactionSupport.setRollbackOnly();
+                }
+                catch (SystemException se)
+                {
+                    log.warn("Cannot mark the transaction for rollback", se);
+                }
+
+                throw new FileFlushException("Cannot flush the files "
+                    + files.keySet(), e);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void afterCompletion(
+            int status)
+        {
+            List<String> failed = new ArrayList<String>();
+            for (PendingFile file : files.values())
+            {
+                if (status != Status.STATUS_COMMITTED)
+                {
+                    file.discard();
+                }
+                else if (!file.publish())
+                {
+                    failed.add(file.target + " (new content in "
+                        + file.temporary + ")");
+                }
+            }
+
+            files.clear();
+            if (!failed.isEmpty())
+            {
+                log.error("Cannot replace the files of a committed "
+                    + "transaction: " + failed);
+            }
+        }
+    }
+}
@@ -29,6 +29,7 @@ import javax.transaction.TransactionManager;
 import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.softus.cdi.transaction.TransactionSupport;
+import org.softus.cdi.transaction.TransactionTimeoutSupport;
 
 /**
  * <p>
@@ -40,8 +41,10 @@ import org.softus.cdi.transaction.TransactionSupport;
  * @author Vlad Arkhipov
  */
 public abstract class AbstractTransactionSupport
-implements TransactionSupport
+implements TransactionTimeoutSupport
 {
+    private final ThreadLocal<Integer> timeout = new ThreadLocal<Integer>();
+
     private TransactionManager transactionManager;
 
     private TransactionSynchronizationRegistry synchronizationRegistry;
@@ -144,12 +147,53 @@ implements TransactionSupport
         transactionManager.setRollbackOnly();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public void setTransactionTimeout(
+        int seconds)
+    throws SystemException
+    {
+        transactionManager.setTransactionTimeout(seconds);
+        if (seconds != 0)
+        {
+            timeout.set(seconds);
+        }
+        else
+        {
+            timeout.remove();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getTransactionTimeout()
+    {
+        Integer seconds = timeout.get();
+        return seconds != null ? seconds : 0;
+    }
+
     /**
      * {@inheritDoc}
      */
     public void registerSynchronization(
         Synchronization synchronization)
     {
+        // Attribute the commit time to the synchronization if the transaction
+        // is being profiled. The resource is not looked up unless profiling
+        // is enabled.
+        if (CommitProfile.isEnabled())
+        {
+            Object profile = synchronizationRegistry
+                .getResource(CommitProfile.KEY);
+            if (profile instanceof CommitProfile)
+            {
+                synchronization = ((CommitProfile) profile)
+                    .wrap(synchronization);
+            }
+        }
+
         synchronizationRegistry
             .registerInterposedSynchronization(synchronization);
     }
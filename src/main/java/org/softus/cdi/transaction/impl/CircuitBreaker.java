@@ -0,0 +1,453 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.softus.cdi.transaction.TransactionRejectedException;
+
+/**
+ * <p>
+ * Stops starting transactions while the transaction manager keeps failing,
+ * so the callers are rejected immediately instead of blocking on the same
+ * failure.
+ * </p>
+ *
+ * <p>
+ * The outcome of each transaction is counted over a window. A transaction
+ * fails if a call to the transaction manager throws a system error or the
+ * calls take longer than the slow call time. When at least the minimum
+ * number of transactions have completed within the window and the share of
+ * the failed ones reaches the failure rate, the circuit opens and no
+ * transaction is started for the cool-down period. After the cool-down the
+ * circuit is half-open: a few probe transactions are started, the circuit
+ * closes if they succeed and opens again if any of them fails or does not
+ * complete within the probe timeout. If the probe timeout passes with no
+ * probe in flight, because too few transactions have been started, a new
+ * round of probes begins.
+ * </p>
+ *
+ * <p>
+ * Every transaction allowed by {@link #allow()} must be settled exactly once,
+ * either by {@link #record} when it completes or by {@link #release} if it
+ * has not been started.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+class CircuitBreaker
+implements CircuitBreakerMBean
+{
+    private static final Logger log = LoggerFactory
+        .getLogger(CircuitBreaker.class);
+
+    private static final int CLOSED = 0;
+
+    private static final int OPEN = 1;
+
+    private static final int HALF_OPEN = 2;
+
+    private static final String[] STATE_NAMES = { "CLOSED", "OPEN",
+        "HALF_OPEN" };
+
+    private final int failureRate;
+
+    private final int minCalls;
+
+    private final long window;
+
+    private final long slowCall;
+
+    private final long coolDown;
+
+    private final int probes;
+
+    private final long probeTimeout;
+
+    private final AtomicInteger state;
+
+    private volatile long openedAt;
+
+    private final AtomicReference<Window> current;
+
+    private final AtomicReference<ProbeRound> round;
+
+    private final AtomicLong trips;
+
+    private final AtomicLong rejected;
+
+    /**
+     * Creates a new circuit breaker.
+     *
+     * @param failureRate the percentage of the failed calls that opens the
+     *        circuit.
+     * @param minCalls the minimum number of calls within the window needed to
+     *        open the circuit.
+     * @param window the length of the window in milliseconds.
+     * @param slowCall the time in milliseconds after which a call is
+     *        considered failed, or 0 if the calls are not timed.
+     * @param coolDown the time in milliseconds the circuit stays open.
+     * @param probes the number of probe transactions started while the
+     *        circuit is half-open.
+     * @param probeTimeout the time in milliseconds the probe transactions
+     *        have to complete before the circuit opens again.
+     */
+    CircuitBreaker(
+        int failureRate,
+        int minCalls,
+        long window,
+        long slowCall,
+        long coolDown,
+        int probes,
+        long probeTimeout)
+    {
+        if (failureRate <= 0 || failureRate > 100)
+        {
+            throw new IllegalArgumentException("Invalid failure rate: "
+                + failureRate);
+        }
+
+        if (minCalls <= 0 || window <= 0 || slowCall < 0 || coolDown < 0
+            || probes <= 0 || probeTimeout <= 0)
+        {
+            throw new IllegalArgumentException("Invalid circuit settings: "
+                + "minCalls " + minCalls + ", window " + window
+                + ", slowCall " + slowCall + ", coolDown " + coolDown
+                + ", probes " + probes + ", probeTimeout " + probeTimeout);
+        }
+
+        this.failureRate = failureRate;
+        this.minCalls = minCalls;
+        this.window = TimeUnit.MILLISECONDS.toNanos(window);
+        this.slowCall = TimeUnit.MILLISECONDS.toNanos(slowCall);
+        this.coolDown = TimeUnit.MILLISECONDS.toNanos(coolDown);
+        this.probes = probes;
+        this.probeTimeout = TimeUnit.MILLISECONDS.toNanos(probeTimeout);
+
+        state = new AtomicInteger(CLOSED);
+        current = new AtomicReference<Window>(new Window(System
+            .nanoTime()));
+        round = new AtomicReference<ProbeRound>();
+        trips = new AtomicLong();
+        rejected = new AtomicLong();
+    }
+
+    /**
+     * Checks if a transaction can be started.
+     *
+     * @return the round of probes the transaction belongs to, or {@code null}
+     *         if the transaction is not a probe.
+     * @throws TransactionRejectedException thrown if the circuit is open or
+     *         all the probe transactions have been started.
+     */
+    ProbeRound allow()
+    {
+        int s = state.get();
+        if (s == CLOSED)
+        {
+            return null;
+        }
+
+        long now = System.nanoTime();
+        if (s == OPEN)
+        {
+            if (now - openedAt < coolDown)
+            {
+                throw reject("open");
+            }
+
+            ProbeRound next = new ProbeRound(now);
+            if (state.compareAndSet(OPEN, HALF_OPEN))
+            {
+                round.set(next);
+                log.info("Transaction manager circuit is half-open, starting "
+                    + probes + " probe transactions");
+            }
+        }
+
+        ProbeRound r = round.get();
+        if (state.get() != HALF_OPEN || r == null)
+        {
+            throw reject("half-open");
+        }
+
+        if (now - r.start > probeTimeout)
+        {
+            // A probe is in flight if it has been started but has neither
+            // succeeded nor failed, as a failed probe opens the circuit.
+            int inFlight = r.started.get() - r.succeeded.get();
+            if (inFlight > 0)
+            {
+                trip(HALF_OPEN, now, inFlight + " probe transactions have "
+                    + "not completed within "
+                    + TimeUnit.NANOSECONDS.toMillis(probeTimeout) + " ms");
+                throw reject("open");
+            }
+
+            ProbeRound next = new ProbeRound(now);
+            r = round.compareAndSet(r, next) ? next : round.get();
+            if (state.get() != HALF_OPEN || r == null)
+            {
+                throw reject("half-open");
+            }
+        }
+
+        if (r.started.incrementAndGet() > probes)
+        {
+            r.started.decrementAndGet();
+            throw reject("half-open");
+        }
+
+        return r;
+    }
+
+    /**
+     * Gives back the permit of a transaction that has not been started.
+     *
+     * @param probe the round returned by {@link #allow()} or {@code null}.
+     */
+    void release(
+        ProbeRound probe)
+    {
+        if (probe != null)
+        {
+            probe.started.decrementAndGet();
+        }
+    }
+
+    /**
+     * Records the outcome of a transaction.
+     *
+     * @param nanos the time in nanoseconds spent in the calls to the
+     *        transaction manager.
+     * @param failed {@code true} if a call failed with a system error.
+     * @param probe the round returned by {@link #allow()} or {@code null}.
+     */
+    void record(
+        long nanos,
+        boolean failed,
+        ProbeRound probe)
+    {
+        if (slowCall > 0 && nanos > slowCall)
+        {
+            failed = true;
+        }
+
+        long now = System.nanoTime();
+        if (probe != null)
+        {
+            // The probes of an earlier round are ignored.
+            if (state.get() != HALF_OPEN || round.get() != probe)
+            {
+                return;
+            }
+
+            if (failed)
+            {
+                trip(HALF_OPEN, now, "a probe transaction failed");
+            }
+            else if (probe.succeeded.incrementAndGet() >= probes
+                && state.compareAndSet(HALF_OPEN, CLOSED))
+            {
+                current.set(new Window(now));
+                log.info("Transaction manager circuit is closed");
+            }
+
+            return;
+        }
+
+        if (state.get() != CLOSED)
+        {
+            return;
+        }
+
+        Window w = current.get();
+        if (now - w.start > window)
+        {
+            Window next = new Window(now);
+            w = current.compareAndSet(w, next) ? next : current.get();
+        }
+
+        int calls = w.calls.incrementAndGet();
+        if (failed)
+        {
+            int failures = w.failures.incrementAndGet();
+            if (calls >= minCalls && failures * 100L >= failureRate * calls)
+            {
+                trip(CLOSED, now, failures + " of " + calls
+                    + " transactions failed");
+            }
+        }
+    }
+
+    /**
+     * Opens the circuit.
+     *
+     * @param expected the expected state of the circuit.
+     * @param now the current time in nanoseconds.
+     * @param reason the reason for opening the circuit.
+     */
+    private void trip(
+        int expected,
+        long now,
+        String reason)
+    {
+        openedAt = now;
+        if (state.compareAndSet(expected, OPEN))
+        {
+            trips.incrementAndGet();
+            log.warn("Transaction manager circuit is open for "
+                + TimeUnit.NANOSECONDS.toMillis(coolDown) + " ms: " + reason);
+        }
+    }
+
+    /**
+     * Creates the exception for a rejected transaction.
+     *
+     * @param circuit the state of the circuit.
+     * @return the exception.
+     */
+    private TransactionRejectedException reject(
+        String circuit)
+    {
+        rejected.incrementAndGet();
+        return new TransactionRejectedException("Transaction manager circuit "
+            + "is " + circuit + ", transaction is not started");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getState()
+    {
+        return STATE_NAMES[state.get()];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getCallCount()
+    {
+        return current.get().calls.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getFailureCount()
+    {
+        return current.get().failures.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getTripCount()
+    {
+        return trips.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getRejectedCount()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void close()
+    {
+        state.set(CLOSED);
+        current.set(new Window(System.nanoTime()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset()
+    {
+        trips.set(0);
+        rejected.set(0);
+    }
+
+    /**
+     * <p>
+     * The probe transactions started after a cool-down.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    static class ProbeRound
+    {
+        private final long start;
+
+        private final AtomicInteger started;
+
+        private final AtomicInteger succeeded;
+
+        /**
+         * Creates a new round.
+         *
+         * @param start the time the round starts at in nanoseconds.
+         */
+        ProbeRound(
+            long start)
+        {
+            this.start = start;
+            started = new AtomicInteger();
+            succeeded = new AtomicInteger();
+        }
+    }
+
+    /**
+     * <p>
+     * Counts the transactions completed within a window.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class Window
+    {
+        private final long start;
+
+        private final AtomicInteger calls;
+
+        private final AtomicInteger failures;
+
+        /**
+         * Creates a new window.
+         *
+         * @param start the time the window starts at in nanoseconds.
+         */
+        Window(
+            long start)
+        {
+            this.start = start;
+            calls = new AtomicInteger();
+            failures = new AtomicInteger();
+        }
+    }
+}
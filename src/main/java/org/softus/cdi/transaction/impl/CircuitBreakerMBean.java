@@ -0,0 +1,75 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+/**
+ * <p>
+ * Management interface of the circuit breaker around the transaction
+ * manager. Registered as
+ * {@code org.softus.cdi.transaction:type=CircuitBreaker}.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public interface CircuitBreakerMBean
+{
+    /**
+     * Returns the state of the circuit.
+     *
+     * @return {@code CLOSED}, {@code OPEN} or {@code HALF_OPEN}.
+     */
+    public String getState();
+
+    /**
+     * Returns the number of transactions completed within the current
+     * window.
+     *
+     * @return the number of transactions.
+     */
+    public int getCallCount();
+
+    /**
+     * Returns the number of transactions failed within the current window.
+     *
+     * @return the number of transactions.
+     */
+    public int getFailureCount();
+
+    /**
+     * Returns the number of times the circuit has opened.
+     *
+     * @return the number of times.
+     */
+    public long getTripCount();
+
+    /**
+     * Returns the number of transactions rejected while the circuit was open
+     * or half-open.
+     *
+     * @return the number of transactions.
+     */
+    public long getRejectedCount();
+
+    /**
+     * Closes the circuit and starts a new window.
+     */
+    public void close();
+
+    /**
+     * Resets the counters.
+     */
+    public void reset();
+}
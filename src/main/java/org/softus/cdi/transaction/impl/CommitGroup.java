@@ -0,0 +1,828 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.softus.cdi.transaction.GroupCommit;
+import org.softus.cdi.transaction.TransactionSupport;
+
+import org.softus.cdi.transaction.trace.TraceEvent;
+import org.softus.cdi.transaction.trace.TraceRecorder;
+
+/**
+ * <p>
+ * Executes concurrent invocations of a {@link GroupCommit} method within one
+ * transaction.
+ * </p>
+ *
+ * <p>
+ * The first caller that finds no group being executed becomes the leader. The
+ * leader waits for the window to pass or the batch to fill up, begins the
+ * transaction of the queued invocations and suspends it. Each caller in turn
+ * resumes the transaction on its own thread, proceeds with its invocation and
+ * suspends the transaction again, so the invocations keep their own thread
+ * context, such as the request scope, the security identity and the thread
+ * locals. Once every caller has finished, the leader commits the transaction
+ * and hands the leadership over to the first caller queued in the meantime.
+ * If the group fails, each caller executes its invocation within its own
+ * transaction.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+class CommitGroup
+{
+    private static final Logger log = LoggerFactory
+        .getLogger(CommitGroup.class);
+
+    private final TransactionalMethod method;
+
+    private final long window;
+
+    private final int batchSize;
+
+    private final Lock lock;
+
+    private final Condition changed;
+
+    private final LinkedList<Unit> pending;
+
+    private boolean leaderActive;
+
+    private volatile Thread executor;
+
+    private long groupNanos;
+
+    /**
+     * Creates a new group.
+     *
+     * @param method the method.
+     * @param window the maximum time in milliseconds an invocation waits for
+     *        other invocations.
+     * @param batchSize the maximum number of invocations in a group.
+     */
+    CommitGroup(
+        TransactionalMethod method,
+        long window,
+        int batchSize)
+    {
+        if (window < 0)
+        {
+            throw new IllegalArgumentException("Invalid window: " + window);
+        }
+
+        if (batchSize <= 0)
+        {
+            throw new IllegalArgumentException("Invalid batch size: "
+                + batchSize);
+        }
+
+        this.method = method;
+        this.window = TimeUnit.MILLISECONDS.toNanos(window);
+        this.batchSize = batchSize;
+
+        lock = new ReentrantLock();
+        changed = lock.newCondition();
+        pending = new LinkedList<Unit>();
+    }
+
+    /**
+     * Executes an invocation as a part of a group. The calling thread must not
+     * be associated with a transaction.
+     *
+     * @param current the metadata of the method in effect for the
+     *        invocation.
+     * @param invocation the invocation.
+     * @param transactionSupport the transaction support.
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     * @param breaker the circuit breaker the outcome of the invocation is
+     *        recorded to or {@code null} if it is disabled.
+     * @param probe the probe round of the invocation or {@code null}.
+     * @return the result of the invocation.
+     * @throws Exception thrown if the invocation or its transaction failed.
+     */
+    Object execute(
+        TransactionalMethod current,
+        Callable<?> invocation,
+        TransactionSupport transactionSupport,
+        TraceRecorder trace,
+        CircuitBreaker breaker,
+        CircuitBreaker.ProbeRound probe)
+    throws Exception
+    {
+        Unit unit = new Unit(current, invocation);
+        boolean failed = false;
+        try
+        {
+            run(unit, transactionSupport, trace);
+            return unit.getResult();
+        }
+        catch (Exception e)
+        {
+            failed = TransactionDemarcation.isSystemError(e);
+            throw e;
+        }
+        finally
+        {
+            // Each invocation is charged the time of every transaction it
+            // has waited for, as if it had started the transaction alone.
+            if (breaker != null)
+            {
+                breaker.record(unit.managerNanos, failed, probe);
+            }
+        }
+    }
+
+    /**
+     * Executes an invocation as a part of a group or alone and stores its
+     * outcome in the invocation.
+     *
+     * @param unit the invocation.
+     * @param transactionSupport the transaction support.
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     */
+    private void run(
+        Unit unit,
+        TransactionSupport transactionSupport,
+        TraceRecorder trace)
+    {
+        // A group method invoked by the thread executing a group cannot wait
+        // for the group.
+        if (executor == Thread.currentThread())
+        {
+            executeAlone(unit, transactionSupport, trace);
+            return;
+        }
+
+        lock.lock();
+        try
+        {
+            pending.add(unit);
+            if (!leaderActive)
+            {
+                leaderActive = true;
+                unit.leader = true;
+            }
+            else if (pending.size() >= batchSize)
+            {
+                changed.signalAll();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        while (true)
+        {
+            int state;
+            lock.lock();
+            try
+            {
+                while (unit.state == Unit.QUEUED && !unit.leader
+                    || unit.state == Unit.FINISHED)
+                {
+                    changed.awaitUninterruptibly();
+                }
+
+                state = unit.state;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            if (state == Unit.QUEUED)
+            {
+                lead(unit, transactionSupport, trace);
+            }
+            else if (state == Unit.TURN)
+            {
+                proceed(unit, transactionSupport);
+            }
+            else
+            {
+                if (state == Unit.ALONE)
+                {
+                    executeAlone(unit, transactionSupport, trace);
+                }
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits for the group to fill up, executes it and hands the leadership
+     * over.
+     *
+     * @param own the invocation of the leader.
+     * @param transactionSupport the transaction support.
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     */
+    private void lead(
+        Unit own,
+        TransactionSupport transactionSupport,
+        TraceRecorder trace)
+    {
+        List<Unit> batch;
+        boolean interrupted = false;
+        lock.lock();
+        try
+        {
+            long deadline = System.nanoTime() + window;
+            long remaining = window;
+            while (pending.size() < batchSize && remaining > 0)
+            {
+                try
+                {
+                    changed.awaitNanos(remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                    break;
+                }
+
+                remaining = deadline - System.nanoTime();
+            }
+
+            batch = new ArrayList<Unit>(Math.min(pending.size(), batchSize));
+            while (!pending.isEmpty() && batch.size() < batchSize)
+            {
+                batch.add(pending.removeFirst());
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        int state = Unit.ALONE;
+        groupNanos = 0;
+        try
+        {
+            if (batch.size() > 1)
+            {
+                state = executeBatch(own, batch, transactionSupport, trace);
+            }
+        }
+        finally
+        {
+            lock.lock();
+            try
+            {
+                for (Unit unit : batch)
+                {
+                    if (state == Unit.ALONE)
+                    {
+                        unit.reset();
+                    }
+
+                    unit.managerNanos += groupNanos;
+                    unit.state = state;
+                }
+
+                if (pending.isEmpty())
+                {
+                    leaderActive = false;
+                }
+                else
+                {
+                    pending.getFirst().leader = true;
+                }
+
+                changed.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Executes the invocations within one transaction. Each invocation
+     * proceeds on the thread of its caller.
+     *
+     * @param own the invocation of the leader.
+     * @param batch the invocations.
+     * @param transactionSupport the transaction support.
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     * @return {@link Unit#DONE} if the transaction has been committed or has
+     *         not been started, {@link Unit#ALONE} if the invocations must be
+     *         executed one by one.
+     */
+    private int executeBatch(
+        Unit own,
+        List<Unit> batch,
+        TransactionSupport transactionSupport,
+        TraceRecorder trace)
+    {
+        if (log.isDebugEnabled())
+        {
+            log.debug("Executing a group of " + batch.size()
+                + " invocations of " + method);
+        }
+
+        Transaction transaction;
+        try
+        {
+            groupNanos += begin(own.method, transactionSupport, trace);
+        }
+        catch (Exception e)
+        {
+            for (Unit unit : batch)
+            {
+                unit.error = e;
+            }
+
+            return Unit.DONE;
+        }
+
+        try
+        {
+            transaction = transactionSupport.suspend();
+        }
+        catch (Exception e)
+        {
+            log.debug("Cannot suspend the group transaction", e);
+            try
+            {
+                groupNanos += rollback(transactionSupport, trace);
+            }
+            catch (Exception re)
+            {
+                log.warn("Cannot roll back the group transaction", re);
+            }
+
+            return Unit.ALONE;
+        }
+
+        boolean failed = false;
+        for (Unit unit : batch)
+        {
+            lock.lock();
+            try
+            {
+                unit.transaction = transaction;
+                unit.state = Unit.TURN;
+                changed.signalAll();
+                while (unit != own && unit.state == Unit.TURN)
+                {
+                    changed.awaitUninterruptibly();
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            if (unit == own)
+            {
+                proceed(own, transactionSupport);
+            }
+
+            if (unit.failed)
+            {
+                failed = true;
+                break;
+            }
+        }
+
+        try
+        {
+            transactionSupport.resume(transaction);
+        }
+        catch (Exception e)
+        {
+            log.warn("Cannot resume the group transaction", e);
+            try
+            {
+                transaction.rollback();
+            }
+            catch (Exception re)
+            {
+                log.warn("Cannot roll back the group transaction", re);
+            }
+
+            return Unit.ALONE;
+        }
+
+        try
+        {
+            if (failed || isMarkedRollback(transactionSupport))
+            {
+                groupNanos += rollback(transactionSupport, trace);
+            }
+            else
+            {
+                groupNanos += commit(transactionSupport, trace);
+                return Unit.DONE;
+            }
+        }
+        catch (Exception e)
+        {
+            log.debug("Group commit failed", e);
+        }
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("Group of " + batch.size() + " invocations of " + method
+                + " failed, executing the invocations one by one");
+        }
+
+        return Unit.ALONE;
+    }
+
+    /**
+     * Proceeds with an invocation within the transaction of its group on the
+     * current thread.
+     *
+     * @param unit the invocation.
+     * @param transactionSupport the transaction support.
+     */
+    private void proceed(
+        Unit unit,
+        TransactionSupport transactionSupport)
+    {
+        try
+        {
+            transactionSupport.resume(unit.transaction);
+        }
+        catch (Exception e)
+        {
+            log.debug("Cannot resume the group transaction", e);
+            finish(unit, true);
+            return;
+        }
+
+        boolean failed = true;
+        executor = Thread.currentThread();
+        try
+        {
+            unit.invoke();
+            failed = unit.needsRollback()
+                || isMarkedRollback(transactionSupport);
+        }
+        finally
+        {
+            executor = null;
+            try
+            {
+                transactionSupport.suspend();
+            }
+            catch (Exception e)
+            {
+                log.warn("Cannot suspend the group transaction", e);
+                failed = true;
+            }
+
+            finish(unit, failed);
+        }
+    }
+
+    /**
+     * Hands the turn back to the leader.
+     *
+     * @param unit the invocation.
+     * @param failed {@code true} if the transaction must be rolled back.
+     */
+    private void finish(
+        Unit unit,
+        boolean failed)
+    {
+        lock.lock();
+        try
+        {
+            unit.failed = failed;
+            unit.transaction = null;
+            unit.state = Unit.FINISHED;
+            changed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Executes an invocation within its own transaction.
+     *
+     * @param unit the invocation.
+     * @param transactionSupport the transaction support.
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     */
+    private void executeAlone(
+        Unit unit,
+        TransactionSupport transactionSupport,
+        TraceRecorder trace)
+    {
+        try
+        {
+            unit.managerNanos += begin(unit.method, transactionSupport, trace);
+        }
+        catch (Exception e)
+        {
+            unit.error = e;
+            return;
+        }
+
+        unit.invoke();
+        try
+        {
+            if (unit.needsRollback()
+                || isMarkedRollback(transactionSupport))
+            {
+                unit.managerNanos += rollback(transactionSupport, trace);
+            }
+            else
+            {
+                unit.managerNanos += commit(transactionSupport, trace);
+            }
+        }
+        catch (Exception e)
+        {
+            // The exception of the invocation takes precedence.
+            if (unit.error == null)
+            {
+                unit.error = e;
+            }
+        }
+    }
+
+    /**
+     * Starts a new transaction.
+     *
+     * @param current the metadata of the method in effect.
+     * @param transactionSupport the transaction support.
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     * @return the time in nanoseconds the transaction manager took.
+     * @throws Exception thrown if the transaction cannot be started.
+     */
+    private long begin(
+        TransactionalMethod current,
+        TransactionSupport transactionSupport,
+        TraceRecorder trace)
+    throws Exception
+    {
+        long start = System.nanoTime();
+        TransactionDemarcation.begin(transactionSupport, current.getTimeout());
+        return record(trace, TraceEvent.BEGIN, start);
+    }
+
+    /**
+     * Commits the current transaction.
+     *
+     * @param transactionSupport the transaction support.
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     * @return the time in nanoseconds the transaction manager took.
+     * @throws Exception thrown if the transaction cannot be committed.
+     */
+    private long commit(
+        TransactionSupport transactionSupport,
+        TraceRecorder trace)
+    throws Exception
+    {
+        long start = System.nanoTime();
+        TraceEvent event = TraceEvent.ROLLBACK;
+        try
+        {
+            transactionSupport.commit();
+            event = TraceEvent.COMMIT;
+        }
+        finally
+        {
+            record(trace, event, start);
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Rolls back the current transaction.
+     *
+     * @param transactionSupport the transaction support.
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     * @return the time in nanoseconds the transaction manager took.
+     * @throws Exception thrown if the transaction cannot be rolled back.
+     */
+    private long rollback(
+        TransactionSupport transactionSupport,
+        TraceRecorder trace)
+    throws Exception
+    {
+        long start = System.nanoTime();
+        transactionSupport.rollback();
+        return record(trace, TraceEvent.ROLLBACK, start);
+    }
+
+    /**
+     * Checks if the current transaction is marked for rollback.
+     *
+     * @param transactionSupport the transaction support.
+     * @return {@code true} if the transaction is marked for rollback or its
+     *         status is unknown.
+     */
+    private static boolean isMarkedRollback(
+        TransactionSupport transactionSupport)
+    {
+        try
+        {
+            return transactionSupport.getStatus()
+                == Status.STATUS_MARKED_ROLLBACK;
+        }
+        catch (Exception e)
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Records an event if tracing is enabled.
+     *
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     * @param event the event.
+     * @param start the time the event started at in nanoseconds.
+     * @return the time in nanoseconds the event took.
+     */
+    private long record(
+        TraceRecorder trace,
+        TraceEvent event,
+        long start)
+    {
+        long nanos = System.nanoTime() - start;
+        if (trace != null)
+        {
+            trace.record(method.getId(), method.getAttribute().ordinal(),
+                event, nanos);
+        }
+
+        return nanos;
+    }
+
+    /**
+     * <p>
+     * A queued invocation.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class Unit
+    {
+        /**
+         * The invocation waits for the group.
+         */
+        static final int QUEUED = 0;
+
+        /**
+         * The invocation proceeds within the transaction of the group.
+         */
+        static final int TURN = 1;
+
+        /**
+         * The invocation has proceeded and waits for the transaction of the
+         * group to complete.
+         */
+        static final int FINISHED = 2;
+
+        /**
+         * The outcome of the invocation is final.
+         */
+        static final int DONE = 3;
+
+        /**
+         * The invocation must be executed within its own transaction.
+         */
+        static final int ALONE = 4;
+
+        private final TransactionalMethod method;
+
+        private final Callable<?> invocation;
+
+        private Object result;
+
+        private Throwable error;
+
+        private boolean leader;
+
+        private int state;
+
+        private boolean failed;
+
+        private Transaction transaction;
+
+        private long managerNanos;
+
+        /**
+         * Creates a new invocation.
+         *
+         * @param method the metadata of the method in effect.
+         * @param invocation the invocation.
+         */
+        Unit(
+            TransactionalMethod method,
+            Callable<?> invocation)
+        {
+            this.method = method;
+            this.invocation = invocation;
+        }
+
+        /**
+         * Proceeds with the invocation and stores its outcome.
+         */
+        void invoke()
+        {
+            try
+            {
+                result = invocation.call();
+            }
+            catch (Throwable e)
+            {
+                error = e;
+            }
+        }
+
+        /**
+         * Checks if the outcome of the invocation requires the transaction to
+         * be rolled back.
+         *
+         * @return {@code true} if the transaction must be rolled back.
+         */
+        boolean needsRollback()
+        {
+            if (error == null)
+            {
+                return false;
+            }
+
+            return !(error instanceof Exception)
+                || method.needsRollback((Exception) error);
+        }
+
+        /**
+         * Discards the outcome of the invocation.
+         */
+        void reset()
+        {
+            result = null;
+            error = null;
+        }
+
+        /**
+         * Returns the result of the invocation or throws its exception.
+         *
+         * @return the result of the invocation.
+         * @throws Exception thrown if the invocation or its transaction failed.
+         */
+        Object getResult()
+        throws Exception
+        {
+            if (error instanceof Exception)
+            {
+                throw (Exception) error;
+            }
+
+            if (error instanceof Error)
+            {
+                throw (Error) error;
+            }
+
+            return result;
+        }
+    }
+}
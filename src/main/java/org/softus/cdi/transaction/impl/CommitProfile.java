@@ -0,0 +1,309 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import javax.transaction.Synchronization;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.softus.cdi.transaction.TransactionSupport;
+
+/**
+ * <p>
+ * Timestamps of the commit phases of one transaction. Stored as a resource of
+ * the transaction, so {@link AbstractTransactionSupport} can time the
+ * synchronizations registered for it.
+ * </p>
+ *
+ * <p>
+ * Two interposed synchronizations mark the phases. The first one is
+ * registered when the transaction begins and the last one right before the
+ * commit. Since the interposed synchronizations are invoked after the
+ * regular ones in the order they were registered, the synchronization phase
+ * starts with the commit and ends when the last interposed synchronization is
+ * invoked. The resource phase ends when the first {@code afterCompletion}
+ * callback is invoked, and the completion phase ends when the commit returns.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+class CommitProfile
+{
+    private static final Logger log = LoggerFactory
+        .getLogger(CommitProfile.class);
+
+    /**
+     * The key of the transaction resource.
+     */
+    static final Object KEY = new Object();
+
+    private static volatile boolean enabled;
+
+    private final CommitProfiler profiler;
+
+    private final TransactionalMethod method;
+
+    private volatile long commitStart;
+
+    private volatile long firstBefore;
+
+    private volatile long lastBefore;
+
+    private volatile long firstAfter;
+
+    private boolean failed;
+
+    /**
+     * Creates a new profile.
+     *
+     * @param profiler the profiler to report to.
+     * @param method the method that started the transaction.
+     */
+    CommitProfile(
+        CommitProfiler profiler,
+        TransactionalMethod method)
+    {
+        this.profiler = profiler;
+        this.method = method;
+    }
+
+    /**
+     * Enables the profiles, so the transaction supports look them up when a
+     * synchronization is registered. Until then the lookup is skipped. The
+     * profiles stay enabled for the lifetime of the class loader.
+     */
+    static void enable()
+    {
+        enabled = true;
+    }
+
+    /**
+     * Checks if the transactions may be profiled.
+     *
+     * @return {@code true} if {@link #enable()} has been called.
+     */
+    static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Attaches the profile to the current transaction. Must be called right
+     * after the transaction begins. Failures are logged and disable the
+     * profile, so they do not affect the transaction.
+     *
+     * @param transactionSupport the transaction support.
+     */
+    void attach(
+        TransactionSupport transactionSupport)
+    {
+        try
+        {
+            transactionSupport.putResource(KEY, this);
+            transactionSupport.registerSynchronization(new Marker(true));
+        }
+        catch (Exception e)
+        {
+            failed = true;
+            log.debug("Cannot attach commit profile", e);
+        }
+    }
+
+    /**
+     * Marks the start of the commit. Must be called right before the
+     * transaction is committed.
+     *
+     * @param transactionSupport the transaction support.
+     */
+    void beforeCommit(
+        TransactionSupport transactionSupport)
+    {
+        if (failed)
+        {
+            return;
+        }
+
+        try
+        {
+            transactionSupport.registerSynchronization(new Marker(false));
+        }
+        catch (Exception e)
+        {
+            failed = true;
+            log.debug("Cannot attach commit profile", e);
+        }
+
+        commitStart = System.nanoTime();
+    }
+
+    /**
+     * Reports the phases of a committed transaction.
+     */
+    void afterCommit()
+    {
+        if (failed)
+        {
+            return;
+        }
+
+        long end = System.nanoTime();
+        long before = lastBefore != 0 ? lastBefore : commitStart;
+        long after = firstAfter != 0 ? firstAfter : end;
+        long regular = firstBefore != 0 ? firstBefore - commitStart : 0;
+        profiler.report(method, end - commitStart, before - commitStart,
+            regular, after - before, end - after);
+    }
+
+    /**
+     * Wraps a synchronization to attribute its time to its class.
+     *
+     * @param synchronization the synchronization.
+     * @return the wrapped synchronization.
+     */
+    Synchronization wrap(
+        Synchronization synchronization)
+    {
+        if (synchronization instanceof Marker)
+        {
+            return synchronization;
+        }
+
+        return new ProfiledSynchronization(synchronization);
+    }
+
+    /**
+     * Records the start of an {@code afterCompletion} callback.
+     *
+     * @param time the time in nanoseconds.
+     */
+    private void afterStarted(
+        long time)
+    {
+        if (firstAfter == 0)
+        {
+            firstAfter = time;
+        }
+    }
+
+    /**
+     * <p>
+     * Synchronization that marks the phases of the commit.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private class Marker
+    implements Synchronization
+    {
+        private final boolean first;
+
+        /**
+         * Creates a new marker.
+         *
+         * @param first {@code true} if the marker is registered first.
+         */
+        Marker(
+            boolean first)
+        {
+            this.first = first;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void beforeCompletion()
+        {
+            if (first)
+            {
+                firstBefore = System.nanoTime();
+            }
+            else
+            {
+                lastBefore = System.nanoTime();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void afterCompletion(
+            int status)
+        {
+            afterStarted(System.nanoTime());
+        }
+    }
+
+    /**
+     * <p>
+     * Synchronization that reports the time spent in another synchronization.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private class ProfiledSynchronization
+    implements Synchronization
+    {
+        private final Synchronization synchronization;
+
+        /**
+         * Creates a new synchronization.
+         *
+         * @param synchronization the synchronization to time.
+         */
+        ProfiledSynchronization(
+            Synchronization synchronization)
+        {
+            this.synchronization = synchronization;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void beforeCompletion()
+        {
+            long start = System.nanoTime();
+            try
+            {
+                synchronization.beforeCompletion();
+            }
+            finally
+            {
+                profiler.reportSynchronization(synchronization.getClass(),
+                    true, System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void afterCompletion(
+            int status)
+        {
+            long start = System.nanoTime();
+            afterStarted(start);
+            try
+            {
+                synchronization.afterCompletion(status);
+            }
+            finally
+            {
+                profiler.reportSynchronization(synchronization.getClass(),
+                    false, System.nanoTime() - start);
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * Collects the latencies of the commit phases, see {@link CommitProfile}.
+ * Enabled by the {@code org.softus.cdi.transaction.profile.commit} system
+ * property.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+class CommitProfiler
+implements CommitProfilerMBean
+{
+    private final ConcurrentMap<TransactionalMethod, MethodStats> methods;
+
+    private final ConcurrentMap<Class<?>, SynchronizationStats>
+        synchronizations;
+
+    /**
+     * Creates a new profiler.
+     */
+    CommitProfiler()
+    {
+        methods = new ConcurrentHashMap<TransactionalMethod, MethodStats>();
+        synchronizations =
+            new ConcurrentHashMap<Class<?>, SynchronizationStats>();
+    }
+
+    /**
+     * Creates a profile for a transaction started by a method.
+     *
+     * @param method the method.
+     * @return the profile.
+     */
+    CommitProfile newProfile(
+        TransactionalMethod method)
+    {
+        return new CommitProfile(this, method);
+    }
+
+    /**
+     * Reports the phases of a committed transaction.
+     *
+     * @param method the method that started the transaction.
+     * @param total the duration of the commit in nanoseconds.
+     * @param synchronization the duration of the {@code beforeCompletion}
+     *        callbacks in nanoseconds.
+     * @param regular the duration of the {@code beforeCompletion} callbacks of
+     *        the regular synchronizations in nanoseconds.
+     * @param resources the duration of the resource commit in nanoseconds.
+     * @param completion the duration of the {@code afterCompletion} callbacks
+     *        in nanoseconds.
+     */
+    void report(
+        TransactionalMethod method,
+        long total,
+        long synchronization,
+        long regular,
+        long resources,
+        long completion)
+    {
+        MethodStats stats = methods.get(method);
+        if (stats == null)
+        {
+            MethodStats newStats = new MethodStats();
+            stats = methods.putIfAbsent(method, newStats);
+            if (stats == null)
+            {
+                stats = newStats;
+            }
+        }
+
+        stats.total.record(total);
+        stats.synchronization.record(synchronization);
+        stats.regular.record(regular);
+        stats.resources.record(resources);
+        stats.completion.record(completion);
+    }
+
+    /**
+     * Reports the duration of a synchronization callback.
+     *
+     * @param type the class of the synchronization.
+     * @param before {@code true} for {@code beforeCompletion}, {@code false}
+     *        for {@code afterCompletion}.
+     * @param nanos the duration in nanoseconds.
+     */
+    void reportSynchronization(
+        Class<?> type,
+        boolean before,
+        long nanos)
+    {
+        SynchronizationStats stats = synchronizations.get(type);
+        if (stats == null)
+        {
+            SynchronizationStats newStats = new SynchronizationStats();
+            stats = synchronizations.putIfAbsent(type, newStats);
+            if (stats == null)
+            {
+                stats = newStats;
+            }
+        }
+
+        (before ? stats.before : stats.after).record(nanos);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] getMethodProfiles()
+    {
+        Map<String, MethodStats> sorted = new TreeMap<String, MethodStats>();
+        for (Map.Entry<TransactionalMethod, MethodStats> e : methods
+            .entrySet())
+        {
+            sorted.put(e.getKey().getName(), e.getValue());
+        }
+
+        List<String> result = new ArrayList<String>(sorted.size());
+        for (Map.Entry<String, MethodStats> e : sorted.entrySet())
+        {
+            MethodStats stats = e.getValue();
+            result.add(e.getKey() + ": commit " + stats.total
+                + "; synchronizations " + stats.synchronization
+                + "; regular synchronizations " + stats.regular
+                + "; resources " + stats.resources + "; completion "
+                + stats.completion);
+        }
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] getSynchronizationProfiles()
+    {
+        Map<String, SynchronizationStats> sorted =
+            new TreeMap<String, SynchronizationStats>();
+        for (Map.Entry<Class<?>, SynchronizationStats> e : synchronizations
+            .entrySet())
+        {
+            sorted.put(e.getKey().getName(), e.getValue());
+        }
+
+        List<String> result = new ArrayList<String>(sorted.size());
+        for (Map.Entry<String, SynchronizationStats> e : sorted.entrySet())
+        {
+            result.add(e.getKey() + ": beforeCompletion "
+                + e.getValue().before + "; afterCompletion "
+                + e.getValue().after);
+        }
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset()
+    {
+        methods.clear();
+        synchronizations.clear();
+    }
+
+    /**
+     * <p>
+     * Commit phase latencies of a method.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class MethodStats
+    {
+        private final LatencyHistogram total = new LatencyHistogram();
+
+        private final LatencyHistogram synchronization =
+            new LatencyHistogram();
+
+        private final LatencyHistogram regular = new LatencyHistogram();
+
+        private final LatencyHistogram resources = new LatencyHistogram();
+
+        private final LatencyHistogram completion = new LatencyHistogram();
+    }
+
+    /**
+     * <p>
+     * Callback latencies of a synchronization class.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class SynchronizationStats
+    {
+        private final LatencyHistogram before = new LatencyHistogram();
+
+        private final LatencyHistogram after = new LatencyHistogram();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+/**
+ * <p>
+ * Management interface that exposes the latencies of the commit phases of the
+ * transactions started by the interceptor. Registered as
+ * {@code org.softus.cdi.transaction:type=CommitProfile}.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public interface CommitProfilerMBean
+{
+    /**
+     * Returns the latency percentiles of the commit phases per method: the
+     * whole commit, the synchronizations, the regular synchronizations that
+     * were not registered through the extension, the transaction manager and
+     * the resources, and the completion callbacks.
+     *
+     * @return the latencies per method.
+     */
+    public String[] getMethodProfiles();
+
+    /**
+     * Returns the latency percentiles of the {@code beforeCompletion} and
+     * {@code afterCompletion} callbacks per synchronization class.
+     *
+     * @return the latencies per synchronization class.
+     */
+    public String[] getSynchronizationProfiles();
+
+    /**
+     * Discards the collected latencies.
+     */
+    public void reset();
+}
@@ -0,0 +1,407 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.softus.cdi.transaction.ConcurrencyLimit;
+import org.softus.cdi.transaction.TransactionRejectedException;
+
+/**
+ * <p>
+ * Adaptive limit of concurrent transactions, see {@link ConcurrencyLimit}.
+ * </p>
+ *
+ * <p>
+ * The limit follows the additive increase, multiplicative decrease rule. The
+ * commit latencies are averaged over a short term and compared with the
+ * baseline latency, which is the minimum latency over the last two windows of
+ * {@value #BASELINE_WINDOW} commits. While the average latency stays below
+ * twice the baseline and at least half of the limit is in use, the limit
+ * grows by one per limit's worth of commits. When the average latency exceeds
+ * twice the baseline or a commit fails with a system error, the limit is
+ * reduced by 10%, at most once per limit's worth of commits and failures.
+ * The failures count towards the next reduction, so the limit keeps shrinking
+ * while the transactions keep failing.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+class ConcurrencyLimiter
+implements ConcurrencyLimiterMBean
+{
+    private static final double SHORT_WEIGHT = 0.2;
+
+    private static final int BASELINE_WINDOW = 1000;
+
+    private static final double TOLERANCE = 2.0;
+
+    private static final double BACKOFF = 0.9;
+
+    private final String name;
+
+    private final int maxLimit;
+
+    private final long timeout;
+
+    private final Lock lock;
+
+    private final Condition released;
+
+    private double limit;
+
+    private int inFlight;
+
+    private int waiting;
+
+    private double shortLatency;
+
+    private long windowMinimum;
+
+    private long previousMinimum;
+
+    private int windowSamples;
+
+    private int samplesSinceDecrease;
+
+    private long accepted;
+
+    private long rejected;
+
+    /**
+     * Creates a new limiter.
+     *
+     * @param name the name of the group.
+     * @param initialLimit the initial limit.
+     * @param maxLimit the maximum limit.
+     * @param timeout the maximum time in milliseconds to wait for a
+     *        transaction to finish.
+     */
+    ConcurrencyLimiter(
+        String name,
+        int initialLimit,
+        int maxLimit,
+        long timeout)
+    {
+        if (initialLimit <= 0 || maxLimit < initialLimit)
+        {
+            throw new IllegalArgumentException("Invalid limits of " + name
+                + ": initial " + initialLimit + ", max " + maxLimit);
+        }
+
+        this.name = name;
+        this.maxLimit = maxLimit;
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        lock = new ReentrantLock();
+        released = lock.newCondition();
+        limit = initialLimit;
+        samplesSinceDecrease = initialLimit;
+        previousMinimum = Long.MAX_VALUE;
+    }
+
+    /**
+     * Acquires a permit to start a transaction.
+     *
+     * @throws TransactionRejectedException thrown if the limit has been
+     *         reached and no transaction finished within the timeout.
+     */
+    void acquire()
+    {
+        lock.lock();
+        try
+        {
+            if (inFlight >= (int) limit)
+            {
+                if (waiting >= (int) limit)
+                {
+                    throw reject();
+                }
+
+                waiting++;
+                try
+                {
+                    long remaining = timeout;
+                    while (inFlight >= (int) limit)
+                    {
+                        if (remaining <= 0)
+                        {
+                            throw reject();
+                        }
+
+                        remaining = released.awaitNanos(remaining);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    rejected++;
+                    throw new TransactionRejectedException(
+                        "Interrupted while waiting for concurrency limit of "
+                        + name, e);
+                }
+                finally
+                {
+                    waiting--;
+                }
+            }
+
+            inFlight++;
+            accepted++;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases a permit.
+     *
+     * @param commitNanos the commit latency in nanoseconds, or a negative
+     *        value if the transaction was not committed.
+     * @param failed {@code true} if the transaction failed with a system
+     *        error.
+     */
+    void release(
+        long commitNanos,
+        boolean failed)
+    {
+        lock.lock();
+        try
+        {
+            int before = (int) limit;
+            inFlight--;
+            if (failed)
+            {
+                samplesSinceDecrease++;
+                decrease();
+            }
+            else if (commitNanos >= 0)
+            {
+                sample(commitNanos);
+            }
+
+            if ((int) limit > before)
+            {
+                released.signalAll();
+            }
+            else
+            {
+                released.signal();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adjusts the limit to a commit latency sample.
+     *
+     * @param commitNanos the commit latency in nanoseconds.
+     */
+    private void sample(
+        long commitNanos)
+    {
+        samplesSinceDecrease++;
+        shortLatency = shortLatency == 0 ? commitNanos : shortLatency
+            + (commitNanos - shortLatency) * SHORT_WEIGHT;
+        if (windowSamples == 0 || commitNanos < windowMinimum)
+        {
+            windowMinimum = commitNanos;
+        }
+
+        if (++windowSamples == BASELINE_WINDOW)
+        {
+            previousMinimum = windowMinimum;
+            windowSamples = 0;
+        }
+
+        if (shortLatency > getBaseline() * TOLERANCE)
+        {
+            decrease();
+        }
+        else if (inFlight + 1 >= limit / 2)
+        {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+
+    /**
+     * Returns the baseline latency.
+     *
+     * @return the baseline latency in nanoseconds.
+     */
+    private long getBaseline()
+    {
+        return windowSamples > 0 ? Math.min(windowMinimum, previousMinimum)
+            : previousMinimum;
+    }
+
+    /**
+     * Reduces the limit unless it has been reduced within the last limit's
+     * worth of commits and failures.
+     */
+    private void decrease()
+    {
+        if (samplesSinceDecrease >= (int) limit)
+        {
+            limit = Math.max(1, limit * BACKOFF);
+            samplesSinceDecrease = 0;
+        }
+    }
+
+    /**
+     * Counts a rejection and creates the exception to throw.
+     *
+     * @return the exception.
+     */
+    private TransactionRejectedException reject()
+    {
+        rejected++;
+        return new TransactionRejectedException("Concurrency limit "
+            + (int) limit + " of " + name + " has been reached");
+    }
+
+    /**
+     * Returns the name of the group.
+     *
+     * @return the name of the group.
+     */
+    String getName()
+    {
+        return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getLimit()
+    {
+        lock.lock();
+        try
+        {
+            return (int) limit;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getInFlight()
+    {
+        lock.lock();
+        try
+        {
+            return inFlight;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getWaiting()
+    {
+        lock.lock();
+        try
+        {
+            return waiting;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getAcceptedCount()
+    {
+        lock.lock();
+        try
+        {
+            return accepted;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getRejectedCount()
+    {
+        lock.lock();
+        try
+        {
+            return rejected;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getShortLatencyMicros()
+    {
+        lock.lock();
+        try
+        {
+            return (long) shortLatency / 1000;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getBaselineLatencyMicros()
+    {
+        lock.lock();
+        try
+        {
+            long baseline = getBaseline();
+            return baseline != Long.MAX_VALUE ? baseline / 1000 : 0;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+/**
+ * <p>
+ * Management interface of an adaptive concurrency limit. Registered as
+ * {@code org.softus.cdi.transaction:type=ConcurrencyLimit,name=<group>}, the
+ * global limit is named {@code *}.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public interface ConcurrencyLimiterMBean
+{
+    /**
+     * Returns the current limit.
+     *
+     * @return the current limit.
+     */
+    public int getLimit();
+
+    /**
+     * Returns the number of transactions in progress.
+     *
+     * @return the number of transactions in progress.
+     */
+    public int getInFlight();
+
+    /**
+     * Returns the number of callers waiting for a transaction to finish.
+     *
+     * @return the number of waiting callers.
+     */
+    public int getWaiting();
+
+    /**
+     * Returns the number of transactions started.
+     *
+     * @return the number of transactions started.
+     */
+    public long getAcceptedCount();
+
+    /**
+     * Returns the number of transactions rejected.
+     *
+     * @return the number of transactions rejected.
+     */
+    public long getRejectedCount();
+
+    /**
+     * Returns the short-term average commit latency in microseconds.
+     *
+     * @return the short-term commit latency.
+     */
+    public long getShortLatencyMicros();
+
+    /**
+     * Returns the baseline commit latency in microseconds, which is the
+     * minimum latency observed recently.
+     *
+     * @return the baseline commit latency.
+     */
+    public long getBaselineLatencyMicros();
+}
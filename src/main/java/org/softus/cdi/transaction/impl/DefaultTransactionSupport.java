@@ -15,6 +15,8 @@
  */
 package org.softus.cdi.transaction.impl;
 
+import java.util.Arrays;
+
 import javax.enterprise.context.ApplicationScoped;
 
 import javax.enterprise.inject.Typed;
@@ -26,6 +28,7 @@ import javax.transaction.TransactionManager;
 import javax.transaction.TransactionSynchronizationRegistry;
 
 import org.softus.cdi.transaction.TransactionSupport;
+import org.softus.cdi.transaction.TransactionTimeoutSupport;
 
 /**
  * <p>
@@ -54,7 +57,7 @@ import org.softus.cdi.transaction.TransactionSupport;
  * @author Vlad Arkhipov
  */
 @ApplicationScoped
-@Typed(TransactionSupport.class)
+@Typed({ TransactionSupport.class, TransactionTimeoutSupport.class })
 class DefaultTransactionSupport
 extends AbstractTransactionSupport
 {
@@ -105,7 +108,8 @@ extends AbstractTransactionSupport
             }
         }
 
-        throw new RuntimeException();
+        throw new RuntimeException("TransactionManager was not found in JNDI, "
+            + "tried " + Arrays.toString(TRANSACTION_MANAGER_JNDI_NAMES));
     }
 
     /**
@@ -0,0 +1,135 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.softus.cdi.transaction.TransactionDoomedException;
+
+/**
+ * <p>
+ * Refuses to invoke methods within a transaction that has already been
+ * marked for rollback, so a request whose outcome has been decided stops
+ * consuming resources. Either all the methods or only the methods that are
+ * not read-only are refused. Counts the refused invocations.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+class DoomedTransactionGuard
+implements DoomedTransactionGuardMBean
+{
+    private final boolean writesOnly;
+
+    private final AtomicLong skipped;
+
+    private final ConcurrentMap<String, AtomicLong> methodSkipped;
+
+    /**
+     * Creates a new guard.
+     *
+     * @param writesOnly {@code true} if only the methods that are not
+     *        read-only are refused.
+     */
+    DoomedTransactionGuard(
+        boolean writesOnly)
+    {
+        this.writesOnly = writesOnly;
+        skipped = new AtomicLong();
+        methodSkipped = new ConcurrentHashMap<String, AtomicLong>();
+    }
+
+    /**
+     * Refuses to invoke a method within a transaction marked for rollback.
+     *
+     * @param method the method.
+     * @throws TransactionDoomedException thrown if the method is refused.
+     */
+    void refuse(
+        TransactionalMethod method)
+    {
+        if (writesOnly && method.isReadOnly())
+        {
+            return;
+        }
+
+        skipped.incrementAndGet();
+        String name = method.getName();
+        AtomicLong count = methodSkipped.get(name);
+        if (count == null)
+        {
+            AtomicLong newCount = new AtomicLong();
+            count = methodSkipped.putIfAbsent(name, newCount);
+            if (count == null)
+            {
+                count = newCount;
+            }
+        }
+
+        count.incrementAndGet();
+        throw new TransactionDoomedException("Transaction is marked for "
+            + "rollback, method " + name + " is not invoked");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getPolicy()
+    {
+        return writesOnly ? "writes" : "all";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getSkippedCount()
+    {
+        return skipped.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] getMethodSkippedCounts()
+    {
+        Map<String, AtomicLong> sorted = new TreeMap<String, AtomicLong>(
+            methodSkipped);
+        List<String> result = new ArrayList<String>(sorted.size());
+        for (Map.Entry<String, AtomicLong> e : sorted.entrySet())
+        {
+            result.add(e.getKey() + ": " + e.getValue().get());
+        }
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset()
+    {
+        skipped.set(0);
+        methodSkipped.clear();
+    }
+}
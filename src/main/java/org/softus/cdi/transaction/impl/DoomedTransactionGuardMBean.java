@@ -0,0 +1,55 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+/**
+ * <p>
+ * Management interface of the fail-fast policy for transactions marked for
+ * rollback. Registered as
+ * {@code org.softus.cdi.transaction:type=DoomedTransactions}.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public interface DoomedTransactionGuardMBean
+{
+    /**
+     * Returns the policy.
+     *
+     * @return {@code all} if all the methods are refused, {@code writes} if
+     *         only the methods that are not read-only are refused.
+     */
+    public String getPolicy();
+
+    /**
+     * Returns the number of invocations refused.
+     *
+     * @return the number of invocations.
+     */
+    public long getSkippedCount();
+
+    /**
+     * Returns the number of invocations refused for each method.
+     *
+     * @return the counts formatted as {@code <method>: <count>}.
+     */
+    public String[] getMethodSkippedCounts();
+
+    /**
+     * Resets the counters.
+     */
+    public void reset();
+}
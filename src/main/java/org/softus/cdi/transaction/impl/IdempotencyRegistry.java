@@ -0,0 +1,533 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import java.lang.annotation.Annotation;
+
+import java.lang.reflect.Method;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+import javax.enterprise.inject.Typed;
+
+import javax.inject.Inject;
+
+import javax.interceptor.InvocationContext;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.softus.cdi.transaction.IdempotencyKey;
+import org.softus.cdi.transaction.IdempotencyStore;
+import org.softus.cdi.transaction.Idempotent;
+import org.softus.cdi.transaction.TransactionSupport;
+
+/**
+ * <p>
+ * Keeps the committed keys of {@link Idempotent} methods. The keys recorded
+ * by a transaction are kept as a resource of the transaction and moved to
+ * the bounded cache of the committed keys when the transaction commits. The
+ * least recently used keys are evicted from the cache first. A method bound
+ * to a named transaction support records its keys in the transactions of
+ * that support.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+@ApplicationScoped
+@Typed(IdempotencyRegistry.class)
+class IdempotencyRegistry
+{
+    private static final Logger log = LoggerFactory
+        .getLogger(IdempotencyRegistry.class);
+
+    private static final Object PENDING_KEY = new Object();
+
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    @Inject
+    private TransactionSupport transactionSupport;
+
+    @Inject
+    private TransactionExtension extension;
+
+    @Inject
+    @Any
+    private Instance<IdempotencyStore> stores;
+
+    private final Map<String, Boolean> committed;
+
+    private final ConcurrentMap<Method, KeyTemplate> templates;
+
+    private volatile IdempotencyStore store;
+
+    private volatile boolean storeResolved;
+
+    /**
+     * Creates a new registry configured by the system properties.
+     */
+    IdempotencyRegistry()
+    {
+        final int cacheSize = Settings.getInt("idempotent.cacheSize",
+            DEFAULT_CACHE_SIZE);
+        committed = new LinkedHashMap<String, Boolean>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, Boolean> eldest)
+            {
+                return size() > cacheSize;
+            }
+        };
+        templates = new ConcurrentHashMap<Method, KeyTemplate>();
+    }
+
+    /**
+     * Skips an invocation if its key has been committed, or proceeds with it
+     * and records its key within the current transaction.
+     *
+     * @param invocationContext the invocation context.
+     * @return the result of the invocation, or the default value of the
+     *         return type if the invocation has been skipped.
+     * @throws Exception thrown by the invocation.
+     */
+    Object invoke(
+        InvocationContext invocationContext)
+    throws Exception
+    {
+        Method method = invocationContext.getMethod();
+        TransactionSupport transactionSupport = extension
+            .getTransactionSupport(method);
+        if (transactionSupport == null)
+        {
+            transactionSupport = this.transactionSupport;
+        }
+
+        int status = transactionSupport.getStatus();
+        if (status == Status.STATUS_MARKED_ROLLBACK)
+        {
+            // Nothing the invocation does can be committed.
+            return invocationContext.proceed();
+        }
+
+        if (status != Status.STATUS_ACTIVE)
+        {
+            throw new IllegalStateException(
+                "Transaction is required to perform idempotent method "
+                    + method);
+        }
+
+        KeyTemplate template = getTemplate(method);
+        String key = template.keyOf(invocationContext.getParameters());
+        PendingKeys pending = getPendingKeys(transactionSupport);
+        if (pending.contains(key) || isCommitted(key))
+        {
+            if (log.isDebugEnabled())
+            {
+                log.debug("Skipping duplicate invocation of " + method
+                    + ", key = " + key);
+            }
+
+            return template.skipped;
+        }
+
+        Object result = invocationContext.proceed();
+
+        pending.add(key);
+        IdempotencyStore s = getStore();
+        if (s != null)
+        {
+            s.record(key);
+        }
+
+        return result;
+    }
+
+    /**
+     * Checks if a key has been committed.
+     *
+     * @param key the key.
+     * @return {@code true} if the key is cached or found in the store.
+     */
+    private boolean isCommitted(
+        String key)
+    {
+        synchronized (committed)
+        {
+            if (committed.get(key) != null)
+            {
+                return true;
+            }
+        }
+
+        IdempotencyStore s = getStore();
+        if (s != null && s.contains(key))
+        {
+            addCommitted(Arrays.asList(key));
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds keys to the cache of the committed keys.
+     *
+     * @param keys the keys.
+     */
+    private void addCommitted(
+        Iterable<String> keys)
+    {
+        synchronized (committed)
+        {
+            for (String key : keys)
+            {
+                committed.put(key, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * Returns the keys recorded by the current transaction, registering them
+     * with the transaction if necessary.
+     *
+     * @param transactionSupport the transaction support of the method.
+     * @return the keys.
+     * @throws Exception thrown if the keys cannot be registered.
+     */
+    private PendingKeys getPendingKeys(
+        TransactionSupport transactionSupport)
+    throws Exception
+    {
+        PendingKeys pending = (PendingKeys) transactionSupport
+            .getResource(PENDING_KEY);
+        if (pending == null)
+        {
+            pending = new PendingKeys();
+            transactionSupport.registerSynchronization(pending);
+            transactionSupport.putResource(PENDING_KEY, pending);
+        }
+
+        return pending;
+    }
+
+    /**
+     * Returns the persistent store.
+     *
+     * @return the store or {@code null} if there is no store.
+     */
+    private IdempotencyStore getStore()
+    {
+        if (!storeResolved)
+        {
+            store = stores.isUnsatisfied() ? null : stores.get();
+            storeResolved = true;
+        }
+
+        return store;
+    }
+
+    /**
+     * Checks that the idempotency key of a method can be built.
+     *
+     * @param method the method.
+     * @throws IllegalArgumentException thrown if the method has no
+     *         {@link IdempotencyKey} parameters or a key parameter has no
+     *         string representation of its value.
+     */
+    static void checkKey(
+        Method method)
+    {
+        new KeyTemplate(method);
+    }
+
+    /**
+     * Returns the key template of a method.
+     *
+     * @param method the method.
+     * @return the key template.
+     */
+    private KeyTemplate getTemplate(
+        Method method)
+    {
+        KeyTemplate template = templates.get(method);
+        if (template == null)
+        {
+            template = new KeyTemplate(method);
+            templates.put(method, template);
+        }
+
+        return template;
+    }
+
+    /**
+     * <p>
+     * Keys recorded by a transaction. Moved to the cache of the committed keys
+     * when the transaction commits.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private class PendingKeys
+    implements Synchronization
+    {
+        private final Set<String> keys = new HashSet<String>();
+
+        /**
+         * Checks if the transaction has recorded a key.
+         *
+         * @param key the key.
+         * @return {@code true} if the key has been recorded.
+         */
+        synchronized boolean contains(
+            String key)
+        {
+            return keys.contains(key);
+        }
+
+        /**
+         * Records a key.
+         *
+         * @param key the key.
+         */
+        synchronized void add(
+            String key)
+        {
+            keys.add(key);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void beforeCompletion()
+        {
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public synchronized void afterCompletion(
+            int status)
+        {
+            if (status == Status.STATUS_COMMITTED)
+            {
+                addCommitted(keys);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Builds the keys of the invocations of a method.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class KeyTemplate
+    {
+        private final String namespace;
+
+        private final int[] parameters;
+
+        private final Object skipped;
+
+        /**
+         * Creates a new template.
+         *
+         * @param method the method.
+         * @throws IllegalArgumentException thrown if the method has no
+         *         {@link IdempotencyKey} parameters or a key parameter has no
+         *         string representation of its value.
+         */
+        KeyTemplate(
+            Method method)
+        {
+            Idempotent idempotent = method.getAnnotation(Idempotent.class);
+            if (idempotent == null)
+            {
+                idempotent = method.getDeclaringClass().getAnnotation(
+                    Idempotent.class);
+            }
+
+            namespace = idempotent != null && idempotent.value().length() > 0
+                ? idempotent.value() : method.getDeclaringClass().getName()
+                    + "." + method.getName();
+
+            List<Integer> annotated = new ArrayList<Integer>();
+            Class<?>[] types = method.getParameterTypes();
+            Annotation[][] annotations = method.getParameterAnnotations();
+            for (int i = 0; i < annotations.length; i++)
+            {
+                for (Annotation a : annotations[i])
+                {
+                    if (a instanceof IdempotencyKey)
+                    {
+                        if (!hasValueString(types[i]))
+                        {
+                            throw new IllegalArgumentException(
+                                "@IdempotencyKey parameter " + i + " of "
+                                + method + " must be of a type that "
+                                + "overrides toString()");
+                        }
+
+                        annotated.add(i);
+                    }
+                }
+            }
+
+            if (annotated.isEmpty())
+            {
+                throw new IllegalArgumentException("@Idempotent method "
+                    + method + " has no @IdempotencyKey parameters");
+            }
+
+            parameters = new int[annotated.size()];
+            for (int i = 0; i < parameters.length; i++)
+            {
+                parameters[i] = annotated.get(i);
+            }
+
+            skipped = defaultValueOf(method.getReturnType());
+        }
+
+        /**
+         * Builds the key of an invocation. Each argument is prefixed with its
+         * length, so different arguments cannot produce the same key.
+         *
+         * @param arguments the arguments of the invocation.
+         * @return the key.
+         */
+        String keyOf(
+            Object[] arguments)
+        {
+            StringBuilder key = new StringBuilder(namespace);
+            for (int i = 0; i < parameters.length; i++)
+            {
+                Object argument = arguments[parameters[i]];
+                String value = argument != null
+                    && argument.getClass().isArray() ? Arrays
+                    .deepToString(new Object[] { argument }) : String
+                    .valueOf(argument);
+                key.append(':').append(value.length()).append(':')
+                    .append(value);
+            }
+
+            return key.toString();
+        }
+
+        /**
+         * Checks if the string representation of the values of a type
+         * reflects their contents rather than their identity. The interfaces
+         * are accepted, since only their implementations can tell.
+         *
+         * @param type the type.
+         * @return {@code true} if the type has a value string.
+         */
+        private static boolean hasValueString(
+            Class<?> type)
+        {
+            if (type.isArray())
+            {
+                return hasValueString(type.getComponentType());
+            }
+
+            if (type.isPrimitive() || type.isInterface() || type.isEnum())
+            {
+                return true;
+            }
+
+            try
+            {
+                return type.getMethod("toString").getDeclaringClass()
+                    != Object.class;
+            }
+            catch (NoSuchMethodException e)
+            {
+                return false;
+            }
+        }
+
+        /**
+         * Returns the value a skipped invocation returns.
+         *
+         * @param type the return type of the method.
+         * @return the default value of the type.
+         */
+        private static Object defaultValueOf(
+            Class<?> type)
+        {
+            if (type == boolean.class)
+            {
+                return false;
+            }
+
+            if (type == char.class)
+            {
+                return '\0';
+            }
+
+            if (type == byte.class)
+            {
+                return (byte) 0;
+            }
+
+            if (type == short.class)
+            {
+                return (short) 0;
+            }
+
+            if (type == int.class)
+            {
+                return 0;
+            }
+
+            if (type == long.class)
+            {
+                return 0L;
+            }
+
+            if (type == float.class)
+            {
+                return 0f;
+            }
+
+            if (type == double.class)
+            {
+                return 0d;
+            }
+
+            return null;
+        }
+    }
+}
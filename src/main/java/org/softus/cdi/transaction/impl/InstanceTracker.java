@@ -0,0 +1,522 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Tracks live transaction scoped bean instances through weak references.
+ * Detects the instances that outlive the leak threshold, which happens when a
+ * transaction manager fails to deliver the completion of a transaction, and
+ * the instances that are garbage collected without being destroyed.
+ * </p>
+ *
+ * <p>
+ * The leak threshold is set in milliseconds by the
+ * {@code org.softus.cdi.transaction.scope.leakThreshold} system property, zero
+ * disables the detection of leaked instances. The instances are checked by a
+ * background thread twice per threshold. The check only reports the
+ * suspected leaks, since a long transaction may still use its instances. The
+ * leaked instances are destroyed only on demand, see {@link #reapLeaks()}.
+ * The tracking is disabled by setting the
+ * {@code org.softus.cdi.transaction.scope.track} system property to
+ * {@code false}.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+class InstanceTracker
+implements TransactionScopeMonitorMBean
+{
+    private static final Logger log = LoggerFactory
+        .getLogger(InstanceTracker.class);
+
+    private static final long DEFAULT_LEAK_THRESHOLD = 10 * 60 * 1000;
+
+    private final long leakThreshold;
+
+    private final ReferenceQueue<Destroyable> queue;
+
+    private final Set<TrackedInstance> live;
+
+    private final ConcurrentMap<String, BeanTypeCounts> counts;
+
+    private ScheduledExecutorService executor;
+
+    private final Lock checkLock;
+
+    private final AtomicLong leaked;
+
+    private final AtomicLong collected;
+
+    private final AtomicLong reaped;
+
+    /**
+     * Creates a new tracker configured by the system properties.
+     */
+    InstanceTracker()
+    {
+        this(TimeUnit.MILLISECONDS.toNanos(Settings.getLong(
+            "scope.leakThreshold", DEFAULT_LEAK_THRESHOLD)));
+    }
+
+    /**
+     * Creates a new tracker.
+     *
+     * @param leakThreshold the leak threshold in nanoseconds, zero disables
+     *        the detection.
+     */
+    InstanceTracker(
+        long leakThreshold)
+    {
+        this.leakThreshold = leakThreshold;
+
+        queue = new ReferenceQueue<Destroyable>();
+        live = Collections
+            .newSetFromMap(new ConcurrentHashMap<TrackedInstance, Boolean>());
+        counts = new ConcurrentHashMap<String, BeanTypeCounts>();
+        checkLock = new ReentrantLock();
+        leaked = new AtomicLong();
+        collected = new AtomicLong();
+        reaped = new AtomicLong();
+    }
+
+    /**
+     * Starts tracking a new instance.
+     *
+     * @param beanType the name of the bean type.
+     * @param instance the instance.
+     * @return the tracking handle to pass to {@link #destroyed}.
+     */
+    TrackedInstance created(
+        String beanType,
+        Destroyable instance)
+    {
+        BeanTypeCounts beanTypeCounts = counts.get(beanType);
+        if (beanTypeCounts == null)
+        {
+            BeanTypeCounts newCounts = new BeanTypeCounts();
+            beanTypeCounts = counts.putIfAbsent(beanType, newCounts);
+            if (beanTypeCounts == null)
+            {
+                beanTypeCounts = newCounts;
+            }
+        }
+
+        beanTypeCounts.created.incrementAndGet();
+        TrackedInstance tracked = new TrackedInstance(instance, queue,
+            beanType, beanTypeCounts);
+        live.add(tracked);
+        return tracked;
+    }
+
+    /**
+     * Stops tracking an instance that has been destroyed.
+     *
+     * @param tracked the tracking handle.
+     */
+    void destroyed(
+        TrackedInstance tracked)
+    {
+        if (live.remove(tracked))
+        {
+            tracked.counts.destroyed.incrementAndGet();
+        }
+
+        tracked.clear();
+    }
+
+    /**
+     * Starts the background thread that checks the live instances twice per
+     * leak threshold. Does nothing if the detection is disabled.
+     */
+    synchronized void start()
+    {
+        if (leakThreshold <= 0 || executor != null)
+        {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory()
+            {
+                public Thread newThread(
+                    Runnable r)
+                {
+                    Thread thread = new Thread(r,
+                        "transaction-cdi scope monitor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        long period = Math.max(leakThreshold / 2, 1);
+        executor.scheduleWithFixedDelay(new Runnable()
+        {
+            public void run()
+            {
+                check();
+            }
+        }, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops the background thread.
+     */
+    synchronized void stop()
+    {
+        if (executor != null)
+        {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Counts the collected instances and reports the leaked ones.
+     */
+    void check()
+    {
+        try
+        {
+            pollCollected();
+            checkLock.lock();
+            try
+            {
+                findOverdue(System.nanoTime());
+            }
+            finally
+            {
+                checkLock.unlock();
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // Keep the scheduled check running.
+            log.error("Cannot check transaction scoped bean instances", e);
+        }
+    }
+
+    /**
+     * Counts the instances that have been garbage collected without being
+     * destroyed.
+     */
+    private void pollCollected()
+    {
+        Reference<? extends Destroyable> ref;
+        while ((ref = queue.poll()) != null)
+        {
+            TrackedInstance tracked = (TrackedInstance) ref;
+            if (live.remove(tracked))
+            {
+                collected.incrementAndGet();
+                tracked.counts.collected.incrementAndGet();
+                log.warn("Transaction scoped bean instance of "
+                    + tracked.beanType
+                    + " was garbage collected without being destroyed");
+            }
+        }
+    }
+
+    /**
+     * Finds the instances alive for longer than the leak threshold. Logs each
+     * leaked instance once.
+     *
+     * @param now the current time in nanoseconds.
+     * @return the leaked instances.
+     */
+    private List<TrackedInstance> findOverdue(
+        long now)
+    {
+        List<TrackedInstance> leaks = new ArrayList<TrackedInstance>();
+        if (leakThreshold <= 0)
+        {
+            return leaks;
+        }
+
+        for (TrackedInstance tracked : live)
+        {
+            if (now - tracked.createdAt > leakThreshold)
+            {
+                leaks.add(tracked);
+                if (!tracked.flagged)
+                {
+                    tracked.flagged = true;
+                    leaked.incrementAndGet();
+                    log.warn("Transaction scoped bean instance " + tracked.get()
+                        + " of " + tracked.beanType + " has been alive for "
+                        + TimeUnit.NANOSECONDS.toMillis(now - tracked.createdAt)
+                        + " ms, its transaction may never complete");
+                }
+            }
+        }
+
+        return leaks;
+    }
+
+    /**
+     * Destroys the leaked instances.
+     *
+     * @param leaks the leaked instances.
+     * @return the number of instances destroyed.
+     */
+    private int reap(
+        List<TrackedInstance> leaks)
+    {
+        int count = 0;
+        for (TrackedInstance tracked : leaks)
+        {
+            Destroyable instance = tracked.get();
+            if (instance != null)
+            {
+                try
+                {
+                    instance.destroy();
+                    count++;
+                }
+                catch (RuntimeException e)
+                {
+                    log.error("Cannot destroy leaked transaction scoped bean "
+                        + "instance " + instance, e);
+                }
+            }
+        }
+
+        reaped.addAndGet(count);
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCreatedCount()
+    {
+        long result = 0;
+        for (BeanTypeCounts c : counts.values())
+        {
+            result += c.created.get();
+        }
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getDestroyedCount()
+    {
+        long result = 0;
+        for (BeanTypeCounts c : counts.values())
+        {
+            result += c.destroyed.get();
+        }
+
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getLiveCount()
+    {
+        pollCollected();
+        return live.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getLeakedCount()
+    {
+        return leaked.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getCollectedCount()
+    {
+        pollCollected();
+        return collected.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getReapedCount()
+    {
+        return reaped.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] getBeanTypeCounts()
+    {
+        pollCollected();
+        Map<String, BeanTypeCounts> sorted =
+            new TreeMap<String, BeanTypeCounts>(counts);
+        List<String> result = new ArrayList<String>(sorted.size());
+        for (Map.Entry<String, BeanTypeCounts> e : sorted.entrySet())
+        {
+            BeanTypeCounts c = e.getValue();
+            long created = c.created.get();
+            long destroyed = c.destroyed.get();
+            result.add(e.getKey() + ": created=" + created + ", destroyed="
+                + destroyed + ", live="
+                + (created - destroyed - c.collected.get()));
+        }
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] findLeaks()
+    {
+        pollCollected();
+        List<TrackedInstance> leaks;
+        checkLock.lock();
+        try
+        {
+            leaks = findOverdue(System.nanoTime());
+        }
+        finally
+        {
+            checkLock.unlock();
+        }
+
+        List<String> result = new ArrayList<String>(leaks.size());
+        for (TrackedInstance tracked : leaks)
+        {
+            result.add(tracked.beanType + ": " + tracked.get());
+        }
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int reapLeaks()
+    {
+        checkLock.lock();
+        try
+        {
+            return reap(findOverdue(System.nanoTime()));
+        }
+        finally
+        {
+            checkLock.unlock();
+        }
+    }
+
+    /**
+     * <p>
+     * An instance that can be destroyed by the tracker.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    interface Destroyable
+    {
+        /**
+         * Destroys the instance. Must have no effect if the instance has
+         * already been destroyed.
+         */
+        void destroy();
+    }
+
+    /**
+     * <p>
+     * Weak reference to a tracked instance.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    static class TrackedInstance
+    extends WeakReference<Destroyable>
+    {
+        private final String beanType;
+
+        private final BeanTypeCounts counts;
+
+        private final long createdAt;
+
+        private volatile boolean flagged;
+
+        /**
+         * Creates a new reference.
+         *
+         * @param instance the instance.
+         * @param queue the queue for collected instances.
+         * @param beanType the name of the bean type.
+         * @param counts the counts of the bean type.
+         */
+        TrackedInstance(
+            Destroyable instance,
+            ReferenceQueue<Destroyable> queue,
+            String beanType,
+            BeanTypeCounts counts)
+        {
+            super(instance, queue);
+            this.beanType = beanType;
+            this.counts = counts;
+            createdAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * <p>
+     * Instance counts of a bean type.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class BeanTypeCounts
+    {
+        private final AtomicLong created = new AtomicLong();
+
+        private final AtomicLong destroyed = new AtomicLong();
+
+        private final AtomicLong collected = new AtomicLong();
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Lock-free histogram of latencies in microseconds. The values are counted in
+ * logarithmic buckets with {@value #SUB_BUCKETS} sub-buckets per power of two,
+ * so the reported percentiles are accurate to 12.5%.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts;
+
+    private final AtomicLong max;
+
+    /**
+     * Creates an empty histogram.
+     */
+    LatencyHistogram()
+    {
+        counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        max = new AtomicLong();
+    }
+
+    /**
+     * Records a value.
+     *
+     * @param nanos the latency in nanoseconds.
+     */
+    void record(
+        long nanos)
+    {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(index(micros));
+
+        long current;
+        while (micros > (current = max.get())
+            && !max.compareAndSet(current, micros))
+        {
+            // Retry.
+        }
+    }
+
+    /**
+     * Returns the number of recorded values.
+     *
+     * @return the number of recorded values.
+     */
+    long getCount()
+    {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++)
+        {
+            count += counts.get(i);
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the value at the specified percentile.
+     *
+     * @param percentile the percentile between 0 and 1.
+     * @return the upper bound of the bucket that contains the percentile in
+     *         microseconds, or zero if the histogram is empty.
+     */
+    long getPercentile(
+        double percentile)
+    {
+        long[] snapshot = new long[counts.length()];
+        long count = 0;
+        for (int i = 0; i < snapshot.length; i++)
+        {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+
+        long target = Math.max(1, (long) Math.ceil(percentile * count));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++)
+        {
+            seen += snapshot[i];
+            if (seen >= target)
+            {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns the maximum recorded value.
+     *
+     * @return the maximum value in microseconds.
+     */
+    long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Formats the count and the percentiles of the histogram.
+     *
+     * @return the formatted histogram.
+     */
+    @Override
+    public String toString()
+    {
+        return "count=" + getCount() + " p50=" + getPercentile(0.5)
+            + "us p99=" + getPercentile(0.99) + "us max=" + getMax() + "us";
+    }
+
+    /**
+     * Returns the bucket of a value.
+     *
+     * @param value the value.
+     * @return the index of the bucket.
+     */
+    private static int index(
+        long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS))
+            & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the greatest value of a bucket.
+     *
+     * @param index the index of the bucket.
+     * @return the greatest value of the bucket.
+     */
+    private static long upperBound(
+        int index)
+    {
+        if (index < SUB_BUCKETS)
+        {
+            return index;
+        }
+
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1L) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import java.lang.management.ManagementFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Registers the management beans of an extension in the platform MBean
+ * server. The beans are registered in the {@code org.softus.cdi.transaction}
+ * domain. If several applications register beans of the same type, an
+ * {@code instance} key is appended to the names of all but the first one.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+class Management
+{
+    private static final Logger log = LoggerFactory.getLogger(Management.class);
+
+    private static final String DOMAIN = "org.softus.cdi.transaction";
+
+    private final List<ObjectName> names = new ArrayList<ObjectName>();
+
+    /**
+     * Creates a new registry.
+     */
+    Management()
+    {
+
+    }
+
+    /**
+     * Registers a management bean. Failures are logged and ignored.
+     *
+     * @param type the type of the bean.
+     * @param implementation the implementation.
+     * @param mbeanInterface the management interface.
+     */
+    synchronized <T> void register(
+        String type,
+        T implementation,
+        Class<T> mbeanInterface)
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            StandardMBean mbean = new StandardMBean(implementation,
+                mbeanInterface);
+            for (int instance = 1;; instance++)
+            {
+                ObjectName name = new ObjectName(DOMAIN + ":type=" + type
+                    + (instance > 1 ? ",instance=" + instance : ""));
+                try
+                {
+                    server.registerMBean(mbean, name);
+                    names.add(name);
+                    return;
+                }
+                catch (InstanceAlreadyExistsException e)
+                {
+                    // Try the next instance number.
+                }
+            }
+        }
+        catch (JMException e)
+        {
+            log.warn("Cannot register management bean " + type, e);
+        }
+    }
+
+    /**
+     * Unregisters all the management beans registered by this object.
+     */
+    synchronized void unregisterAll()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : names)
+        {
+            try
+            {
+                server.unregisterMBean(name);
+            }
+            catch (JMException e)
+            {
+                log.warn("Cannot unregister management bean " + name, e);
+            }
+        }
+
+        names.clear();
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import javax.inject.Inject;
+
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.Interceptor;
+import javax.interceptor.InvocationContext;
+
+import org.softus.cdi.transaction.InvalidatesMemoized;
+import org.softus.cdi.transaction.TransactionMemoized;
+
+/**
+ * <p>
+ * Invalidates the {@link TransactionMemoized} results of the current
+ * transaction after an {@link InvalidatesMemoized} method is invoked.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ * @see TransactionMemo
+ */
+@InvalidatesMemoized({})
+@Interceptor
+class MemoInvalidatingInterceptor
+{
+    @Inject
+    private TransactionMemo memo;
+
+    /**
+     * Creates a new interceptor.
+     */
+    MemoInvalidatingInterceptor()
+    {
+
+    }
+
+    @AroundInvoke
+    Object aroundInvoke(
+        InvocationContext invocationContext)
+    throws Exception
+    {
+        return memo.invalidateAfter(invocationContext);
+    }
+}
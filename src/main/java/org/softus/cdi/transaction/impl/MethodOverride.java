@@ -0,0 +1,287 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * <p>
+ * Runtime override of the transaction metadata of a method or a class, see
+ * {@link OverrideRegistry}.
+ * </p>
+ *
+ * <p>
+ * An override is written as a comma-separated list of elements: a
+ * transaction attribute, {@code timeout=<seconds>},
+ * {@code rollbackOn=<exception>|<exception>} and
+ * {@code noRollbackOn=<exception>|<exception>}, for example
+ * {@code SUPPORTS,timeout=30,noRollbackOn=com.example.NotFoundException}.
+ * An exception class matches its subclasses, the nearest class decides.
+ * The timeout is only applied by the transaction supports that implement
+ * {@link org.softus.cdi.transaction.TransactionTimeoutSupport}.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+class MethodOverride
+{
+    private final TransactionAttributeType attribute;
+
+    private final int timeout;
+
+    private final Set<String> rollbackOn;
+
+    private final Set<String> noRollbackOn;
+
+    /**
+     * Creates a new override.
+     *
+     * @param attribute the transaction attribute or {@code null} if it is not
+     *        overridden.
+     * @param timeout the transaction timeout in seconds or -1 if it is not
+     *        overridden.
+     * @param rollbackOn the names of the exceptions that roll the transaction
+     *        back.
+     * @param noRollbackOn the names of the exceptions that do not roll the
+     *        transaction back.
+     */
+    MethodOverride(
+        TransactionAttributeType attribute,
+        int timeout,
+        Set<String> rollbackOn,
+        Set<String> noRollbackOn)
+    {
+        this.attribute = attribute;
+        this.timeout = timeout;
+        this.rollbackOn = rollbackOn;
+        this.noRollbackOn = noRollbackOn;
+    }
+
+    /**
+     * Parses an override.
+     *
+     * @param value the override.
+     * @return the override.
+     * @throws IllegalArgumentException thrown if the override is invalid.
+     */
+    static MethodOverride parse(
+        String value)
+    {
+        TransactionAttributeType attribute = null;
+        int timeout = -1;
+        Set<String> rollbackOn = new TreeSet<String>();
+        Set<String> noRollbackOn = new TreeSet<String>();
+        for (String element : value.split(","))
+        {
+            element = element.trim();
+            int eq = element.indexOf('=');
+            String name = eq < 0 ? element : element.substring(0, eq).trim();
+            String arg = eq < 0 ? null : element.substring(eq + 1).trim();
+            if (element.length() == 0)
+            {
+                continue;
+            }
+            else if (arg == null)
+            {
+                attribute = TransactionAttributeType.valueOf(name);
+            }
+            else if ("timeout".equals(name))
+            {
+                timeout = Integer.parseInt(arg);
+                if (timeout < 0)
+                {
+                    throw new IllegalArgumentException("Invalid timeout: "
+                        + arg);
+                }
+            }
+            else if ("rollbackOn".equals(name))
+            {
+                rollbackOn.addAll(split(arg));
+            }
+            else if ("noRollbackOn".equals(name))
+            {
+                noRollbackOn.addAll(split(arg));
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unknown override element "
+                    + element);
+            }
+        }
+
+        return new MethodOverride(attribute, timeout, rollbackOn,
+            noRollbackOn);
+    }
+
+    /**
+     * Splits a list of exception names.
+     *
+     * @param names the names separated by {@code |}.
+     * @return the names.
+     */
+    private static Set<String> split(
+        String names)
+    {
+        Set<String> result = new HashSet<String>();
+        for (String name : Arrays.asList(names.split("\\|")))
+        {
+            if (name.trim().length() > 0)
+            {
+                result.add(name.trim());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Combines the override of a class with the override of its method. The
+     * elements of the method take precedence.
+     *
+     * @param classOverride the override of the class or {@code null}.
+     * @param methodOverride the override of the method or {@code null}.
+     * @return the combined override or {@code null} if there is none.
+     */
+    static MethodOverride merge(
+        MethodOverride classOverride,
+        MethodOverride methodOverride)
+    {
+        if (classOverride == null || methodOverride == null)
+        {
+            return methodOverride != null ? methodOverride : classOverride;
+        }
+
+        Set<String> rollbackOn = new TreeSet<String>(classOverride.rollbackOn);
+        rollbackOn.removeAll(methodOverride.noRollbackOn);
+        rollbackOn.addAll(methodOverride.rollbackOn);
+        Set<String> noRollbackOn = new TreeSet<String>(
+            classOverride.noRollbackOn);
+        noRollbackOn.removeAll(methodOverride.rollbackOn);
+        noRollbackOn.addAll(methodOverride.noRollbackOn);
+        return new MethodOverride(methodOverride.attribute != null
+            ? methodOverride.attribute : classOverride.attribute,
+            methodOverride.timeout >= 0 ? methodOverride.timeout
+                : classOverride.timeout, rollbackOn, noRollbackOn);
+    }
+
+    /**
+     * Returns the transaction attribute.
+     *
+     * @return the transaction attribute or {@code null} if it is not
+     *         overridden.
+     */
+    TransactionAttributeType getAttribute()
+    {
+        return attribute;
+    }
+
+    /**
+     * Returns the transaction timeout.
+     *
+     * @return the timeout in seconds or -1 if it is not overridden.
+     */
+    int getTimeout()
+    {
+        return timeout;
+    }
+
+    /**
+     * Determines whether an exception rolls the transaction back.
+     *
+     * @param exception the exception.
+     * @return {@code Boolean.TRUE} if the transaction must be rolled back,
+     *         {@code Boolean.FALSE} if it must be committed, {@code null} if
+     *         the exception is not overridden.
+     */
+    Boolean needsRollback(
+        Exception exception)
+    {
+        if (rollbackOn.isEmpty() && noRollbackOn.isEmpty())
+        {
+            return null;
+        }
+
+        for (Class<?> clazz = exception.getClass(); clazz != null; clazz = clazz
+            .getSuperclass())
+        {
+            if (rollbackOn.contains(clazz.getName()))
+            {
+                return Boolean.TRUE;
+            }
+
+            if (noRollbackOn.contains(clazz.getName()))
+            {
+                return Boolean.FALSE;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder result = new StringBuilder();
+        if (attribute != null)
+        {
+            result.append(attribute);
+        }
+
+        if (timeout >= 0)
+        {
+            result.append(result.length() > 0 ? "," : "").append("timeout=")
+                .append(timeout);
+        }
+
+        append(result, "rollbackOn", rollbackOn);
+        append(result, "noRollbackOn", noRollbackOn);
+        return result.toString();
+    }
+
+    /**
+     * Appends a list of exception names.
+     *
+     * @param result the string to append to.
+     * @param name the name of the element.
+     * @param names the exception names.
+     */
+    private static void append(
+        StringBuilder result,
+        String name,
+        Set<String> names)
+    {
+        if (names.isEmpty())
+        {
+            return;
+        }
+
+        result.append(result.length() > 0 ? "," : "").append(name).append('=');
+        String separator = "";
+        for (String n : new TreeSet<String>(names))
+        {
+            result.append(separator).append(n);
+            separator = "|";
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.security.AccessController;
+
+import java.text.SimpleDateFormat;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import javax.ejb.TransactionAttributeType;
+
+import javax.security.auth.Subject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Overrides the transaction attribute, the timeout and the rollback rules of
+ * the transactional methods at runtime, see {@link OverrideRegistryMBean}.
+ * </p>
+ *
+ * <p>
+ * The overrides are loaded from a properties file at startup and can be
+ * changed through the management bean. A change is validated against all the
+ * methods it affects before it is applied, and each method receives its new
+ * override with a single write, so an invocation sees either the old or the
+ * new metadata of its method. Every change is logged and kept in the audit
+ * log.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+class OverrideRegistry
+implements OverrideRegistryMBean
+{
+    private static final Logger log = LoggerFactory
+        .getLogger(OverrideRegistry.class);
+
+    private static final int AUDIT_CAPACITY = 100;
+
+    private final List<TransactionalMethod> methods;
+
+    private final Map<String, MethodOverride> overrides;
+
+    private final LinkedList<String> audit;
+
+    /**
+     * Creates a new registry.
+     *
+     * @param methods the transactional methods.
+     */
+    OverrideRegistry(
+        List<TransactionalMethod> methods)
+    {
+        this.methods = new ArrayList<TransactionalMethod>();
+        for (TransactionalMethod method : methods)
+        {
+            if (method.getMethod() != null)
+            {
+                this.methods.add(method);
+            }
+        }
+
+        overrides = new TreeMap<String, MethodOverride>();
+        audit = new LinkedList<String>();
+    }
+
+    /**
+     * Loads the overrides from a properties file. The invalid overrides are
+     * logged and skipped.
+     *
+     * @param file the file.
+     * @throws IOException thrown if the file cannot be read.
+     */
+    void load(
+        File file)
+    throws IOException
+    {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            properties.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        for (String key : properties.stringPropertyNames())
+        {
+            try
+            {
+                change(key.trim(), MethodOverride.parse(properties
+                    .getProperty(key)), "file " + file);
+            }
+            catch (IllegalArgumentException e)
+            {
+                log.error("Invalid transaction override " + key + " in "
+                    + file, e);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized String[] getOverrides()
+    {
+        List<String> result = new ArrayList<String>(overrides.size());
+        for (Map.Entry<String, MethodOverride> e : overrides.entrySet())
+        {
+            result.add(e.getKey() + "=" + e.getValue());
+        }
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String[] getOverriddenMethods()
+    {
+        List<String> result = new ArrayList<String>();
+        for (TransactionalMethod method : methods)
+        {
+            MethodOverride override = method.getOverride();
+            if (override != null)
+            {
+                result.add(method.getName() + ": " + override);
+            }
+        }
+
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized String[] getAuditLog()
+    {
+        return audit.toArray(new String[audit.size()]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setOverride(
+        String key,
+        String value)
+    {
+        if (key == null || value == null)
+        {
+            throw new IllegalArgumentException("No key or value specified");
+        }
+
+        change(key.trim(), MethodOverride.parse(value), getCaller());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeOverride(
+        String key)
+    {
+        if (key == null)
+        {
+            throw new IllegalArgumentException("No key specified");
+        }
+
+        change(key.trim(), null, getCaller());
+    }
+
+    /**
+     * Changes an override and applies the overrides to the methods.
+     *
+     * @param key the class or the method.
+     * @param override the override or {@code null} to remove it.
+     * @param source the source of the change.
+     * @throws IllegalArgumentException thrown if the override matches no
+     *         method or conflicts with the metadata of a method.
+     */
+    private synchronized void change(
+        String key,
+        MethodOverride override,
+        String source)
+    {
+        Map<String, MethodOverride> next = new TreeMap<String, MethodOverride>(
+            overrides);
+        MethodOverride previous = override != null ? next.put(key, override)
+            : next.remove(key);
+        if (override == null && previous == null)
+        {
+            return;
+        }
+
+        boolean matched = false;
+        List<MethodOverride> merged = new ArrayList<MethodOverride>(methods
+            .size());
+        for (TransactionalMethod method : methods)
+        {
+            String className = method.getMethod().getDeclaringClass()
+                .getName();
+            String methodName = className + "." + method.getMethod().getName();
+            matched |= key.equals(className) || key.equals(methodName);
+
+            MethodOverride m = MethodOverride.merge(next.get(className), next
+                .get(methodName));
+            validate(method, m);
+            merged.add(m);
+        }
+
+        if (!matched)
+        {
+            throw new IllegalArgumentException("No transactional method "
+                + "matches " + key);
+        }
+
+        for (int i = 0; i < methods.size(); i++)
+        {
+            methods.get(i).setOverride(merged.get(i));
+        }
+
+        overrides.clear();
+        overrides.putAll(next);
+
+        String entry = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS")
+            .format(new Date()) + " " + source + ": " + key + " changed from "
+            + (previous != null ? "[" + previous + "]" : "none") + " to "
+            + (override != null ? "[" + override + "]" : "none");
+        log.info("Transaction override " + entry);
+        audit.add(entry);
+        if (audit.size() > AUDIT_CAPACITY)
+        {
+            audit.removeFirst();
+        }
+    }
+
+    /**
+     * Checks that an override is compatible with the metadata of a method.
+     *
+     * @param method the method.
+     * @param override the override or {@code null}.
+     * @throws IllegalArgumentException thrown if the override conflicts with
+     *         the metadata of the method.
+     */
+    private static void validate(
+        TransactionalMethod method,
+        MethodOverride override)
+    {
+        if (override != null && override.getAttribute() != null
+            && override.getAttribute() != TransactionAttributeType.REQUIRES_NEW
+            && method.getCommitGroup() != null)
+        {
+            throw new IllegalArgumentException("@GroupCommit requires "
+                + "REQUIRES_NEW transaction attribute for method "
+                + method.getName());
+        }
+    }
+
+    /**
+     * Describes the caller of the management bean.
+     *
+     * @return the description.
+     */
+    private static String getCaller()
+    {
+        Subject subject = Subject.getSubject(AccessController.getContext());
+        return subject != null && !subject.getPrincipals().isEmpty() ? "JMX "
+            + subject.getPrincipals() : "JMX";
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+/**
+ * <p>
+ * Management interface of the runtime overrides of the transaction metadata.
+ * Registered as {@code org.softus.cdi.transaction:type=TransactionOverrides}.
+ * </p>
+ *
+ * <p>
+ * The key of an override is the name of a class or the name of a class
+ * followed by a dot and the name of a method, which overrides all the
+ * methods with that name. The value is described in {@link MethodOverride}.
+ * An override of a method takes precedence over an override of its class.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public interface OverrideRegistryMBean
+{
+    /**
+     * Returns the overrides.
+     *
+     * @return the overrides formatted as {@code <key>=<value>}.
+     */
+    public String[] getOverrides();
+
+    /**
+     * Returns the methods whose metadata is overridden.
+     *
+     * @return the methods formatted as {@code <method>: <override>}.
+     */
+    public String[] getOverriddenMethods();
+
+    /**
+     * Returns the recent changes of the overrides, the oldest first.
+     *
+     * @return the changes.
+     */
+    public String[] getAuditLog();
+
+    /**
+     * Sets an override.
+     *
+     * @param key the class or the method.
+     * @param value the override.
+     * @throws IllegalArgumentException thrown if the override is invalid or
+     *         matches no transactional method.
+     */
+    public void setOverride(
+        String key,
+        String value);
+
+    /**
+     * Removes an override.
+     *
+     * @param key the class or the method.
+     */
+    public void removeOverride(
+        String key);
+}
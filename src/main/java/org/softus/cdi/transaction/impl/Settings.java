@@ -0,0 +1,112 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+/**
+ * <p>
+ * Reads the extension settings from the system properties. All the property
+ * names start with {@code org.softus.cdi.transaction.}.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+final class Settings
+{
+    private static final String PREFIX = "org.softus.cdi.transaction.";
+
+    /**
+     * Prevents instantiation.
+     */
+    private Settings()
+    {
+
+    }
+
+    /**
+     * Reads a string setting.
+     *
+     * @param name the name of the setting without the prefix.
+     * @param defaultValue the value to use if the setting is not specified.
+     * @return the value of the setting.
+     */
+    static String getString(
+        String name,
+        String defaultValue)
+    {
+        String value = System.getProperty(PREFIX + name);
+        return (value == null || value.trim().length() == 0) ? defaultValue
+            : value.trim();
+    }
+
+    /**
+     * Reads an integer setting.
+     *
+     * @param name the name of the setting without the prefix.
+     * @param defaultValue the value to use if the setting is not specified.
+     * @return the value of the setting.
+     * @throws IllegalArgumentException thrown if the value is not an integer.
+     */
+    static int getInt(
+        String name,
+        int defaultValue)
+    {
+        return (int) getLong(name, defaultValue);
+    }
+
+    /**
+     * Reads a long integer setting.
+     *
+     * @param name the name of the setting without the prefix.
+     * @param defaultValue the value to use if the setting is not specified.
+     * @return the value of the setting.
+     * @throws IllegalArgumentException thrown if the value is not an integer.
+     */
+    static long getLong(
+        String name,
+        long defaultValue)
+    {
+        String value = getString(name, null);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid value of " + PREFIX
+                + name + ": " + value, e);
+        }
+    }
+
+    /**
+     * Reads a boolean setting.
+     *
+     * @param name the name of the setting without the prefix.
+     * @param defaultValue the value to use if the setting is not specified.
+     * @return the value of the setting.
+     */
+    static boolean getBoolean(
+        String name,
+        boolean defaultValue)
+    {
+        String value = getString(name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
@@ -0,0 +1,710 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.ejb.EJBException;
+import javax.ejb.EJBTransactionRolledbackException;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.softus.cdi.transaction.StreamingResult;
+import org.softus.cdi.transaction.TransactionSupport;
+
+import org.softus.cdi.transaction.trace.TraceEvent;
+import org.softus.cdi.transaction.trace.TraceRecorder;
+
+/**
+ * <p>
+ * Completes the suspended transaction of a {@link StreamingResult} method when
+ * its result has been consumed. The result is wrapped into a proxy of the
+ * return type of the method that watches for the result to be closed or
+ * exhausted.
+ * </p>
+ *
+ * <p>
+ * Each call to the result resumes the transaction on the calling thread and
+ * suspends it again when the call returns, so the result is consumed within
+ * the transaction: the connections of a cursor stay enlisted in it and the
+ * transaction scoped beans are available. A transaction the calling thread
+ * is associated with is suspended for the duration of the call. A result
+ * must not be consumed by several threads at once.
+ * </p>
+ *
+ * <p>
+ * A result that has not been consumed within the streaming timeout is
+ * closed and its transaction is rolled back by a timer thread. The timer
+ * never completes the transaction while a call to the result is in progress;
+ * the call that overlaps the timeout completes it when it returns instead.
+ * </p>
+ *
+ * <p>
+ * The results implementing {@code java.util.stream.BaseStream} are completed
+ * when a terminal operation returns, except for {@code iterator()} and
+ * {@code spliterator()} which are lazy and completed when the stream is
+ * closed. The streams returned by the intermediate operations are wrapped
+ * too. Java 8 types are only referred to by name.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+class StreamingCompletion
+implements InvocationHandler
+{
+    private static final Logger log = LoggerFactory
+        .getLogger(StreamingCompletion.class);
+
+    private static final String BASE_STREAM = "java.util.stream.BaseStream";
+
+    private final TransactionalMethod method;
+
+    private final Transaction transaction;
+
+    private final Object result;
+
+    private final Class<?> type;
+
+    private final Completion completion;
+
+    /**
+     * Creates a new handler.
+     *
+     * @param method the method.
+     * @param transaction the transaction.
+     * @param result the result or a stream derived from it.
+     * @param type the interface the proxy implements.
+     * @param completion the completion state shared by the derived streams.
+     */
+    private StreamingCompletion(
+        TransactionalMethod method,
+        Transaction transaction,
+        Object result,
+        Class<?> type,
+        Completion completion)
+    {
+        this.method = method;
+        this.transaction = transaction;
+        this.result = result;
+        this.type = type;
+        this.completion = completion;
+    }
+
+    /**
+     * Checks if the results of the specified type can be streamed.
+     *
+     * @param type the return type of a method.
+     * @return {@code true} if the type is an interface that extends
+     *         {@link Iterator} or has a {@code close()} method.
+     */
+    static boolean isStreamable(
+        Class<?> type)
+    {
+        return type.isInterface()
+            && (Iterator.class.isAssignableFrom(type) || getCloseMethod(type)
+                != null);
+    }
+
+    /**
+     * Wraps the result of a method into a proxy that completes the suspended
+     * transaction of the method when the result has been consumed.
+     *
+     * @param method the method.
+     * @param result the result of the method.
+     * @param transactionSupport the transaction support.
+     * @param transaction the suspended transaction.
+     * @param limiter the limiter of the method or {@code null}.
+     * @param globalLimiter the global limiter or {@code null}.
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     * @param breaker the circuit breaker or {@code null} if it is disabled.
+     * @param probe the probe round of the transaction or {@code null}.
+     * @param managerNanos the time in nanoseconds spent in the calls to the
+     *        transaction manager so far.
+     * @return the proxy of the result.
+     */
+    static Object defer(
+        TransactionalMethod method,
+        Object result,
+        TransactionSupport transactionSupport,
+        Transaction transaction,
+        ConcurrencyLimiter limiter,
+        ConcurrencyLimiter globalLimiter,
+        TraceRecorder trace,
+        CircuitBreaker breaker,
+        CircuitBreaker.ProbeRound probe,
+        long managerNanos)
+    {
+        final Completion completion = new Completion(transactionSupport,
+            limiter, globalLimiter, trace, breaker, probe, managerNanos);
+        StreamingCompletion handler = new StreamingCompletion(method,
+            transaction, result, method.getMethod().getReturnType(),
+            completion);
+        completion.handler = handler;
+
+        // The timer task does not refer to the result once it has been
+        // consumed, so the cancelled tasks do not hold the results.
+        completion.timeout = Timeouts.EXECUTOR.schedule(new Runnable()
+        {
+            public void run()
+            {
+                StreamingCompletion expired = completion.handler;
+                if (expired != null)
+                {
+                    expired.expire();
+                }
+            }
+        }, method.getStreamingTimeout(), TimeUnit.MILLISECONDS);
+
+        return handler.newProxy();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object invoke(
+        Object proxy,
+        Method m,
+        Object[] args)
+    throws Throwable
+    {
+        if (m.getDeclaringClass() == Object.class)
+        {
+            if ("equals".equals(m.getName()))
+            {
+                return proxy == args[0];
+            }
+
+            if ("hashCode".equals(m.getName()))
+            {
+                return System.identityHashCode(proxy);
+            }
+        }
+
+        completion.lock.lock();
+        try
+        {
+            return call(m, args);
+        }
+        finally
+        {
+            completion.lock.unlock();
+            if (completion.expired)
+            {
+                expire();
+            }
+        }
+    }
+
+    /**
+     * Calls a method of the result within the transaction and completes the
+     * transaction if the result has been consumed. The caller must hold the
+     * lock of the completion.
+     *
+     * @param m the method.
+     * @param args the arguments.
+     * @return the value returned by the method.
+     * @throws Throwable the exception thrown by the method.
+     */
+    private Object call(
+        Method m,
+        Object[] args)
+    throws Throwable
+    {
+        boolean close = "close".equals(m.getName())
+            && m.getParameterTypes().length == 0;
+        Object value = null;
+        Throwable cause = null;
+        boolean associated = !completion.completed.get();
+        Transaction outer = null;
+        if (associated)
+        {
+            try
+            {
+                outer = associate();
+            }
+            catch (Exception e)
+            {
+                EJBException ee = new EJBException("Cannot resume the "
+                    + "transaction of the streamed result of "
+                    + method.getName(), e);
+                try
+                {
+                    complete(true, true);
+                }
+                catch (RuntimeException ce)
+                {
+                    log.error("Cannot roll back the transaction of the "
+                        + "streamed result of " + method.getName(), ce);
+                }
+
+                throw ee;
+            }
+        }
+
+        try
+        {
+            value = m.invoke(result, args);
+        }
+        catch (InvocationTargetException e)
+        {
+            cause = e.getCause();
+        }
+        finally
+        {
+            if (associated)
+            {
+                dissociate(outer);
+            }
+        }
+
+        if (cause != null)
+        {
+            try
+            {
+                if (cause instanceof NoSuchElementException)
+                {
+                    complete(false, true);
+                }
+                else
+                {
+                    complete(close || !(cause instanceof Exception)
+                        || method.needsRollback((Exception) cause), !close);
+                }
+            }
+            catch (RuntimeException ce)
+            {
+                // The exception of the result takes precedence.
+                log.error("Cannot complete the transaction of the streamed "
+                    + "result of " + method.getName(), ce);
+            }
+
+            throw cause;
+        }
+
+        if (close)
+        {
+            complete(false, false);
+        }
+        else if (isStream())
+        {
+            // The intermediate operations of BaseStream are declared to
+            // return the erasure of the stream type.
+            if (type.isInstance(value))
+            {
+                return new StreamingCompletion(method, transaction, value,
+                    type, completion).newProxy();
+            }
+
+            if (value != null && m.getReturnType().isInterface()
+                && isStream(m.getReturnType()))
+            {
+                return new StreamingCompletion(method, transaction, value, m
+                    .getReturnType(), completion).newProxy();
+            }
+
+            if (!"iterator".equals(m.getName())
+                && !"spliterator".equals(m.getName())
+                && !"isParallel".equals(m.getName()))
+            {
+                complete(false, true);
+            }
+        }
+        else if ("hasNext".equals(m.getName())
+            && m.getParameterTypes().length == 0 && Boolean.FALSE.equals(value))
+        {
+            complete(false, true);
+        }
+
+        return value;
+    }
+
+    /**
+     * Resumes the transaction on the current thread.
+     *
+     * @return the transaction the thread was associated with or {@code null}.
+     * @throws Exception thrown if the transaction cannot be resumed.
+     */
+    private Transaction associate()
+    throws Exception
+    {
+        TransactionSupport transactionSupport = completion.transactionSupport;
+        Transaction outer = transactionSupport.getStatus()
+            != Status.STATUS_NO_TRANSACTION ? transactionSupport.suspend()
+            : null;
+        try
+        {
+            transactionSupport.resume(transaction);
+        }
+        catch (Exception e)
+        {
+            if (outer != null)
+            {
+                transactionSupport.resume(outer);
+            }
+
+            throw e;
+        }
+
+        return outer;
+    }
+
+    /**
+     * Suspends the transaction and resumes the transaction the current thread
+     * was associated with.
+     *
+     * @param outer the transaction returned by {@link #associate()}.
+     * @throws Exception thrown if a transaction cannot be suspended or
+     *         resumed.
+     */
+    private void dissociate(
+        Transaction outer)
+    throws Exception
+    {
+        TransactionSupport transactionSupport = completion.transactionSupport;
+        transactionSupport.suspend();
+        if (outer != null)
+        {
+            transactionSupport.resume(outer);
+        }
+    }
+
+    /**
+     * Creates a proxy of the result.
+     *
+     * @return the proxy.
+     */
+    private Object newProxy()
+    {
+        return Proxy.newProxyInstance(type.getClassLoader(),
+            new Class<?>[] { type }, this);
+    }
+
+    /**
+     * Completes the transaction, closing the result first if necessary.
+     *
+     * @param rollback {@code true} if the transaction must be rolled back.
+     * @param close {@code true} if the result must be closed.
+     */
+    private void complete(
+        boolean rollback,
+        boolean close)
+    {
+        if (!completion.completed.compareAndSet(false, true))
+        {
+            return;
+        }
+
+        completion.handler = null;
+        ScheduledFuture<?> timeout = completion.timeout;
+        if (timeout != null)
+        {
+            timeout.cancel(false);
+        }
+
+        long commitNanos = -1;
+        boolean failed = false;
+        long start = System.nanoTime();
+        TraceEvent event = TraceEvent.ROLLBACK;
+        try
+        {
+            if (close)
+            {
+                rollback |= !closeResult();
+            }
+
+            if (rollback
+                || transaction.getStatus() == Status.STATUS_MARKED_ROLLBACK)
+            {
+                transaction.rollback();
+            }
+            else
+            {
+                transaction.commit();
+                event = TraceEvent.COMMIT;
+                commitNanos = System.nanoTime() - start;
+            }
+        }
+        catch (RollbackException e)
+        {
+            throw new EJBTransactionRolledbackException(
+                "Transaction of the streamed result of " + method.getName()
+                    + " has been rolled back", e);
+        }
+        catch (Exception e)
+        {
+            failed = true;
+            throw new EJBException("Cannot complete the transaction of the "
+                + "streamed result of " + method.getName(), e);
+        }
+        finally
+        {
+            if (completion.trace != null)
+            {
+                completion.trace.record(method.getId(), method.getAttribute()
+                    .ordinal(), event, System.nanoTime() - start);
+            }
+
+            TransactionDemarcation.release(completion.limiter,
+                completion.globalLimiter, commitNanos, failed);
+            if (completion.breaker != null)
+            {
+                completion.breaker.record(completion.managerNanos
+                    + System.nanoTime() - start, failed, completion.probe);
+            }
+        }
+    }
+
+    /**
+     * Rolls the transaction back and closes the result when the result has
+     * not been consumed in time. If a call to the result is in progress, the
+     * result is only marked as expired and the call completes the transaction
+     * when it returns.
+     */
+    private void expire()
+    {
+        completion.expired = true;
+        if (!completion.lock.tryLock())
+        {
+            return;
+        }
+
+        try
+        {
+            if (!completion.completed.get())
+            {
+                rollbackExpired();
+            }
+        }
+        finally
+        {
+            completion.lock.unlock();
+        }
+    }
+
+    /**
+     * Rolls the transaction of an expired result back. The caller must hold
+     * the lock of the completion.
+     */
+    private void rollbackExpired()
+    {
+        log.warn("Streamed result of " + method.getName()
+            + " has not been consumed within " + method.getStreamingTimeout()
+            + " ms, rolling back its transaction");
+        try
+        {
+            complete(true, true);
+        }
+        catch (RuntimeException e)
+        {
+            log.error("Cannot roll back the transaction of the streamed result "
+                + "of " + method.getName(), e);
+        }
+    }
+
+    /**
+     * Closes the result within the transaction if it has a {@code close()}
+     * method.
+     *
+     * @return {@code false} if the result cannot be closed.
+     */
+    private boolean closeResult()
+    {
+        Method close = getCloseMethod(type);
+        if (close == null)
+        {
+            return true;
+        }
+
+        try
+        {
+            Transaction outer = associate();
+            try
+            {
+                close.invoke(result);
+            }
+            finally
+            {
+                dissociate(outer);
+            }
+
+            return true;
+        }
+        catch (Exception e)
+        {
+            log.warn("Cannot close the streamed result of " + method.getName(),
+                e);
+            return false;
+        }
+    }
+
+    /**
+     * Checks if the result is a Java 8 stream.
+     *
+     * @return {@code true} if the result is a stream.
+     */
+    private boolean isStream()
+    {
+        return isStream(type);
+    }
+
+    /**
+     * Checks if a type is a Java 8 stream.
+     *
+     * @param type the type.
+     * @return {@code true} if the type is a stream.
+     */
+    private static boolean isStream(
+        Class<?> type)
+    {
+        for (Class<?> c : type.getInterfaces())
+        {
+            if (BASE_STREAM.equals(c.getName()) || isStream(c))
+            {
+                return true;
+            }
+        }
+
+        return BASE_STREAM.equals(type.getName());
+    }
+
+    /**
+     * Returns the {@code close()} method of a type.
+     *
+     * @param type the type.
+     * @return the method or {@code null} if the type cannot be closed.
+     */
+    private static Method getCloseMethod(
+        Class<?> type)
+    {
+        try
+        {
+            return type.getMethod("close");
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * <p>
+     * Completion state of a transaction shared by the proxies of a result.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class Completion
+    {
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final TransactionSupport transactionSupport;
+
+        private final ConcurrencyLimiter limiter;
+
+        private final ConcurrencyLimiter globalLimiter;
+
+        private final TraceRecorder trace;
+
+        private final CircuitBreaker breaker;
+
+        private final CircuitBreaker.ProbeRound probe;
+
+        private final long managerNanos;
+
+        private volatile StreamingCompletion handler;
+
+        private volatile ScheduledFuture<?> timeout;
+
+        private volatile boolean expired;
+
+        /**
+         * Creates a new state.
+         *
+         * @param transactionSupport the transaction support.
+         * @param limiter the limiter of the method or {@code null}.
+         * @param globalLimiter the global limiter or {@code null}.
+         * @param trace the trace recorder or {@code null} if tracing is
+         *        disabled.
+         * @param breaker the circuit breaker or {@code null}.
+         * @param probe the probe round of the transaction or {@code null}.
+         * @param managerNanos the time in nanoseconds spent in the calls to
+         *        the transaction manager before the result was returned.
+         */
+        Completion(
+            TransactionSupport transactionSupport,
+            ConcurrencyLimiter limiter,
+            ConcurrencyLimiter globalLimiter,
+            TraceRecorder trace,
+            CircuitBreaker breaker,
+            CircuitBreaker.ProbeRound probe,
+            long managerNanos)
+        {
+            this.transactionSupport = transactionSupport;
+            this.limiter = limiter;
+            this.globalLimiter = globalLimiter;
+            this.trace = trace;
+            this.breaker = breaker;
+            this.probe = probe;
+            this.managerNanos = managerNanos;
+        }
+    }
+
+    /**
+     * <p>
+     * Holder of the timer thread, started on first use.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class Timeouts
+    {
+        private static final ScheduledExecutorService EXECUTOR = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                public Thread newThread(
+                    Runnable r)
+                {
+                    Thread thread = new Thread(r,
+                        "transaction-cdi streaming timeout");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+}
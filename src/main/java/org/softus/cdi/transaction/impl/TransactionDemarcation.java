@@ -0,0 +1,744 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import java.util.concurrent.Callable;
+
+import javax.ejb.ApplicationException;
+import javax.ejb.TransactionAttributeType;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.HeuristicRollbackException;
+import javax.transaction.InvalidTransactionException;
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.softus.cdi.transaction.ReadOnlyTransactions;
+import org.softus.cdi.transaction.TransactionRejectedException;
+import org.softus.cdi.transaction.TransactionSupport;
+import org.softus.cdi.transaction.TransactionTimeoutSupport;
+
+import org.softus.cdi.transaction.trace.TraceEvent;
+import org.softus.cdi.transaction.trace.TraceRecorder;
+
+/**
+ * <p>
+ * Implements the propagation, suspension and rollback rules of
+ * container-managed transactions. Shared by {@link TransactionalInterceptor}
+ * and {@link TransactionTemplate}.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+class TransactionDemarcation
+{
+    private static final Logger log = LoggerFactory
+        .getLogger(TransactionDemarcation.class);
+
+    private final TransactionSupport transactionSupport;
+
+    private final TransactionExtension extension;
+
+    /**
+     * Creates a new demarcation.
+     *
+     * @param transactionSupport the transaction support.
+     * @param extension the extension or {@code null} if tracing, profiling
+     *        and the global concurrency limit are not available.
+     */
+    TransactionDemarcation(
+        TransactionSupport transactionSupport,
+        TransactionExtension extension)
+    {
+        this.transactionSupport = transactionSupport;
+        this.extension = extension;
+    }
+
+    /**
+     * Returns the transaction support that drives the transactions.
+     *
+     * @return the transaction support.
+     */
+    TransactionSupport getTransactionSupport()
+    {
+        return transactionSupport;
+    }
+
+    /**
+     * Invokes a method within the transaction context required by its
+     * transaction attribute.
+     *
+     * @param method the transaction metadata of the method.
+     * @param invocation the invocation of the method.
+     * @return the result of the invocation.
+     * @throws Exception thrown if the invocation or the transaction failed.
+     */
+    Object invoke(
+        TransactionalMethod method,
+        Callable<?> invocation)
+    throws Exception
+    {
+        // Read the runtime override once, so a change made during the
+        // invocation does not mix the old and the new metadata.
+        method = method.getCurrent();
+
+        int status = transactionSupport.getStatus();
+        boolean active = isTransactionActive(status);
+        Boolean requiresNew = requiresNew(active, method.getAttribute());
+        TraceRecorder trace = extension != null ? extension
+            .getTraceRecorder() : null;
+
+        // Do not run the method if the transaction it joins cannot commit.
+        if (requiresNew == Boolean.FALSE
+            && status != Status.STATUS_ACTIVE)
+        {
+            DoomedTransactionGuard guard = extension != null ? extension
+                .getDoomedGuard() : null;
+            if (guard != null)
+            {
+                guard.refuse(method);
+            }
+        }
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("Invoking transactional method " + method + ", active = "
+                + active + ", requiresNew = " + requiresNew);
+        }
+
+        // Fail fast while the transaction manager keeps failing. The outcome
+        // of every allowed transaction is recorded once.
+        CircuitBreaker breaker = requiresNew == Boolean.TRUE
+            ? getCircuitBreaker() : null;
+        CircuitBreaker.ProbeRound probe = breaker != null ? breaker.allow()
+            : null;
+
+        // Limit the number of concurrent transactions started by the
+        // interceptor. Group commit shares transactions, so it is not limited.
+        ConcurrencyLimiter limiter = null;
+        ConcurrencyLimiter globalLimiter = null;
+        if (requiresNew == Boolean.TRUE && method.getCommitGroup() == null)
+        {
+            limiter = method.getLimiter();
+            globalLimiter = extension != null ? extension
+                .getGlobalLimiter() : null;
+            try
+            {
+                acquire(limiter, globalLimiter);
+            }
+            catch (RuntimeException e)
+            {
+                if (breaker != null)
+                {
+                    breaker.release(probe);
+                }
+
+                throw e;
+            }
+        }
+
+        long commitNanos = -1;
+        long managerNanos = 0;
+        boolean failed = false;
+        try
+        {
+            // Suspend the current transaction if transaction attribute is
+            // REQUIRES_NEW or NOT_SUPPORTED.
+            Transaction previous = null;
+            if ((requiresNew != Boolean.FALSE) && active)
+            {
+                previous = suspend(method, trace);
+            }
+
+            try
+            {
+                CommitGroup group = method.getCommitGroup();
+                if (requiresNew == Boolean.TRUE && group != null)
+                {
+                    // Only the group knows the time its transactions took,
+                    // so the group records the outcome to the breaker.
+                    CircuitBreaker groupBreaker = breaker;
+                    breaker = null;
+                    return group.execute(method, invocation,
+                        transactionSupport, trace, groupBreaker, probe);
+                }
+
+                CommitProfile profile = null;
+                if (requiresNew == Boolean.TRUE)
+                {
+                    managerNanos += begin(method, trace);
+                    if (method.isReadOnly())
+                    {
+                        ReadOnlyTransactions.markReadOnly(transactionSupport);
+                    }
+
+                    CommitProfiler profiler = extension != null ? extension
+                        .getCommitProfiler() : null;
+                    // The completion of a streamed result is not profiled.
+                    if (profiler != null && method.getStreamingTimeout() < 0)
+                    {
+                        profile = profiler.newProfile(method);
+                        profile.attach(transactionSupport);
+                    }
+                }
+
+                Object result;
+                try
+                {
+                    result = invocation.call();
+                }
+                catch (Exception e)
+                {
+                    if (requiresNew == Boolean.FALSE)
+                    {
+                        if (method.needsRollback(e))
+                        {
+                            setRollbackOnly(method, trace);
+                        }
+                    }
+                    else if (requiresNew == Boolean.TRUE)
+                    {
+                        if (method.needsRollback(e))
+                        {
+                            managerNanos += rollback(method, trace);
+                        }
+                        else
+                        {
+                            managerNanos += commit(method, trace);
+                        }
+                    }
+
+                    throw e;
+                }
+
+                if (requiresNew == Boolean.TRUE)
+                {
+                    if (transactionSupport.getStatus()
+                        == Status.STATUS_MARKED_ROLLBACK)
+                    {
+                        managerNanos += rollback(method, trace);
+                    }
+                    else if (method.getStreamingTimeout() >= 0
+                        && result != null)
+                    {
+                        // The transaction is completed when the result has
+                        // been consumed, and so are the permits released.
+                        result = StreamingCompletion.defer(method, result,
+                            transactionSupport, suspend(method, trace),
+                            limiter, globalLimiter,
+                            trace, breaker, probe, managerNanos);
+                        limiter = null;
+                        globalLimiter = null;
+                        breaker = null;
+                    }
+                    else
+                    {
+                        if (profile != null)
+                        {
+                            profile.beforeCommit(transactionSupport);
+                        }
+
+                        commitNanos = commit(method, trace);
+                        managerNanos += commitNanos;
+
+                        if (profile != null)
+                        {
+                            profile.afterCommit();
+                        }
+                    }
+                }
+
+                return result;
+            }
+            finally
+            {
+                // Resume the previous transaction if it was suspended.
+                if (previous != null)
+                {
+                    resume(previous, method, trace);
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            failed = isSystemError(e);
+            throw e;
+        }
+        finally
+        {
+            release(limiter, globalLimiter, commitNanos, failed);
+            if (breaker != null)
+            {
+                breaker.record(managerNanos, failed, probe);
+            }
+        }
+    }
+
+    /**
+     * Acquires the permits to start a transaction.
+     *
+     * @param limiter the limiter of the method or {@code null} if the method
+     *        is not limited.
+     * @param globalLimiter the global limiter or {@code null} if there is no
+     *        global limit.
+     * @throws TransactionRejectedException thrown if a limit has been reached.
+     */
+    private static void acquire(
+        ConcurrencyLimiter limiter,
+        ConcurrencyLimiter globalLimiter)
+    {
+        if (limiter != null)
+        {
+            limiter.acquire();
+        }
+
+        if (globalLimiter != null)
+        {
+            try
+            {
+                globalLimiter.acquire();
+            }
+            catch (RuntimeException e)
+            {
+                if (limiter != null)
+                {
+                    limiter.release(-1, false);
+                }
+
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Releases the permits acquired by {@link #acquire}.
+     *
+     * @param limiter the limiter of the method or {@code null} if the method
+     *        is not limited.
+     * @param globalLimiter the global limiter or {@code null} if there is no
+     *        global limit.
+     * @param commitNanos the commit latency in nanoseconds, or a negative
+     *        value if the transaction was not committed.
+     * @param failed {@code true} if the transaction failed with a system
+     *        error.
+     */
+    static void release(
+        ConcurrencyLimiter limiter,
+        ConcurrencyLimiter globalLimiter,
+        long commitNanos,
+        boolean failed)
+    {
+        if (globalLimiter != null)
+        {
+            globalLimiter.release(commitNanos, failed);
+        }
+
+        if (limiter != null)
+        {
+            limiter.release(commitNanos, failed);
+        }
+    }
+
+    /**
+     * Suspends the current transaction.
+     *
+     * @param method the method being invoked.
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     * @return the suspended transaction.
+     * @throws SystemException thrown if the transaction manager encounters an
+     *         unexpected error condition.
+     */
+    private Transaction suspend(
+        TransactionalMethod method,
+        TraceRecorder trace)
+    throws SystemException
+    {
+        if (log.isDebugEnabled())
+        {
+            log.debug("Suspending the current transaction");
+        }
+
+        long start = trace != null ? System.nanoTime() : 0L;
+        Transaction transaction = transactionSupport.suspend();
+        record(trace, method, TraceEvent.SUSPEND, start);
+        return transaction;
+    }
+
+    /**
+     * Starts a new transaction.
+     *
+     * @param method the method being invoked.
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     * @return the time the call took in nanoseconds.
+     * @throws NotSupportedException thrown if the thread is already associated
+     *         with a transaction.
+     * @throws SystemException thrown if the transaction manager encounters an
+     *         unexpected error condition.
+     */
+    private long begin(
+        TransactionalMethod method,
+        TraceRecorder trace)
+    throws NotSupportedException, SystemException
+    {
+        if (log.isDebugEnabled())
+        {
+            log.debug("Starting a new transaction");
+        }
+
+        long start = System.nanoTime();
+        begin(transactionSupport, method.getTimeout());
+        return record(trace, method, TraceEvent.BEGIN, start);
+    }
+
+    /**
+     * Starts a new transaction with a timeout. The timeout is only applied if
+     * the transaction support implements {@link TransactionTimeoutSupport},
+     * the timeout of the current thread is restored afterwards.
+     *
+     * @param transactionSupport the transaction support.
+     * @param timeout the timeout in seconds, or 0 for the timeout of the
+     *        current thread.
+     * @throws NotSupportedException thrown if the thread is already associated
+     *         with a transaction.
+     * @throws SystemException thrown if the transaction manager encounters an
+     *         unexpected error condition.
+     */
+    static void begin(
+        TransactionSupport transactionSupport,
+        int timeout)
+    throws NotSupportedException, SystemException
+    {
+        if (timeout <= 0
+            || !(transactionSupport instanceof TransactionTimeoutSupport))
+        {
+            transactionSupport.begin();
+            return;
+        }
+
+        TransactionTimeoutSupport timeouts =
+            (TransactionTimeoutSupport) transactionSupport;
+        int previous = timeouts.getTransactionTimeout();
+        timeouts.setTransactionTimeout(timeout);
+        try
+        {
+            transactionSupport.begin();
+        }
+        finally
+        {
+            try
+            {
+                timeouts.setTransactionTimeout(previous);
+            }
+            catch (SystemException e)
+            {
+                log.warn("Cannot restore the transaction timeout", e);
+            }
+        }
+    }
+
+    /**
+     * Commits the current transaction.
+     *
+     * @param method the method being invoked.
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     * @return the time the call took in nanoseconds.
+     * @throws RollbackException thrown if the transaction has been rolled back
+     *         rather than committed.
+     * @throws HeuristicMixedException thrown if some relevant updates have
+     *         been committed while others have been rolled back.
+     * @throws HeuristicRollbackException thrown if all relevant updates have
+     *         been rolled back.
+     * @throws SystemException thrown if the transaction manager encounters an
+     *         unexpected error condition.
+     */
+    private long commit(
+        TransactionalMethod method,
+        TraceRecorder trace)
+    throws RollbackException, HeuristicMixedException,
+        HeuristicRollbackException, SystemException
+    {
+        if (log.isDebugEnabled())
+        {
+            log.debug("Committing the current transaction");
+        }
+
+        long start = System.nanoTime();
+        TraceEvent event = TraceEvent.COMMIT;
+        try
+        {
+            transactionSupport.commit();
+        }
+        catch (RollbackException e)
+        {
+            event = TraceEvent.ROLLBACK;
+            throw e;
+        }
+        finally
+        {
+            record(trace, method, event, start);
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Rolls back the current transaction.
+     *
+     * @param method the method being invoked.
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     * @return the time the call took in nanoseconds.
+     * @throws SystemException thrown if the transaction manager encounters an
+     *         unexpected error condition.
+     */
+    private long rollback(
+        TransactionalMethod method,
+        TraceRecorder trace)
+    throws SystemException
+    {
+        if (log.isDebugEnabled())
+        {
+            log.debug("Rolling back the current transaction");
+        }
+
+        long start = System.nanoTime();
+        transactionSupport.rollback();
+        return record(trace, method, TraceEvent.ROLLBACK, start);
+    }
+
+    /**
+     * Returns the circuit breaker around the transaction manager.
+     *
+     * @return the circuit breaker or {@code null} if it is disabled.
+     */
+    private CircuitBreaker getCircuitBreaker()
+    {
+        return extension != null ? extension.getCircuitBreaker() : null;
+    }
+
+    /**
+     * Marks the current transaction for rollback.
+     *
+     * @param method the method being invoked.
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     * @throws SystemException thrown if the transaction manager encounters an
+     *         unexpected error condition.
+     */
+    private void setRollbackOnly(
+        TransactionalMethod method,
+        TraceRecorder trace)
+    throws SystemException
+    {
+        long start = trace != null ? System.nanoTime() : 0L;
+        transactionSupport.setRollbackOnly();
+        record(trace, method, TraceEvent.SET_ROLLBACK_ONLY, start);
+    }
+
+    /**
+     * Resumes the previous transaction.
+     *
+     * @param previous the transaction to resume.
+     * @param method the method being invoked.
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     * @throws InvalidTransactionException thrown if the transaction is
+     *         invalid.
+     * @throws SystemException thrown if the transaction manager encounters an
+     *         unexpected error condition.
+     */
+    private void resume(
+        Transaction previous,
+        TransactionalMethod method,
+        TraceRecorder trace)
+    throws InvalidTransactionException, SystemException
+    {
+        if (log.isDebugEnabled())
+        {
+            log.debug("Resuming the previous transaction");
+        }
+
+        long start = trace != null ? System.nanoTime() : 0L;
+        transactionSupport.resume(previous);
+        record(trace, method, TraceEvent.RESUME, start);
+    }
+
+    /**
+     * Records an event if tracing is enabled.
+     *
+     * @param trace the trace recorder or {@code null} if tracing is disabled.
+     * @param method the method being invoked.
+     * @param event the event.
+     * @param start the time the event started at in nanoseconds.
+     * @return the time the event took in nanoseconds.
+     */
+    private static long record(
+        TraceRecorder trace,
+        TransactionalMethod method,
+        TraceEvent event,
+        long start)
+    {
+        long nanos = System.nanoTime() - start;
+        if (trace != null)
+        {
+            trace.record(method.getId(), method.getAttribute().ordinal(),
+                event, nanos);
+        }
+
+        return nanos;
+    }
+
+    /**
+     * Checks if the current transaction is active, rolled back or marked for
+     * rollback.
+     *
+     * @param status the status of the current transaction.
+     * @return {@code true} if the current transaction is active, rolled back or
+     *         marked for rollback, {@code false} otherwise.
+     */
+    private static boolean isTransactionActive(
+        int status)
+    {
+        switch (status)
+        {
+        case Status.STATUS_ACTIVE:
+        case Status.STATUS_MARKED_ROLLBACK:
+        case Status.STATUS_ROLLEDBACK:
+            return true;
+
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Determines whether it is necessary to begin a new transaction.
+     *
+     * @param active the status of the current transaction.
+     * @param attribute the transaction attribute of the current method.
+     * @return {@code Boolean.TRUE} if the interceptor should suspend the
+     *         current transaction and invoke the method within a new
+     *         transaction, {@code Boolean.FALSE} if the interceptor should
+     *         invoke the method within the current transaction, {@code null} if
+     *         the interceptor should suspend the current transaction and invoke
+     *         the method outside of transaction.
+     */
+    private Boolean requiresNew(
+        boolean active,
+        TransactionAttributeType attribute)
+    {
+        switch (attribute)
+        {
+        case MANDATORY:
+            if (active)
+            {
+                return false;
+            }
+            else
+            {
+                throw new IllegalStateException(
+                    "Transaction is required to perform this method");
+            }
+
+        case NEVER:
+            if (!active)
+            {
+                return null;
+            }
+            else
+            {
+                throw new IllegalStateException(
+                    "This method cannot be invoked within a transaction");
+            }
+
+        case NOT_SUPPORTED:
+            return null;
+
+        case REQUIRED:
+            return !active;
+
+        case REQUIRES_NEW:
+            return true;
+
+        case SUPPORTS:
+            if (active)
+            {
+                return false;
+            }
+            else
+            {
+                return null;
+            }
+
+        default:
+            throw new UnsupportedOperationException(
+                "Unsupported TransactionAttribute value " + attribute);
+        }
+    }
+
+    /**
+     * Checks if an exception is a system error of the transaction manager.
+     *
+     * @param e the exception.
+     * @return {@code true} if the transaction manager failed.
+     */
+    static boolean isSystemError(
+        Exception e)
+    {
+        return e instanceof SystemException
+            || e instanceof HeuristicMixedException
+            || e instanceof HeuristicRollbackException;
+    }
+
+    /**
+     * Determines whether it is necessary to rollback the current transaction
+     * when an exception of the specified class occurred during the method
+     * invocation.
+     *
+     * @param type the class of the exception.
+     * @return {@code true} if the interceptor should rollback the current
+     *         transaction, {@code false} if the interceptor should commit the
+     *         current transaction.
+     */
+    static boolean needsRollback(
+        Class<?> type)
+    {
+        boolean rollback = RuntimeException.class.isAssignableFrom(type);
+
+        for (Class<?> clazz = type; clazz != null; clazz = clazz
+            .getSuperclass())
+        {
+            ApplicationException ae = clazz
+                .getAnnotation(ApplicationException.class);
+            if (ae != null)
+            {
+                if (ae.inherited())
+                {
+                    return ae.rollback();
+                }
+                else
+                {
+                    break;
+                }
+            }
+        }
+
+        return rollback;
+    }
+}
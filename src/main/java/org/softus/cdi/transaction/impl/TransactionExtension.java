@@ -15,47 +15,243 @@
  */
 package org.softus.cdi.transaction.impl;
 
+import java.io.File;
+import java.io.IOException;
+
+import java.lang.annotation.Annotation;
+
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.Callable;
+
+import javax.management.ObjectName;
 
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
 
 import javax.enterprise.event.Observes;
 
+import javax.enterprise.inject.Default;
+
 import javax.enterprise.inject.spi.AfterBeanDiscovery;
+import javax.enterprise.inject.spi.AfterDeploymentValidation;
 import javax.enterprise.inject.spi.AnnotatedMethod;
 import javax.enterprise.inject.spi.AnnotatedType;
+import javax.enterprise.inject.spi.Bean;
 import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.BeforeShutdown;
 import javax.enterprise.inject.spi.Extension;
+import javax.enterprise.inject.spi.ProcessBean;
 import javax.enterprise.inject.spi.ProcessManagedBean;
 import javax.enterprise.inject.spi.ProcessSessionBean;
 
 import javax.enterprise.util.AnnotationLiteral;
 
+import javax.interceptor.Interceptor;
+
+import javax.transaction.SystemException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.softus.cdi.transaction.ConcurrencyLimit;
+import org.softus.cdi.transaction.GroupCommit;
+import org.softus.cdi.transaction.Idempotent;
+import org.softus.cdi.transaction.StreamingResult;
+import org.softus.cdi.transaction.TransactionScoped;
+import org.softus.cdi.transaction.TransactionSupport;
 import org.softus.cdi.transaction.Transactional;
 
+import org.softus.cdi.transaction.trace.TraceRecorder;
+
 /**
  * <p>
  * Extension that allows to use standard EJB annotations for transaction
  * management in CDI managed beans.
  * </p>
  *
+ * <p>
+ * If the {@code org.softus.cdi.transaction.trace.file} system property is set,
+ * the transaction demarcation events are recorded into the specified file by
+ * {@link TraceRecorder}. The {@code org.softus.cdi.transaction.trace.capacity}
+ * system property sets the number of records the file holds.
+ * </p>
+ *
+ * <p>
+ * The {@code org.softus.cdi.transaction.limit.global} system property sets the
+ * initial limit of concurrent transactions started by the interceptor for all
+ * the methods, {@code org.softus.cdi.transaction.limit.globalMax} sets the
+ * maximum limit and {@code org.softus.cdi.transaction.limit.timeout} sets the
+ * time in milliseconds to wait for a permit, see {@link ConcurrencyLimit}.
+ * </p>
+ *
+ * <p>
+ * If the {@code org.softus.cdi.transaction.profile.commit} system property is
+ * {@code true}, the latencies of the commit phases of the transactions
+ * started by the interceptor are collected, see {@link CommitProfilerMBean}.
+ * </p>
+ *
+ * <p>
+ * The {@code org.softus.cdi.transaction.doomed.failFast} system property
+ * enables the refusal of the methods that would join a transaction marked
+ * for rollback: {@code all} refuses all the methods, {@code writes} refuses
+ * the methods that are not read-only, see
+ * {@link org.softus.cdi.transaction.TransactionDoomedException}.
+ * </p>
+ *
+ * <p>
+ * The {@code org.softus.cdi.transaction.circuit.failureRate} system property
+ * enables the circuit breaker around the transaction manager: the percentage
+ * of failed transactions within {@code circuit.window} milliseconds, after
+ * at least {@code circuit.minCalls} transactions, that stops starting
+ * transactions for {@code circuit.coolDown} milliseconds. The transactions
+ * whose calls to the transaction manager take longer than
+ * {@code circuit.slowCall} milliseconds are failed, {@code circuit.probes}
+ * sets the number of probe transactions started after the cool-down and
+ * {@code circuit.probeTimeout} the time in milliseconds they have to
+ * complete, see {@link CircuitBreakerMBean}.
+ * </p>
+ *
+ * <p>
+ * The transaction attribute, the timeout and the rollback rules of the
+ * methods can be overridden at runtime through
+ * {@link OverrideRegistryMBean}. The initial overrides are loaded from the
+ * properties file set by the
+ * {@code org.softus.cdi.transaction.overrides.file} system property.
+ * </p>
+ *
+ * <p>
+ * The transaction support is resolved and checked against the transaction
+ * manager when the deployment is validated, the deployment fails if the
+ * transaction manager is not available. The check is disabled by setting the
+ * {@code org.softus.cdi.transaction.startup.validate} system property to
+ * {@code false}. The {@code org.softus.cdi.transaction.startup.warmUp} system
+ * property sets the number of empty transactions started after the check,
+ * so the demarcation code is compiled before the first request.
+ * </p>
+ *
+ * <p>
+ * The extension registers management beans that monitor the transaction
+ * scoped instances and the concurrency limits, see
+ * {@link TransactionScopeMonitorMBean} and {@link ConcurrencyLimiterMBean}.
+ * The tracking of the transaction scoped instances is disabled by setting the
+ * {@code org.softus.cdi.transaction.scope.track} system property to
+ * {@code false}.
+ * </p>
+ *
  * @author Vlad Arkhipov
  */
 public class TransactionExtension
 implements Extension
 {
-    private Map<Method, TransactionAttributeType> transactionAttributes;
+    private static final Logger log = LoggerFactory
+        .getLogger(TransactionExtension.class);
+
+    private static final int DEFAULT_TRACE_CAPACITY = 65536;
+
+    private static final long DEFAULT_LIMIT_TIMEOUT = 1000;
+
+    private static final int DEFAULT_CIRCUIT_MIN_CALLS = 20;
+
+    private static final long DEFAULT_CIRCUIT_WINDOW = 10000;
+
+    private static final long DEFAULT_CIRCUIT_SLOW_CALL = 10000;
+
+    private static final long DEFAULT_CIRCUIT_COOL_DOWN = 30000;
+
+    private static final int DEFAULT_CIRCUIT_PROBES = 3;
+
+    private static final long DEFAULT_CIRCUIT_PROBE_TIMEOUT = 30000;
+
+    private Map<Method, TransactionalMethod> transactionalMethods;
+
+    private List<TransactionalMethod> methodIndex;
+
+    private volatile TraceRecorder traceRecorder;
+
+    private InstanceTracker instanceTracker;
+
+    private Map<String, ConcurrencyLimiter> limiters;
+
+    private ConcurrencyLimiter globalLimiter;
+
+    private CommitProfiler commitProfiler;
+
+    private DoomedTransactionGuard doomedGuard;
+
+    private CircuitBreaker circuitBreaker;
+
+    private Map<Bean<?>, String> scopedTransactionSupports;
+
+    private List<Bean<?>> defaultTransactionSupports;
+
+    private TransactionalContext context;
+
+    private Management management;
 
     /**
      * Creates a new extension.
      */
     public TransactionExtension()
     {
-        transactionAttributes = new HashMap<Method, TransactionAttributeType>();
+        transactionalMethods = new HashMap<Method, TransactionalMethod>();
+        methodIndex = new ArrayList<TransactionalMethod>();
+        if (Settings.getBoolean("scope.track", true))
+        {
+            instanceTracker = new InstanceTracker();
+        }
+
+        limiters = new HashMap<String, ConcurrencyLimiter>();
+        scopedTransactionSupports = new HashMap<Bean<?>, String>();
+        defaultTransactionSupports = new ArrayList<Bean<?>>();
+        if (Settings.getBoolean("profile.commit", false))
+        {
+            commitProfiler = new CommitProfiler();
+            CommitProfile.enable();
+        }
+
+        int globalLimit = Settings.getInt("limit.global", 0);
+        if (globalLimit > 0)
+        {
+            globalLimiter = new ConcurrencyLimiter("*", globalLimit, Settings
+                .getInt("limit.globalMax", globalLimit * 4), Settings.getLong(
+                "limit.timeout", DEFAULT_LIMIT_TIMEOUT));
+        }
+
+        String failFast = Settings.getString("doomed.failFast", "none");
+        if ("all".equals(failFast) || "writes".equals(failFast))
+        {
+            doomedGuard = new DoomedTransactionGuard("writes"
+                .equals(failFast));
+        }
+        else if (!"none".equals(failFast))
+        {
+            log.warn("Invalid value of doomed.failFast: " + failFast
+                + ", expected none, all or writes");
+        }
+
+        int failureRate = Settings.getInt("circuit.failureRate", 0);
+        if (failureRate > 0)
+        {
+            circuitBreaker = new CircuitBreaker(failureRate, Settings.getInt(
+                "circuit.minCalls", DEFAULT_CIRCUIT_MIN_CALLS), Settings
+                .getLong("circuit.window", DEFAULT_CIRCUIT_WINDOW), Settings
+                .getLong("circuit.slowCall", DEFAULT_CIRCUIT_SLOW_CALL),
+                Settings.getLong("circuit.coolDown", DEFAULT_CIRCUIT_COOL_DOWN),
+                Settings.getInt("circuit.probes", DEFAULT_CIRCUIT_PROBES),
+                Settings.getLong("circuit.probeTimeout",
+                    DEFAULT_CIRCUIT_PROBE_TIMEOUT));
+        }
+
+        management = new Management();
     }
 
     /**
@@ -68,6 +264,7 @@ implements Extension
     {
         boolean sessionBean = event instanceof ProcessSessionBean<?>;
         AnnotatedType<X> annotatedType = event.getAnnotatedBeanClass();
+        checkIdempotentMethods(event, annotatedType);
         boolean hasClassInterceptor = annotatedType
             .isAnnotationPresent(Transactional.class);
         if (hasClassInterceptor && sessionBean)
@@ -80,6 +277,12 @@ implements Extension
         {
             TransactionAttribute classAttr = annotatedType
                 .getAnnotation(TransactionAttribute.class);
+            GroupCommit classGroupCommit = annotatedType
+                .getAnnotation(GroupCommit.class);
+            ConcurrencyLimit classLimit = annotatedType
+                .getAnnotation(ConcurrencyLimit.class);
+            Transactional classTransactional = annotatedType
+                .getAnnotation(Transactional.class);
             for (AnnotatedMethod<? super X> am : annotatedType.getMethods())
             {
                 boolean hasMethodInterceptor = am
@@ -97,14 +300,159 @@ implements Extension
                     Method method = am.getJavaMember();
                     TransactionAttributeType attrType =
                         mergeTransactionAttributes(classAttr, attr);
-                    transactionAttributes.put(method, attrType);
+                    GroupCommit groupCommit = am
+                        .getAnnotation(GroupCommit.class);
+                    if (groupCommit != null
+                        && attrType != TransactionAttributeType.REQUIRES_NEW)
+                    {
+                        event.addDefinitionError(new RuntimeException(
+                            "@GroupCommit requires REQUIRES_NEW transaction "
+                            + "attribute for method " + am));
+                        continue;
+                    }
+
+                    if (groupCommit == null
+                        && attrType == TransactionAttributeType.REQUIRES_NEW)
+                    {
+                        groupCommit = classGroupCommit;
+                    }
+
+                    ConcurrencyLimit limit = am
+                        .getAnnotation(ConcurrencyLimit.class);
+                    ConcurrencyLimiter limiter = getLimiter(
+                        limit != null ? limit : classLimit, annotatedType
+                            .getJavaClass().getName());
+
+                    Transactional transactional = am
+                        .getAnnotation(Transactional.class);
+                    boolean readOnly = transactional != null ? transactional
+                        .readOnly() : classTransactional != null
+                        && classTransactional.readOnly();
+
+                    StreamingResult streaming = am
+                        .getAnnotation(StreamingResult.class);
+                    if (streaming != null
+                        && (groupCommit != null || !StreamingCompletion
+                            .isStreamable(method.getReturnType())))
+                    {
+                        event.addDefinitionError(new RuntimeException(
+                            "@StreamingResult requires a method returning an "
+                            + "Iterator or a closeable interface without "
+                            + "@GroupCommit " + am));
+                        continue;
+                    }
+
+                    String transactionSupport = transactional != null
+                        && transactional.transactionSupport().length() > 0
+                        ? transactional.transactionSupport()
+                        : classTransactional != null && classTransactional
+                            .transactionSupport().length() > 0
+                            ? classTransactional.transactionSupport() : null;
+
+                    addTransactionalMethod(method, attrType, groupCommit,
+                        limiter, readOnly, streaming != null ? Math.max(
+                            streaming.timeout(), 0) : -1,
+                        transactionSupport);
                 }
             }
         }
     }
 
     /**
-     * Observes {@link AfterBeanDiscovery} event.
+     * Checks that the idempotency keys of the {@link Idempotent} methods of a
+     * bean can be built. The interceptors are skipped, since their binding
+     * annotations do not make them idempotent.
+     *
+     * @param event {@link ProcessManagedBean} event.
+     * @param annotatedType the type of the bean.
+     */
+    private static <X> void checkIdempotentMethods(
+        ProcessManagedBean<X> event,
+        AnnotatedType<X> annotatedType)
+    {
+        if (annotatedType.isAnnotationPresent(Interceptor.class))
+        {
+            return;
+        }
+
+        boolean idempotentClass = annotatedType
+            .isAnnotationPresent(Idempotent.class);
+        for (AnnotatedMethod<? super X> am : annotatedType.getMethods())
+        {
+            Method method = am.getJavaMember();
+            if (!idempotentClass && !am.isAnnotationPresent(Idempotent.class)
+                || method.getDeclaringClass() == Object.class
+                || (method.getModifiers()
+                    & (Modifier.STATIC | Modifier.PRIVATE)) != 0)
+            {
+                continue;
+            }
+
+            try
+            {
+                IdempotencyRegistry.checkKey(method);
+            }
+            catch (IllegalArgumentException e)
+            {
+                event.addDefinitionError(e);
+            }
+        }
+    }
+
+    /**
+     * Observes {@link ProcessBean} event. Remembers the transaction support
+     * of the {@link TransactionScoped} beans that do not use the default one.
+     *
+     * @param event {@link ProcessBean} event.
+     */
+    <X> void processScopedBean(
+        @Observes ProcessBean<X> event)
+    {
+        if (event.getBean().getScope() != TransactionScoped.class)
+        {
+            return;
+        }
+
+        TransactionScoped scoped = event.getAnnotated().getAnnotation(
+            TransactionScoped.class);
+        if (scoped != null && scoped.transactionSupport().length() > 0)
+        {
+            scopedTransactionSupports.put(event.getBean(), scoped
+                .transactionSupport());
+        }
+    }
+
+    /**
+     * Observes {@link ProcessBean} event. Remembers the
+     * {@link TransactionSupport} beans that are not alternatives and have the
+     * {@link Default} qualifier.
+     *
+     * @param event {@link ProcessBean} event.
+     */
+    <X> void processTransactionSupport(
+        @Observes ProcessBean<X> event)
+    {
+        Bean<?> bean = event.getBean();
+        if (bean.isAlternative()
+            || !bean.getTypes().contains(TransactionSupport.class))
+        {
+            return;
+        }
+
+        for (Annotation qualifier : bean.getQualifiers())
+        {
+            if (qualifier.annotationType() == Default.class)
+            {
+                defaultTransactionSupports.add(bean);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Observes {@link AfterBeanDiscovery} event. Fails the deployment if
+     * several {@link TransactionSupport} beans have the {@link Default}
+     * qualifier, since the transaction support could not be injected then.
      *
      * @param event {@link AfterBeanDiscovery} event.
      * @param beanManager {@link BeanManager}.
@@ -113,7 +461,401 @@ implements Extension
         @Observes AfterBeanDiscovery event,
         BeanManager beanManager)
     {
-        event.addContext(new TransactionalContext(beanManager));
+        if (defaultTransactionSupports.size() > 1)
+        {
+            event.addDefinitionError(new RuntimeException(
+                "Several TransactionSupport beans have the @Default "
+                + "qualifier: " + defaultTransactionSupports
+                + ", a named transaction support must declare a qualifier "
+                + "other than @Named"));
+        }
+
+        context = new TransactionalContext(beanManager, instanceTracker);
+        event.addContext(context);
+    }
+
+    /**
+     * Observes {@link AfterDeploymentValidation} event.
+     *
+     * @param event {@link AfterDeploymentValidation} event.
+     * @param beanManager {@link BeanManager}.
+     */
+    void afterDeploymentValidated(
+        @Observes AfterDeploymentValidation event,
+        BeanManager beanManager)
+    {
+        bindTransactionSupports(event, beanManager);
+        if (Settings.getBoolean("startup.validate", true))
+        {
+            warmUp(event);
+        }
+
+        if (instanceTracker != null)
+        {
+            instanceTracker.start();
+            management.register("TransactionScope", instanceTracker,
+                TransactionScopeMonitorMBean.class);
+        }
+
+        for (ConcurrencyLimiter limiter : limiters.values())
+        {
+            registerLimiter(limiter);
+        }
+
+        if (globalLimiter != null)
+        {
+            registerLimiter(globalLimiter);
+        }
+
+        if (commitProfiler != null)
+        {
+            management.register("CommitProfile", commitProfiler,
+                CommitProfilerMBean.class);
+        }
+
+        if (doomedGuard != null)
+        {
+            management.register("DoomedTransactions", doomedGuard,
+                DoomedTransactionGuardMBean.class);
+        }
+
+        if (circuitBreaker != null)
+        {
+            management.register("CircuitBreaker", circuitBreaker,
+                CircuitBreakerMBean.class);
+        }
+
+        OverrideRegistry overrides = new OverrideRegistry(methodIndex);
+        String overridesFile = Settings.getString("overrides.file", null);
+        if (overridesFile != null)
+        {
+            try
+            {
+                overrides.load(new File(overridesFile));
+            }
+            catch (IOException e)
+            {
+                log.error("Cannot read transaction overrides from "
+                    + overridesFile, e);
+            }
+        }
+
+        management.register("TransactionOverrides", overrides,
+            OverrideRegistryMBean.class);
+
+        String traceFile = Settings.getString("trace.file", null);
+        if (traceFile != null)
+        {
+            List<String> names = new ArrayList<String>(methodIndex.size());
+            for (TransactionalMethod method : methodIndex)
+            {
+                names.add(method.getMethod().toString());
+            }
+
+            try
+            {
+                traceRecorder = new TraceRecorder(new File(traceFile),
+                    Settings.getInt("trace.capacity", DEFAULT_TRACE_CAPACITY),
+                    names);
+            }
+            catch (IOException e)
+            {
+                log.error("Cannot open trace file " + traceFile
+                    + ", tracing is disabled", e);
+            }
+        }
+    }
+
+    /**
+     * Observes {@link BeforeShutdown} event.
+     *
+     * @param event {@link BeforeShutdown} event.
+     */
+    void beforeShutdown(
+        @Observes BeforeShutdown event)
+    {
+        management.unregisterAll();
+        if (instanceTracker != null)
+        {
+            instanceTracker.stop();
+        }
+    }
+
+    /**
+     * Resolves the named transaction supports of the transactional methods
+     * and the transaction scoped beans.
+     *
+     * @param event {@link AfterDeploymentValidation} event.
+     * @param beanManager {@link BeanManager}.
+     */
+    private void bindTransactionSupports(
+        AfterDeploymentValidation event,
+        BeanManager beanManager)
+    {
+        Map<String, TransactionSupport> supports =
+            new HashMap<String, TransactionSupport>();
+        Map<String, TransactionDemarcation> demarcations =
+            new HashMap<String, TransactionDemarcation>();
+        for (TransactionalMethod method : methodIndex)
+        {
+            String name = method.getTransactionSupport();
+            if (name == null)
+            {
+                continue;
+            }
+
+            TransactionDemarcation demarcation = demarcations.get(name);
+            if (demarcation == null)
+            {
+                TransactionSupport transactionSupport = getTransactionSupport(
+                    beanManager, name, supports);
+                if (transactionSupport == null)
+                {
+                    event.addDeploymentProblem(new RuntimeException(
+                        "TransactionSupport named " + name
+                        + " was not found for method " + method.getName()));
+                    continue;
+                }
+
+                demarcation = new TransactionDemarcation(transactionSupport,
+                    this);
+                demarcations.put(name, demarcation);
+            }
+
+            method.setDemarcation(demarcation);
+        }
+
+        Map<Bean<?>, TransactionSupport> scoped =
+            new HashMap<Bean<?>, TransactionSupport>();
+        for (Map.Entry<Bean<?>, String> e : scopedTransactionSupports
+            .entrySet())
+        {
+            TransactionSupport transactionSupport = getTransactionSupport(
+                beanManager, e.getValue(), supports);
+            if (transactionSupport == null)
+            {
+                event.addDeploymentProblem(new RuntimeException(
+                    "TransactionSupport named " + e.getValue()
+                    + " was not found for transaction scoped bean "
+                    + e.getKey()));
+                continue;
+            }
+
+            scoped.put(e.getKey(), transactionSupport);
+        }
+
+        if (context != null && !scoped.isEmpty())
+        {
+            context.setTransactionSupports(scoped);
+        }
+    }
+
+    /**
+     * Resolves the default {@link TransactionSupport} bean and checks that it
+     * reaches the transaction manager, then starts the warm-up transactions.
+     * A failure is reported as a deployment problem.
+     *
+     * @param event {@link AfterDeploymentValidation} event.
+     */
+    private void warmUp(
+        AfterDeploymentValidation event)
+    {
+        if (context == null)
+        {
+            return;
+        }
+
+        final TransactionSupport transactionSupport;
+        try
+        {
+            transactionSupport = context.getTransactionSupport();
+            transactionSupport.getStatus();
+        }
+        catch (SystemException e)
+        {
+            event.addDeploymentProblem(new RuntimeException(
+                "Transaction manager is not available", e));
+            return;
+        }
+        catch (RuntimeException e)
+        {
+            event.addDeploymentProblem(new RuntimeException(
+                "Transaction manager is not available", e));
+            return;
+        }
+
+        int count = Settings.getInt("startup.warmUp", 0);
+        if (count <= 0)
+        {
+            return;
+        }
+
+        TransactionTemplate required = new TransactionTemplate(
+            transactionSupport);
+        final TransactionTemplate mandatory = required
+            .withAttribute(TransactionAttributeType.MANDATORY);
+        final Callable<Object> inner = new Callable<Object>()
+        {
+            public Object call()
+            {
+                context.isActive();
+                return null;
+            }
+        };
+        Callable<Object> outer = new Callable<Object>()
+        {
+            public Object call()
+            throws Exception
+            {
+                return mandatory.execute(inner);
+            }
+        };
+
+        long start = System.nanoTime();
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                required.execute(outer);
+            }
+        }
+        catch (Exception e)
+        {
+            event.addDeploymentProblem(new RuntimeException(
+                "Warm-up transaction failed", e));
+            return;
+        }
+
+        log.info("Started " + count + " warm-up transactions in "
+            + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Obtains a reference to a named {@link TransactionSupport} bean.
+     *
+     * @param beanManager {@link BeanManager}.
+     * @param name the name of the bean.
+     * @param resolved the beans resolved so far by name.
+     * @return the bean or {@code null} if there is no such bean.
+     */
+    private static TransactionSupport getTransactionSupport(
+        BeanManager beanManager,
+        String name,
+        Map<String, TransactionSupport> resolved)
+    {
+        TransactionSupport transactionSupport = resolved.get(name);
+        if (transactionSupport != null)
+        {
+            return transactionSupport;
+        }
+
+        Set<Bean<?>> beans = new HashSet<Bean<?>>();
+        for (Bean<?> bean : beanManager.getBeans(name))
+        {
+            if (bean.getTypes().contains(TransactionSupport.class))
+            {
+                beans.add(bean);
+            }
+        }
+
+        Bean<?> bean = beanManager.resolve(beans);
+        if (bean == null)
+        {
+            return null;
+        }
+
+        transactionSupport = (TransactionSupport) beanManager.getReference(
+            bean, TransactionSupport.class, beanManager
+                .createCreationalContext(bean));
+        resolved.put(name, transactionSupport);
+        return transactionSupport;
+    }
+
+    /**
+     * Registers the management bean of a concurrency limiter.
+     *
+     * @param limiter the concurrency limiter.
+     */
+    private void registerLimiter(
+        ConcurrencyLimiter limiter)
+    {
+        management.register("ConcurrencyLimit,name="
+            + ObjectName.quote(limiter.getName()), limiter,
+            ConcurrencyLimiterMBean.class);
+    }
+
+    /**
+     * Registers a transactional method. If the method has already been
+     * registered, its index is preserved.
+     *
+     * @param method the method.
+     * @param attribute the transaction attribute of the method.
+     * @param groupCommit the group commit settings of the method or
+     *        {@code null} if group commit is disabled.
+     * @param limiter the concurrency limiter of the method or {@code null} if
+     *        the method is not limited.
+     * @param readOnly {@code true} if the transactions started for the method
+     *        are read-only.
+     * @param streamingTimeout the streaming timeout of the method in
+     *        milliseconds, or -1 if the result is not streamed.
+     * @param transactionSupport the name of the transaction support bean of
+     *        the method, or {@code null} for the default bean.
+     */
+    private void addTransactionalMethod(
+        Method method,
+        TransactionAttributeType attribute,
+        GroupCommit groupCommit,
+        ConcurrencyLimiter limiter,
+        boolean readOnly,
+        long streamingTimeout,
+        String transactionSupport)
+    {
+        TransactionalMethod existing = transactionalMethods.get(method);
+        int id = existing != null ? existing.getId() : methodIndex.size();
+        TransactionalMethod transactionalMethod = new TransactionalMethod(id,
+            method, attribute, groupCommit, limiter, readOnly,
+            streamingTimeout, transactionSupport);
+        transactionalMethods.put(method, transactionalMethod);
+        if (existing != null)
+        {
+            methodIndex.set(id, transactionalMethod);
+        }
+        else
+        {
+            methodIndex.add(transactionalMethod);
+        }
+    }
+
+    /**
+     * Returns the concurrency limiter of a group, creating it if necessary.
+     *
+     * @param limit the concurrency limit settings or {@code null} if the
+     *        method is not limited.
+     * @param defaultName the name of the group if the settings do not specify
+     *        it.
+     * @return the concurrency limiter or {@code null} if the method is not
+     *         limited.
+     */
+    private ConcurrencyLimiter getLimiter(
+        ConcurrencyLimit limit,
+        String defaultName)
+    {
+        if (limit == null)
+        {
+            return null;
+        }
+
+        String name = limit.value().length() > 0 ? limit.value()
+            : defaultName;
+        ConcurrencyLimiter limiter = limiters.get(name);
+        if (limiter == null)
+        {
+            limiter = new ConcurrencyLimiter(name, limit.initialLimit(), limit
+                .maxLimit(), limit.timeout());
+            limiters.put(name, limiter);
+        }
+
+        return limiter;
     }
 
     /**
@@ -143,16 +885,85 @@ implements Extension
     }
 
     /**
-     * Retrieves a transaction attribute for the specified method.
+     * Retrieves transaction metadata for the specified method.
      *
      * @param method the method.
-     * @return a transaction attribute or {@code null} if the method is not
+     * @return transaction metadata or {@code null} if the method is not
      *         transactional.
      */
-    TransactionAttributeType getTransactionAttribute(
+    TransactionalMethod getTransactionalMethod(
+        Method method)
+    {
+        return transactionalMethods.get(method);
+    }
+
+    /**
+     * Returns the named transaction support a method is bound to.
+     *
+     * @param method the method.
+     * @return the transaction support or {@code null} if the method uses the
+     *         default one.
+     */
+    TransactionSupport getTransactionSupport(
         Method method)
     {
-        return transactionAttributes.get(method);
+        TransactionalMethod transactional = transactionalMethods.get(method);
+        TransactionDemarcation demarcation = transactional != null
+            ? transactional.getDemarcation() : null;
+        return demarcation != null ? demarcation.getTransactionSupport()
+            : null;
+    }
+
+    /**
+     * Returns the concurrency limiter of all the transactions started by the
+     * interceptor.
+     *
+     * @return the global concurrency limiter or {@code null} if there is no
+     *         global limit.
+     */
+    ConcurrencyLimiter getGlobalLimiter()
+    {
+        return globalLimiter;
+    }
+
+    /**
+     * Returns the commit profiler.
+     *
+     * @return the commit profiler or {@code null} if profiling is disabled.
+     */
+    CommitProfiler getCommitProfiler()
+    {
+        return commitProfiler;
+    }
+
+    /**
+     * Returns the guard against transactions marked for rollback.
+     *
+     * @return the guard or {@code null} if the fail-fast policy is disabled.
+     */
+    DoomedTransactionGuard getDoomedGuard()
+    {
+        return doomedGuard;
+    }
+
+    /**
+     * Returns the circuit breaker around the transaction manager.
+     *
+     * @return the circuit breaker or {@code null} if it is disabled.
+     */
+    CircuitBreaker getCircuitBreaker()
+    {
+        return circuitBreaker;
+    }
+
+    /**
+     * Returns the trace recorder.
+     *
+     * @return the trace recorder or {@code null} if tracing is disabled.
+     */
+    TraceRecorder getTraceRecorder()
+    {
+        return traceRecorder;
     }
 
     /**
@@ -172,5 +983,21 @@ implements Extension
         private TransactionalLiteral()
         {
         }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean readOnly()
+        {
+            return false;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String transactionSupport()
+        {
+            return "";
+        }
     }
 }
@@ -0,0 +1,456 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import java.lang.reflect.Method;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import javax.enterprise.inject.Typed;
+
+import javax.inject.Inject;
+
+import javax.interceptor.InvocationContext;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+
+import org.softus.cdi.transaction.InvalidatesMemoized;
+import org.softus.cdi.transaction.MemoizedResults;
+import org.softus.cdi.transaction.TransactionMemoized;
+import org.softus.cdi.transaction.TransactionSupport;
+
+/**
+ * <p>
+ * Stores the results of {@link TransactionMemoized} methods as a resource of
+ * the current transaction. The results are discarded when the transaction
+ * completes. A method bound to a named transaction support keeps its results
+ * in the transactions of that support, the other methods and
+ * {@link MemoizedResults} use the default one.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+@ApplicationScoped
+@Typed({ MemoizedResults.class, TransactionMemo.class })
+class TransactionMemo
+implements MemoizedResults
+{
+    private static final Object RESULTS_KEY = new Object();
+
+    private static final Object NULL = new Object();
+
+    @Inject
+    private TransactionSupport transactionSupport;
+
+    @Inject
+    private TransactionExtension extension;
+
+    private final ConcurrentMap<Method, String> memoizedRegions;
+
+    private final ConcurrentMap<Method, String[]> invalidatedRegions;
+
+    /**
+     * Creates a new store.
+     */
+    TransactionMemo()
+    {
+        memoizedRegions = new ConcurrentHashMap<Method, String>();
+        invalidatedRegions = new ConcurrentHashMap<Method, String[]>();
+    }
+
+    /**
+     * Returns the cached result of an invocation or proceeds with the
+     * invocation and caches its result.
+     *
+     * @param invocationContext the invocation context.
+     * @return the result of the invocation.
+     * @throws Exception thrown by the invocation.
+     */
+    Object memoize(
+        InvocationContext invocationContext)
+    throws Exception
+    {
+        Method method = invocationContext.getMethod();
+        Results results = getResults(method, true);
+        if (results == null)
+        {
+            return invocationContext.proceed();
+        }
+
+        String region = getMemoizedRegion(method);
+        Key key = new Key(method, invocationContext.getParameters());
+        Object cached = results.get(region, key);
+        if (cached != null)
+        {
+            return cached == NULL ? null : cached;
+        }
+
+        long generation = results.getGeneration(region);
+        Object result = invocationContext.proceed();
+
+        // Do not cache the result if the invocation has invalidated its own
+        // region, it may have been computed from the old data.
+        if (results.getGeneration(region) == generation)
+        {
+            results.put(region, key, result == null ? NULL : result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Proceeds with an invocation and invalidates the regions specified by
+     * its {@link InvalidatesMemoized} annotation.
+     *
+     * @param invocationContext the invocation context.
+     * @return the result of the invocation.
+     * @throws Exception thrown by the invocation.
+     */
+    Object invalidateAfter(
+        InvocationContext invocationContext)
+    throws Exception
+    {
+        try
+        {
+            return invocationContext.proceed();
+        }
+        finally
+        {
+            Results results = getResults(invocationContext.getMethod(),
+                false);
+            if (results != null)
+            {
+                for (String region : getInvalidatedRegions(invocationContext
+                    .getMethod()))
+                {
+                    results.invalidate(region);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void invalidate(
+        String region)
+    {
+        Results results = getResults(null, false);
+        if (results != null)
+        {
+            results.invalidate(region);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void invalidateAll()
+    {
+        Results results = getResults(null, false);
+        if (results != null)
+        {
+            results.invalidateAll();
+        }
+    }
+
+    /**
+     * Returns the results of the current transaction.
+     *
+     * @param method the intercepted method or {@code null} for the default
+     *        transaction support.
+     * @param create {@code true} if the results should be created if they do
+     *        not exist.
+     * @return the results or {@code null} if there is no active transaction
+     *         or the results do not exist and should not be created.
+     */
+    private Results getResults(
+        Method method,
+        boolean create)
+    {
+        TransactionSupport transactionSupport = method != null ? extension
+            .getTransactionSupport(method) : null;
+        if (transactionSupport == null)
+        {
+            transactionSupport = this.transactionSupport;
+        }
+
+        try
+        {
+            if (transactionSupport.getStatus() != Status.STATUS_ACTIVE)
+            {
+                return null;
+            }
+
+            Results results = (Results) transactionSupport
+                .getResource(RESULTS_KEY);
+            if (results == null && create)
+            {
+                results = new Results();
+                transactionSupport.registerSynchronization(results);
+                transactionSupport.putResource(RESULTS_KEY, results);
+            }
+
+            return results;
+        }
+        catch (RollbackException e)
+        {
+            return null;
+        }
+        catch (SystemException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the region of a memoized method.
+     *
+     * @param method the method.
+     * @return the name of the region.
+     */
+    private String getMemoizedRegion(
+        Method method)
+    {
+        String region = memoizedRegions.get(method);
+        if (region == null)
+        {
+            TransactionMemoized memoized = method
+                .getAnnotation(TransactionMemoized.class);
+            if (memoized == null)
+            {
+                memoized = method.getDeclaringClass().getAnnotation(
+                    TransactionMemoized.class);
+            }
+
+            region = memoized != null && memoized.value().length() > 0
+                ? memoized.value() : method.getDeclaringClass().getName();
+            memoizedRegions.put(method, region);
+        }
+
+        return region;
+    }
+
+    /**
+     * Returns the regions invalidated by a method.
+     *
+     * @param method the method.
+     * @return the names of the regions.
+     */
+    private String[] getInvalidatedRegions(
+        Method method)
+    {
+        String[] regions = invalidatedRegions.get(method);
+        if (regions == null)
+        {
+            InvalidatesMemoized invalidates = method
+                .getAnnotation(InvalidatesMemoized.class);
+            if (invalidates == null)
+            {
+                invalidates = method.getDeclaringClass().getAnnotation(
+                    InvalidatesMemoized.class);
+            }
+
+            regions = invalidates != null ? invalidates.value()
+                : new String[0];
+            invalidatedRegions.put(method, regions);
+        }
+
+        return regions;
+    }
+
+    /**
+     * <p>
+     * Results of a transaction. Discarded when the transaction completes.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class Results
+    implements Synchronization
+    {
+        private final Map<String, Map<Key, Object>> regions =
+            new HashMap<String, Map<Key, Object>>();
+
+        private final Map<String, Long> generations =
+            new HashMap<String, Long>();
+
+        /**
+         * Returns a cached result.
+         *
+         * @param region the region.
+         * @param key the key.
+         * @return the cached result or {@code null}.
+         */
+        synchronized Object get(
+            String region,
+            Key key)
+        {
+            Map<Key, Object> results = regions.get(region);
+            return results != null ? results.get(key) : null;
+        }
+
+        /**
+         * Caches a result.
+         *
+         * @param region the region.
+         * @param key the key.
+         * @param value the result.
+         */
+        synchronized void put(
+            String region,
+            Key key,
+            Object value)
+        {
+            Map<Key, Object> results = regions.get(region);
+            if (results == null)
+            {
+                results = new HashMap<Key, Object>();
+                regions.put(region, results);
+            }
+
+            results.put(key, value);
+        }
+
+        /**
+         * Returns the number of invalidations of a region.
+         *
+         * @param region the region.
+         * @return the number of invalidations.
+         */
+        synchronized long getGeneration(
+            String region)
+        {
+            Long generation = generations.get(region);
+            return generation != null ? generation : 0L;
+        }
+
+        /**
+         * Discards the results of a region.
+         *
+         * @param region the region.
+         */
+        synchronized void invalidate(
+            String region)
+        {
+            regions.remove(region);
+            generations.put(region, getGeneration(region) + 1);
+        }
+
+        /**
+         * Discards all the results.
+         */
+        synchronized void invalidateAll()
+        {
+            for (String region : regions.keySet())
+            {
+                generations.put(region, getGeneration(region) + 1);
+            }
+
+            regions.clear();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void beforeCompletion()
+        {
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void afterCompletion(
+            int status)
+        {
+            invalidateAll();
+        }
+    }
+
+    /**
+     * <p>
+     * Key of a cached result.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class Key
+    {
+        private final Method method;
+
+        private final Object[] arguments;
+
+        private final int hashCode;
+
+        /**
+         * Creates a new key.
+         *
+         * @param method the method.
+         * @param arguments the arguments.
+         */
+        Key(
+            Method method,
+            Object[] arguments)
+        {
+            this.method = method;
+            this.arguments = arguments != null ? arguments.clone()
+                : new Object[0];
+            hashCode = method.hashCode() * 31
+                + Arrays.deepHashCode(this.arguments);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(
+            Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+
+            Key other = (Key) obj;
+            return hashCode == other.hashCode && method.equals(other.method)
+                && Arrays.deepEquals(arguments, other.arguments);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+/**
+ * <p>
+ * Management interface that exposes the counts of transaction scoped bean
+ * instances and the instances that outlived their transactions. Registered as
+ * {@code org.softus.cdi.transaction:type=TransactionScope}.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public interface TransactionScopeMonitorMBean
+{
+    /**
+     * Returns the number of instances created.
+     *
+     * @return the number of instances created.
+     */
+    public long getCreatedCount();
+
+    /**
+     * Returns the number of instances destroyed.
+     *
+     * @return the number of instances destroyed.
+     */
+    public long getDestroyedCount();
+
+    /**
+     * Returns the number of instances that have been created but not
+     * destroyed yet.
+     *
+     * @return the number of live instances.
+     */
+    public int getLiveCount();
+
+    /**
+     * Returns the number of instances that have been alive for longer than
+     * the leak threshold.
+     *
+     * @return the number of leaked instances.
+     */
+    public long getLeakedCount();
+
+    /**
+     * Returns the number of instances that have been garbage collected without
+     * being destroyed.
+     *
+     * @return the number of collected instances.
+     */
+    public long getCollectedCount();
+
+    /**
+     * Returns the number of leaked instances that have been destroyed by
+     * {@link #reapLeaks()}.
+     *
+     * @return the number of reaped instances.
+     */
+    public long getReapedCount();
+
+    /**
+     * Returns the counts of instances per bean type in the
+     * {@code type: created=N, destroyed=N, live=N} format.
+     *
+     * @return the counts per bean type.
+     */
+    public String[] getBeanTypeCounts();
+
+    /**
+     * Returns the instances that have been alive for longer than the leak
+     * threshold.
+     *
+     * @return descriptions of the leaked instances.
+     */
+    public String[] findLeaks();
+
+    /**
+     * Destroys the instances that have been alive for longer than the leak
+     * threshold. Their transactions may still be running, so this should only
+     * be used for the transactions known to be lost.
+     *
+     * @return the number of instances destroyed.
+     */
+    public int reapLeaks();
+}
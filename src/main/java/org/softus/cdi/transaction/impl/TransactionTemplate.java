@@ -0,0 +1,205 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import java.util.concurrent.Callable;
+
+import javax.ejb.TransactionAttributeType;
+
+import javax.inject.Inject;
+
+import org.softus.cdi.transaction.TransactionSupport;
+import org.softus.cdi.transaction.Transactional;
+
+/**
+ * <p>
+ * Demarcates transactions programmatically with the same propagation,
+ * suspension and rollback rules as {@link Transactional} methods, but without
+ * an interceptor.
+ * </p>
+ *
+ * <p>
+ * A template is immutable and thread-safe. The templates for every
+ * transaction attribute are created along with the template, so
+ * {@link #withAttribute} does not allocate and the only allocation per
+ * transaction is the callable itself.
+ * </p>
+ *
+ * <pre>
+ * TransactionTemplate requiresNew = template
+ *     .withAttribute(TransactionAttributeType.REQUIRES_NEW);
+ * requiresNew.execute(new Callable&lt;Void&gt;()
+ * {
+ *     public Void call()
+ *     {
+ *         ...
+ *     }
+ * });
+ * </pre>
+ *
+ * <p>
+ * An injected template also records the transactions into the trace, profiles
+ * their commits and applies the global concurrency limit, if these are
+ * enabled. It uses the default transaction support,
+ * {@link #withTransactionSupport} returns a template for a named one.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public class TransactionTemplate
+{
+    private final TransactionDemarcation demarcation;
+
+    private final TransactionExtension extension;
+
+    private final TransactionalMethod method;
+
+    private final TransactionTemplate[] templates;
+
+    /**
+     * Creates a new template with the
+     * {@link TransactionAttributeType#REQUIRED} attribute.
+     *
+     * @param transactionSupport the transaction support.
+     */
+    public TransactionTemplate(
+        TransactionSupport transactionSupport)
+    {
+        this(transactionSupport, null);
+    }
+
+    /**
+     * Creates a new template with the
+     * {@link TransactionAttributeType#REQUIRED} attribute that reports to an
+     * extension.
+     *
+     * @param transactionSupport the transaction support.
+     * @param extension the extension or {@code null}.
+     */
+    @Inject
+    TransactionTemplate(
+        TransactionSupport transactionSupport,
+        TransactionExtension extension)
+    {
+        if (transactionSupport == null)
+        {
+            throw new IllegalArgumentException(
+                "Transaction support must not be null");
+        }
+
+        this.extension = extension;
+        demarcation = new TransactionDemarcation(transactionSupport, extension);
+
+        TransactionAttributeType[] attributes = TransactionAttributeType
+            .values();
+        templates = new TransactionTemplate[attributes.length];
+        for (TransactionAttributeType attribute : attributes)
+        {
+            templates[attribute.ordinal()] =
+                attribute == TransactionAttributeType.REQUIRED ? this
+                    : new TransactionTemplate(this, attribute);
+        }
+
+        method = new TransactionalMethod(-1, null,
+            TransactionAttributeType.REQUIRED, null, null, false, -1, null);
+    }
+
+    /**
+     * Creates a template with another attribute.
+     *
+     * @param template the template to share the configuration with.
+     * @param attribute the transaction attribute.
+     */
+    private TransactionTemplate(
+        TransactionTemplate template,
+        TransactionAttributeType attribute)
+    {
+        demarcation = template.demarcation;
+        extension = template.extension;
+        templates = template.templates;
+        method = new TransactionalMethod(-1, null, attribute, null, null,
+            false, -1, null);
+    }
+
+    /**
+     * Returns the template with the specified transaction attribute.
+     *
+     * @param attribute the transaction attribute.
+     * @return the template.
+     */
+    public TransactionTemplate withAttribute(
+        TransactionAttributeType attribute)
+    {
+        return templates[attribute.ordinal()];
+    }
+
+    /**
+     * Returns a template with the {@link TransactionAttributeType#REQUIRED}
+     * attribute that demarcates the transactions of another transaction
+     * support and reports to the same extension as this template.
+     *
+     * @param transactionSupport the transaction support.
+     * @return the template.
+     */
+    public TransactionTemplate withTransactionSupport(
+        TransactionSupport transactionSupport)
+    {
+        return new TransactionTemplate(transactionSupport, extension);
+    }
+
+    /**
+     * Returns the transaction attribute of the template.
+     *
+     * @return the transaction attribute.
+     */
+    public TransactionAttributeType getAttribute()
+    {
+        return method.getAttribute();
+    }
+
+    /**
+     * Executes a callable within the transaction context required by the
+     * transaction attribute of the template.
+     *
+     * @param callable the callable.
+     * @return the result of the callable.
+     * @throws Exception thrown if the callable or the transaction failed.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(
+        Callable<T> callable)
+    throws Exception
+    {
+        return (T) demarcation.invoke(method, callable);
+    }
+
+    /**
+     * Executes a callable within the transaction context required by the
+     * specified transaction attribute.
+     *
+     * @param attribute the transaction attribute.
+     * @param callable the callable.
+     * @return the result of the callable.
+     * @throws Exception thrown if the callable or the transaction failed.
+     */
+    public <T> T execute(
+        TransactionAttributeType attribute,
+        Callable<T> callable)
+    throws Exception
+    {
+        return withAttribute(attribute).execute(callable);
+    }
+}
@@ -17,9 +17,13 @@ package org.softus.cdi.transaction.impl;
 
 import java.lang.annotation.Annotation;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import javax.enterprise.context.ContextNotActiveException;
 
 import javax.enterprise.context.spi.Context;
@@ -29,14 +33,13 @@ import javax.enterprise.context.spi.CreationalContext;
 import javax.enterprise.inject.spi.Bean;
 import javax.enterprise.inject.spi.BeanManager;
 
-import javax.transaction.RollbackException;
 import javax.transaction.Status;
-import javax.transaction.Synchronization;
 import javax.transaction.SystemException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.softus.cdi.transaction.TransactionLocal;
 import org.softus.cdi.transaction.TransactionScoped;
 import org.softus.cdi.transaction.TransactionSupport;
 
@@ -45,30 +48,68 @@ import org.softus.cdi.transaction.TransactionSupport;
  * Context for the {@link TransactionScoped} scope.
  * </p>
  *
+ * <p>
+ * The instances of a bean are bound to the transactions of its transaction
+ * support, see {@link TransactionScoped#transactionSupport()}. The context is
+ * active while any of the transaction supports has an active transaction.
+ * </p>
+ *
  * @author Vlad Arkhipov
  */
 class TransactionalContext
 implements Context
 {
-    private static final Object TRANSACTION_BEANS_KEY =
-        TransactionalContext.class.getName() + ".TRANSACTION_BEANS";
-
     private static final Logger log = LoggerFactory
         .getLogger(TransactionalContext.class);
 
+    /**
+     * Transaction scoped beans of the transaction, destroyed after the
+     * transaction ends.
+     */
+    private static final TransactionLocal<Map<Contextual<?>,
+        ContextualInstance<?>>> INSTANCES =
+        new TransactionLocal<Map<Contextual<?>, ContextualInstance<?>>>()
+        {
+            @Override
+            protected Map<Contextual<?>, ContextualInstance<?>> initialValue()
+            {
+                return new HashMap<Contextual<?>, ContextualInstance<?>>();
+            }
+
+            @Override
+            protected void onCompletion(
+                Map<Contextual<?>, ContextualInstance<?>> instances,
+                int status)
+            {
+                destroy(instances);
+            }
+        };
+
     private BeanManager beanManager;
 
+    private InstanceTracker tracker;
+
     private volatile TransactionSupport transactionSupport;
 
+    private volatile Map<Bean<?>, TransactionSupport> transactionSupports =
+        Collections.emptyMap();
+
+    private volatile TransactionSupport[] namedTransactionSupports =
+        new TransactionSupport[0];
+
     /**
      * Creates a new transactional context.
      *
      * @param beanManager {@link BeanManager}.
+     * @param tracker the tracker of live transaction scoped instances or
+     *        {@code null} if the instances are not tracked.
      */
     TransactionalContext(
-        BeanManager beanManager)
+        BeanManager beanManager,
+        InstanceTracker tracker)
     {
         this.beanManager = beanManager;
+        this.tracker = tracker;
     }
 
     /**
@@ -94,11 +135,12 @@ implements Context
 
     /**
      * Lazily initialize the object field and gets a reference to a bean that
-     * implements {@link TransactionSupport}.
+     * implements {@link TransactionSupport}. The extension calls it at
+     * startup, so the first transaction does not resolve the bean.
      *
      * @return a bean that implements {@link TransactionSupport}.
      */
-    private TransactionSupport getTransactionSupport()
+    TransactionSupport getTransactionSupport()
     {
         if (transactionSupport == null)
         {
@@ -115,25 +157,45 @@ implements Context
     }
 
     /**
-     * Registers a synchronization object for the current transaction.
+     * Binds the beans to the transaction supports other than the default one.
+     *
+     * @param transactionSupports the transaction supports of the beans.
+     */
+    void setTransactionSupports(
+        Map<Bean<?>, TransactionSupport> transactionSupports)
+    {
+        this.transactionSupports = new HashMap<Bean<?>, TransactionSupport>(
+            transactionSupports);
+        namedTransactionSupports = new HashSet<TransactionSupport>(
+            transactionSupports.values()).toArray(new TransactionSupport[0]);
+    }
+
+    /**
+     * Returns the transaction support that owns the instances of a bean.
+     *
+     * @param contextual the bean.
+     * @return a bean that implements {@link TransactionSupport}.
+     */
+    private TransactionSupport getTransactionSupport(
+        Contextual<?> contextual)
+    {
+        TransactionSupport result = transactionSupports.get(contextual);
+        return result != null ? result : getTransactionSupport();
+    }
+
+    /**
+     * Checks if a transaction support has an active transaction.
      *
-     * @param transactionSupport a {@link TransactionSupport} bean.
-     * @param instances a map that contains transaction scoped beans for the
-     *        current transaction.
+     * @param transactionSupport a bean that implements
+     *        {@link TransactionSupport}.
+     * @return {@code true} if the current transaction is active.
      */
-    private <T> void registerSynchronization(
-        TransactionSupport transactionSupport,
-        Map<Contextual<T>, ContextualInstance<T>> instances)
+    private static boolean isActive(
+        TransactionSupport transactionSupport)
     {
         try
         {
-            transactionSupport
-                .registerSynchronization(new TransactionSynchronization<T>(
-                    instances));
-        }
-        catch (RollbackException e)
-        {
-            throw new RuntimeException(e);
+            return transactionSupport.getStatus() == Status.STATUS_ACTIVE;
         }
         catch (SystemException e)
         {
@@ -145,26 +207,44 @@ implements Context
      * Retrieves the map that contains transaction scoped beans for the current
      * transaction.
      *
-     * @param a bean that implements {@link TransactionSupport}.
+     * @param transactionSupport a bean that implements
+     *        {@link TransactionSupport}.
      * @return instances of transaction scoped beans for the current
      *         transaction.
      */
-    private <T> Map<Contextual<T>, ContextualInstance<T>> getInstances(
+    private Map<Contextual<?>, ContextualInstance<?>> getInstances(
         TransactionSupport transactionSupport)
     {
-        @SuppressWarnings("unchecked")
-        Map<Contextual<T>, ContextualInstance<T>> instances =
-            (Map<Contextual<T>, ContextualInstance<T>>) transactionSupport
-                .getResource(TRANSACTION_BEANS_KEY);
-        if (instances == null)
+        return INSTANCES.get(transactionSupport);
+    }
+
+    /**
+     * Destroys transaction scoped beans after the transaction ends.
+     *
+     * @param instances instances of transaction scoped beans for the
+     *        transaction.
+     */
+    private static void destroy(
+        Map<Contextual<?>, ContextualInstance<?>> instances)
+    {
+        synchronized (instances)
         {
-            instances = new HashMap<Contextual<T>, ContextualInstance<T>>();
-            transactionSupport.putResource(TRANSACTION_BEANS_KEY, instances);
+            for (ContextualInstance<?> instance : instances.values())
+            {
+                try
+                {
+                    instance.destroy();
+                }
+                catch (RuntimeException e)
+                {
+                    // Destroy the remaining instances anyway.
+                    log.error("Cannot destroy transaction scoped bean "
+                        + "instance " + instance, e);
+                }
+            }
 
-            registerSynchronization(transactionSupport, instances);
+            instances.clear();
         }
-
-        return instances;
     }
 
     /**
@@ -183,7 +263,9 @@ implements Context
         Contextual<T> contextual,
         CreationalContext<T> creationalContext)
     {
-        if (!isActive())
+        TransactionSupport transactionSupport = getTransactionSupport(
+            contextual);
+        if (!isActive(transactionSupport))
         {
             throw new ContextNotActiveException();
         }
@@ -194,32 +276,39 @@ implements Context
                 "No contextual specified to retrieve");
         }
 
-        TransactionSupport transactionSupport = getTransactionSupport();
-        Map<Contextual<T>, ContextualInstance<T>> instances =
+        Map<Contextual<?>, ContextualInstance<?>> instances =
             getInstances(transactionSupport);
-        ContextualInstance<T> contextualInstance = instances.get(contextual);
-        if (contextualInstance != null)
-        {
-            return contextualInstance.instance;
-        }
-        else if (creationalContext == null)
-        {
-            return null;
-        }
-        else
-        {
-            T instance = contextual.create(creationalContext);
-            contextualInstance = new ContextualInstance<T>(instance,
-                creationalContext);
-            instances.put(contextual, contextualInstance);
 
-            if (log.isDebugEnabled())
+        // A transaction may be shared by several threads and completed by a
+        // thread other than the one that uses it.
+        synchronized (instances)
+        {
+            @SuppressWarnings("unchecked")
+            ContextualInstance<T> contextualInstance =
+                (ContextualInstance<T>) instances.get(contextual);
+            if (contextualInstance != null)
             {
-                log.debug("Created a new transaction scoped instance "
-                    + contextualInstance);
+                return contextualInstance.instance;
             }
+            else if (creationalContext == null)
+            {
+                return null;
+            }
+            else
+            {
+                T instance = contextual.create(creationalContext);
+                contextualInstance = new ContextualInstance<T>(contextual,
+                    instance, creationalContext, tracker);
+                instances.put(contextual, contextualInstance);
 
-            return instance;
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Created a new transaction scoped instance "
+                        + contextualInstance);
+                }
+
+                return instance;
+            }
         }
     }
 
@@ -236,59 +325,20 @@ implements Context
      */
     public boolean isActive()
     {
-        try
+        if (isActive(getTransactionSupport()))
         {
-            return getTransactionSupport().getStatus() == Status.STATUS_ACTIVE;
+            return true;
         }
-        catch (SystemException e)
-        {
-            throw new RuntimeException(e);
-        }
-    }
-
-    /**
-     * <p>
-     * Synchronization object that destroys transaction scoped beans after the
-     * transaction ends.
-     * </p>
-     *
-     * @author Vlad Arkhipov
-     */
-    private static class TransactionSynchronization<T>
-    implements Synchronization
-    {
-        private Map<Contextual<T>, ContextualInstance<T>> instances;
 
-        /**
-         * Creates a new synchronization.
-         *
-         * @param instances instances of transaction scoped beans for the
-         *        current transaction.
-         */
-        TransactionSynchronization(
-            Map<Contextual<T>, ContextualInstance<T>> instances)
+        for (TransactionSupport named : namedTransactionSupports)
         {
-            this.instances = instances;
-        }
-
-        /**
-         * {@inheritDoc}
-         */
-        public void beforeCompletion()
-        {
-        }
-
-        /**
-         * {@inheritDoc}
-         */
-        public void afterCompletion(
-            int status)
-        {
-            for (Map.Entry<Contextual<T>, ContextualInstance<T>> entry : instances.entrySet())
+            if (isActive(named))
             {
-                entry.getValue().destroy(entry.getKey());
+                return true;
             }
         }
+
+        return false;
     }
 
     /**
@@ -300,41 +350,79 @@ implements Context
      * @author Vlad Arkhipov
      */
     private static class ContextualInstance<T>
+    implements InstanceTracker.Destroyable
     {
+        private Contextual<T> contextual;
+
         private T instance;
 
         private CreationalContext<T> creationalContext;
 
+        private InstanceTracker tracker;
+
+        private InstanceTracker.TrackedInstance tracked;
+
+        private final AtomicBoolean destroyed = new AtomicBoolean();
+
         /**
          * Creates a new object that represents an instance of a bean.
          *
+         * @param contextual a {@link Contextual}.
          * @param instance an instance of a bean.
          * @param creationalContext a {@link CreationalContext}.
+         * @param tracker the tracker of live instances or {@code null}.
          */
         public ContextualInstance(
+            Contextual<T> contextual,
             T instance,
-            CreationalContext<T> creationalContext)
+            CreationalContext<T> creationalContext,
+            InstanceTracker tracker)
         {
+            this.contextual = contextual;
             this.instance = instance;
             this.creationalContext = creationalContext;
+            this.tracker = tracker;
+
+            if (tracker != null)
+            {
+                String beanType = contextual instanceof Bean<?>
+                    ? ((Bean<?>) contextual).getBeanClass().getName()
+                    : contextual.getClass().getName();
+                tracked = tracker.created(beanType, this);
+            }
         }
 
         /**
-         * Destroys the bean.
-         *
-         * @param contextual a {@link Contextual}.
+         * Destroys the bean. Subsequent calls have no effect, so that a
+         * transaction manager that delivers the completion more than once
+         * or a late completion of a reaped instance does not destroy the bean
+         * twice.
          */
-        void destroy(
-            Contextual<T> contextual)
+        public void destroy()
         {
+            if (!destroyed.compareAndSet(false, true))
+            {
+                return;
+            }
+
             if (log.isDebugEnabled())
             {
                 log.debug("Destroying transaction scoped bean instance "
                     + this);
             }
 
-            contextual.destroy(instance, creationalContext);
-            creationalContext.release();
+            try
+            {
+                contextual.destroy(instance, creationalContext);
+                creationalContext.release();
+            }
+            finally
+            {
+                if (tracker != null)
+                {
+                    tracker.destroyed(tracked);
+                }
+            }
         }
     }
 }
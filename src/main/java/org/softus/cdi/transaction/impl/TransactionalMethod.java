@@ -0,0 +1,373 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.impl;
+
+import java.lang.reflect.Method;
+
+import javax.ejb.TransactionAttributeType;
+
+import org.softus.cdi.transaction.GroupCommit;
+
+/**
+ * <p>
+ * Transaction metadata of a method calculated at bootstrap.
+ * </p>
+ *
+ * <p>
+ * A runtime override does not change the metadata, it replaces the snapshot
+ * returned by {@link #getCurrent()}. A snapshot is immutable, so an
+ * invocation that reads the snapshot once sees either the old or the new
+ * metadata, never a mix of them.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+class TransactionalMethod
+{
+    private final int id;
+
+    private final Method method;
+
+    private final TransactionAttributeType attribute;
+
+    private final CommitGroup commitGroup;
+
+    private final ConcurrencyLimiter limiter;
+
+    private final boolean readOnly;
+
+    private final long streamingTimeout;
+
+    private final String transactionSupport;
+
+    private final Class<?>[] exceptionTypes;
+
+    private final boolean[] rollbackRules;
+
+    private final TransactionalMethod base;
+
+    private final MethodOverride override;
+
+    private volatile TransactionalMethod current;
+
+    private volatile TransactionDemarcation demarcation;
+
+    /**
+     * Creates new method metadata.
+     *
+     * @param id the index of the method, or -1 if the method is not known.
+     * @param method the method or {@code null} if the transactions are
+     *        demarcated by {@link TransactionTemplate}.
+     * @param attribute the transaction attribute of the method.
+     * @param groupCommit the group commit settings of the method or
+     *        {@code null} if group commit is disabled.
+     * @param limiter the concurrency limiter of the method or {@code null} if
+     *        the method is not limited.
+     * @param readOnly {@code true} if the transactions started for the method
+     *        are read-only.
+     * @param streamingTimeout the maximum time in milliseconds the
+     *        transactions started for the method stay open while the result is
+     *        consumed, or -1 if the result is not streamed.
+     * @param transactionSupport the name of the transaction support bean that
+     *        drives the transactions of the method, or {@code null} for the
+     *        default bean.
+     */
+    TransactionalMethod(
+        int id,
+        Method method,
+        TransactionAttributeType attribute,
+        GroupCommit groupCommit,
+        ConcurrencyLimiter limiter,
+        boolean readOnly,
+        long streamingTimeout,
+        String transactionSupport)
+    {
+        this.id = id;
+        this.method = method;
+        this.attribute = attribute;
+        commitGroup = groupCommit != null ? new CommitGroup(this, groupCommit
+            .window(), groupCommit.batchSize()) : null;
+        this.limiter = limiter;
+        this.readOnly = readOnly;
+        this.streamingTimeout = streamingTimeout;
+        this.transactionSupport = transactionSupport;
+        exceptionTypes = method != null ? method.getExceptionTypes()
+            : new Class<?>[0];
+        rollbackRules = new boolean[exceptionTypes.length];
+        for (int i = 0; i < exceptionTypes.length; i++)
+        {
+            rollbackRules[i] = TransactionDemarcation
+                .needsRollback(exceptionTypes[i]);
+        }
+
+        base = this;
+        override = null;
+        current = this;
+    }
+
+    /**
+     * Creates a snapshot of the metadata of a method with a runtime override.
+     *
+     * @param base the metadata declared by the annotations.
+     * @param override the override.
+     */
+    private TransactionalMethod(
+        TransactionalMethod base,
+        MethodOverride override)
+    {
+        id = base.id;
+        method = base.method;
+        attribute = base.attribute;
+        commitGroup = base.commitGroup;
+        limiter = base.limiter;
+        readOnly = base.readOnly;
+        streamingTimeout = base.streamingTimeout;
+        transactionSupport = base.transactionSupport;
+        exceptionTypes = base.exceptionTypes;
+        rollbackRules = base.rollbackRules;
+        this.base = base;
+        this.override = override;
+        current = this;
+    }
+
+    /**
+     * Returns the metadata in effect, the declared metadata combined with the
+     * runtime override. The demarcation reads it once per invocation.
+     *
+     * @return the snapshot of the metadata.
+     */
+    TransactionalMethod getCurrent()
+    {
+        return base.current;
+    }
+
+    /**
+     * Returns the index of the method. Indexes are assigned sequentially
+     * starting from zero.
+     *
+     * @return the index of the method.
+     */
+    int getId()
+    {
+        return id;
+    }
+
+    /**
+     * Returns the method.
+     *
+     * @return the method.
+     */
+    Method getMethod()
+    {
+        return method;
+    }
+
+    /**
+     * Returns the name of the method.
+     *
+     * @return the name of the method, or the name of the template for the
+     *         transactions demarcated by {@link TransactionTemplate}.
+     */
+    String getName()
+    {
+        return method != null ? method.toString() : "TransactionTemplate["
+            + attribute + "]";
+    }
+
+    /**
+     * Returns the transaction attribute of the method.
+     *
+     * @return the overridden transaction attribute, or the declared one if it
+     *         is not overridden.
+     */
+    TransactionAttributeType getAttribute()
+    {
+        return override != null && override.getAttribute() != null
+            ? override.getAttribute() : attribute;
+    }
+
+    /**
+     * Returns the transaction attribute declared by the annotations.
+     *
+     * @return the transaction attribute.
+     */
+    TransactionAttributeType getDeclaredAttribute()
+    {
+        return attribute;
+    }
+
+    /**
+     * Returns the timeout of the transactions started for the method.
+     *
+     * @return the timeout in seconds, or 0 for the default timeout.
+     */
+    int getTimeout()
+    {
+        return override != null && override.getTimeout() > 0 ? override
+            .getTimeout() : 0;
+    }
+
+    /**
+     * Determines whether an exception thrown by the method rolls the
+     * transaction back. The rollback rules of the override take precedence.
+     * The rules of the exceptions declared by the method are computed at
+     * bootstrap, the rules of the other exceptions are looked up when they
+     * are thrown.
+     *
+     * @param exception the exception.
+     * @return {@code true} if the transaction must be rolled back.
+     */
+    boolean needsRollback(
+        Exception exception)
+    {
+        Boolean rollback = override != null ? override
+            .needsRollback(exception) : null;
+        if (rollback != null)
+        {
+            return rollback;
+        }
+
+        Class<?> type = exception.getClass();
+        for (int i = 0; i < exceptionTypes.length; i++)
+        {
+            if (exceptionTypes[i] == type)
+            {
+                return rollbackRules[i];
+            }
+        }
+
+        return TransactionDemarcation.needsRollback(type);
+    }
+
+    /**
+     * Returns the runtime override of the method.
+     *
+     * @return the override or {@code null} if the method is not overridden.
+     */
+    MethodOverride getOverride()
+    {
+        return base.current.override;
+    }
+
+    /**
+     * Replaces the runtime override of the method.
+     *
+     * @param override the override or {@code null} to restore the declared
+     *        metadata.
+     */
+    void setOverride(
+        MethodOverride override)
+    {
+        base.current = override != null ? new TransactionalMethod(base,
+            override) : base;
+    }
+
+    /**
+     * Returns the commit group of the method.
+     *
+     * @return the commit group or {@code null} if group commit is disabled.
+     */
+    CommitGroup getCommitGroup()
+    {
+        return commitGroup;
+    }
+
+    /**
+     * Returns the concurrency limiter of the method.
+     *
+     * @return the concurrency limiter or {@code null} if the method is not
+     *         limited.
+     */
+    ConcurrencyLimiter getLimiter()
+    {
+        return limiter;
+    }
+
+    /**
+     * Checks if the transactions started for the method are read-only.
+     *
+     * @return {@code true} if the transactions are read-only.
+     */
+    boolean isReadOnly()
+    {
+        return readOnly;
+    }
+
+    /**
+     * Returns the maximum time the transactions started for the method stay
+     * open while the result is consumed.
+     *
+     * @return the timeout in milliseconds, or -1 if the result is not
+     *         streamed.
+     * @see StreamingCompletion
+     */
+    long getStreamingTimeout()
+    {
+        return streamingTimeout;
+    }
+
+    /**
+     * Returns the name of the transaction support bean that drives the
+     * transactions of the method.
+     *
+     * @return the name of the bean or {@code null} for the default bean.
+     */
+    String getTransactionSupport()
+    {
+        return transactionSupport;
+    }
+
+    /**
+     * Returns the demarcation bound to the transaction support of the method
+     * at bootstrap.
+     *
+     * @return the demarcation or {@code null} if the method uses the default
+     *         transaction support.
+     */
+    TransactionDemarcation getDemarcation()
+    {
+        return base.demarcation;
+    }
+
+    /**
+     * Binds the method to the demarcation of its transaction support.
+     *
+     * @param demarcation the demarcation.
+     */
+    void setDemarcation(
+        TransactionDemarcation demarcation)
+    {
+        base.demarcation = demarcation;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        TransactionalMethod effective = override != null ? this
+            : base.current;
+        return getName() + ", attr = " + effective.getAttribute()
+            + (readOnly ? ", readOnly" : "")
+            + (streamingTimeout >= 0 ? ", streaming" : "")
+            + (transactionSupport != null ? ", transactionSupport = "
+                + transactionSupport : "")
+            + (commitGroup != null ? ", groupCommit" : "")
+            + (effective.override != null ? ", override = "
+                + effective.override : "");
+    }
+}
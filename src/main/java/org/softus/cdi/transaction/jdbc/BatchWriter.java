@@ -0,0 +1,374 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.enterprise.inject.Typed;
+
+import javax.sql.DataSource;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.softus.cdi.transaction.TransactionScoped;
+import org.softus.cdi.transaction.TransactionSupport;
+
+/**
+ * <p>
+ * Collects the parameters of the statements that modify data and executes
+ * them in JDBC batches, so a transaction that issues many single-row
+ * statements makes a few round trips to the database.
+ * </p>
+ *
+ * <p>
+ * The parameters are queued per SQL statement. All the queues are executed,
+ * each as one batch, when a queue reaches the batch size, when
+ * {@link #flush()} is called and before the transaction completes. If a
+ * batch fails, the transaction is marked for rollback. The batches are
+ * executed in the order their statements were first queued since the last
+ * execution, so the statements that depend on each other, such as inserts of
+ * a parent and a child table, keep their order, but a statement queued again
+ * after another one may be executed before it. Call {@link #flush()} before
+ * reading the data that has been queued.
+ * </p>
+ *
+ * <p>
+ * The writer keeps the statements of one transaction, so it is usually
+ * exposed as a {@link TransactionScoped} bean:
+ * </p>
+ *
+ * <pre>
+ * &#064;Produces
+ * &#064;TransactionScoped
+ * BatchWriter produceBatchWriter(TransactionSupport transactionSupport)
+ * {
+ *     return new BatchWriter(transactionSupport, dataSource, 500);
+ * }
+ * </pre>
+ *
+ * <p>
+ * The class is annotated with an empty {@link Typed}, so the container does
+ * not discover it as a bean of its own and the producer is the only bean of
+ * the type.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+@Typed()
+public class BatchWriter
+{
+    private static final Logger log = LoggerFactory
+        .getLogger(BatchWriter.class);
+
+    private TransactionSupport transactionSupport;
+
+    private DataSource dataSource;
+
+    private int batchSize;
+
+    private Map<String, List<Object[]>> pending;
+
+    private int pendingCount;
+
+    private boolean registered;
+
+    /**
+     * Creates a new writer.
+     *
+     * @param transactionSupport the transaction support.
+     * @param dataSource the data source that provides the connections of the
+     *        transaction.
+     * @param batchSize the maximum number of parameter sets queued for a
+     *        statement.
+     */
+    public BatchWriter(
+        TransactionSupport transactionSupport,
+        DataSource dataSource,
+        int batchSize)
+    {
+        if (transactionSupport == null || dataSource == null)
+        {
+            throw new IllegalArgumentException(
+                "No transaction support or data source specified");
+        }
+
+        if (batchSize <= 0)
+        {
+            throw new IllegalArgumentException("Invalid batch size: "
+                + batchSize);
+        }
+
+        this.transactionSupport = transactionSupport;
+        this.dataSource = dataSource;
+        this.batchSize = batchSize;
+
+        pending = new LinkedHashMap<String, List<Object[]>>();
+    }
+
+    /**
+     * Creates a writer for a client proxy of a normal scoped producer.
+     */
+    protected BatchWriter()
+    {
+
+    }
+
+    /**
+     * Queues the parameters of a statement. If the statement has reached the
+     * batch size, all the queued statements are executed in the order they
+     * were first queued, so the statements queued earlier are not overtaken.
+     *
+     * @param sql the SQL statement.
+     * @param parameters the parameters of the statement.
+     * @throws SQLException thrown if the queue cannot be executed.
+     * @throws IllegalStateException thrown if there is no active transaction.
+     */
+    public void add(
+        String sql,
+        Object... parameters)
+    throws SQLException
+    {
+        if (sql == null)
+        {
+            throw new IllegalArgumentException("No SQL specified");
+        }
+
+        register();
+
+        List<Object[]> batch = pending.get(sql);
+        if (batch == null)
+        {
+            batch = new ArrayList<Object[]>();
+            pending.put(sql, batch);
+        }
+
+        batch.add(parameters != null ? parameters.clone() : new Object[0]);
+        pendingCount++;
+        if (batch.size() >= batchSize)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Executes all the queued statements.
+     *
+     * @throws SQLException thrown if a statement cannot be executed.
+     */
+    public void flush()
+    throws SQLException
+    {
+        if (pendingCount == 0)
+        {
+            return;
+        }
+
+        Connection connection = dataSource.getConnection();
+        try
+        {
+            for (Map.Entry<String, List<Object[]>> e : pending.entrySet())
+            {
+                execute(connection, e.getKey(), e.getValue());
+            }
+
+            // The statements queued after the flush are ordered anew.
+            pending.clear();
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    /**
+     * Returns the number of the queued parameter sets.
+     *
+     * @return the number of the parameter sets.
+     */
+    public int getPendingCount()
+    {
+        return pendingCount;
+    }
+
+    /**
+     * Executes the queue of a statement as one batch. Marks the transaction
+     * for rollback if the batch fails.
+     *
+     * @param connection the connection.
+     * @param sql the SQL statement.
+     * @param batch the parameters of the statement.
+     * @throws SQLException thrown if the batch cannot be executed.
+     */
+    private void execute(
+        Connection connection,
+        String sql,
+        List<Object[]> batch)
+    throws SQLException
+    {
+        if (batch.isEmpty())
+        {
+            return;
+        }
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("Executing a batch of " + batch.size() + " statements "
+                + sql);
+        }
+
+        try
+        {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            try
+            {
+                for (Object[] parameters : batch)
+                {
+                    for (int i = 0; i < parameters.length; i++)
+                    {
+                        statement.setObject(i + 1, parameters[i]);
+                    }
+
+                    statement.addBatch();
+                }
+
+                statement.executeBatch();
+            }
+            finally
+            {
+                statement.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            setRollbackOnly();
+            throw e;
+        }
+        finally
+        {
+            pendingCount -= batch.size();
+            batch.clear();
+        }
+    }
+
+    /**
+     * Registers the synchronization that executes the queued statements
+     * before the transaction completes.
+     *
+     * @throws IllegalStateException thrown if there is no active transaction.
+     */
+    private void register()
+    {
+        if (registered)
+        {
+            return;
+        }
+
+        try
+        {
+            if (transactionSupport.getStatus() != Status.STATUS_ACTIVE)
+            {
+                throw new IllegalStateException(
+                    "Active transaction is required to queue statements");
+            }
+
+            transactionSupport.registerSynchronization(new Flush());
+        }
+        catch (RollbackException e)
+        {
+            throw new IllegalStateException(
+                "Active transaction is required to queue statements", e);
+        }
+        catch (SystemException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        registered = true;
+    }
+
+    /**
+     * Marks the transaction for rollback.
+     */
+    private void setRollbackOnly()
+    {
+        try
+        {
+            transactionSupport.setRollbackOnly();
+        }
+        catch (SystemException e)
+        {
+            log.warn("Cannot mark the transaction for rollback", e);
+        }
+    }
+
+    /**
+     * <p>
+     * Executes the queued statements before the transaction completes and
+     * discards them after.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private class Flush
+    implements Synchronization
+    {
+        /**
+         * {@inheritDoc}
+         */
+        public void beforeCompletion()
+        {
+            try
+            {
+                flush();
+            }
+            catch (SQLException e)
+            {
+                throw new BatchFlushException("Cannot execute the queued "
+                    + "statements", e.getNextException() != null ? e
+                    .getNextException() : e);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void afterCompletion(
+            int status)
+        {
+            if (pendingCount > 0 && log.isDebugEnabled())
+            {
+                log.debug("Discarding " + pendingCount + " queued statements");
+            }
+
+            pending.clear();
+            pendingCount = 0;
+            registered = false;
+        }
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.jdbc;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import java.util.Locale;
+
+/**
+ * <p>
+ * Marks a connection read-only and wraps it so that the statements that
+ * obviously modify data are rejected before they reach the database. The
+ * read-only flag is what prevents the writes on the databases that enforce
+ * it, the check of the statements is a best-effort diagnostic that fails
+ * early with a clear error.
+ * </p>
+ *
+ * <p>
+ * Only the SQL statements that start with {@code SELECT}, {@code WITH},
+ * {@code VALUES}, {@code SHOW}, {@code EXPLAIN} or {@code DESCRIBE} can be
+ * executed or queried, updates and batches are always rejected. A
+ * {@code WITH} statement is rejected if it contains {@code INSERT},
+ * {@code UPDATE}, {@code DELETE} or {@code MERGE}. The check cannot see the
+ * writes made by the functions a query calls. Callable statements are not
+ * checked, only the read-only flag applies to them.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+final class ReadOnlyConnectionGuard
+{
+    /**
+     * The SQL state of the exception thrown for a rejected statement, which is
+     * the standard state of a write in a read-only transaction.
+     */
+    static final String SQL_STATE = "25006";
+
+    private static final String[] QUERY_KEYWORDS = { "SELECT", "WITH",
+        "VALUES", "SHOW", "EXPLAIN", "DESCRIBE", "DESC" };
+
+    private static final String[] DML_KEYWORDS = { "INSERT", "UPDATE",
+        "DELETE", "MERGE" };
+
+    /**
+     * Prevents instantiation.
+     */
+    private ReadOnlyConnectionGuard()
+    {
+
+    }
+
+    /**
+     * Marks a connection read-only and wraps it.
+     *
+     * @param connection the connection.
+     * @return the guarded connection.
+     * @throws SQLException thrown if the connection cannot be marked
+     *         read-only.
+     */
+    static Connection guard(
+        Connection connection)
+    throws SQLException
+    {
+        connection.setReadOnly(true);
+        return (Connection) Proxy.newProxyInstance(
+            ReadOnlyConnectionGuard.class.getClassLoader(),
+            new Class<?>[] { Connection.class }, new ConnectionHandler(
+                connection));
+    }
+
+    /**
+     * Checks if an SQL statement only reads data.
+     *
+     * @param sql the SQL statement.
+     * @return {@code true} if the statement starts with a query keyword and,
+     *         if it is a {@code WITH} statement, does not contain a data
+     *         modification keyword.
+     */
+    static boolean isQuery(
+        String sql)
+    {
+        if (sql == null)
+        {
+            return false;
+        }
+
+        int i = 0;
+        int length = sql.length();
+        while (i < length)
+        {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c) || c == '(')
+            {
+                i++;
+            }
+            else if (sql.startsWith("--", i))
+            {
+                int end = sql.indexOf('\n', i);
+                i = end < 0 ? length : end + 1;
+            }
+            else if (sql.startsWith("/*", i))
+            {
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+            }
+            else
+            {
+                break;
+            }
+        }
+
+        int end = i;
+        while (end < length && Character.isLetter(sql.charAt(end)))
+        {
+            end++;
+        }
+
+        String keyword = sql.substring(i, end).toUpperCase(Locale.ENGLISH);
+        if ("WITH".equals(keyword))
+        {
+            // A common table expression may insert, update or delete rows.
+            return !containsDml(sql, end);
+        }
+
+        for (String query : QUERY_KEYWORDS)
+        {
+            if (query.equals(keyword))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Checks if an SQL statement contains a data modification keyword outside
+     * of the literals, the quoted identifiers and the comments.
+     *
+     * @param sql the SQL statement.
+     * @param start the index to start from.
+     * @return {@code true} if a data modification keyword is found.
+     */
+    private static boolean containsDml(
+        String sql,
+        int start)
+    {
+        int i = start;
+        int length = sql.length();
+        while (i < length)
+        {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"')
+            {
+                int end = sql.indexOf(c, i + 1);
+                i = end < 0 ? length : end + 1;
+            }
+            else if (sql.startsWith("--", i))
+            {
+                int end = sql.indexOf('\n', i);
+                i = end < 0 ? length : end + 1;
+            }
+            else if (sql.startsWith("/*", i))
+            {
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+            }
+            else if (Character.isLetter(c))
+            {
+                int end = i;
+                while (end < length && (Character.isLetterOrDigit(sql
+                    .charAt(end)) || sql.charAt(end) == '_'))
+                {
+                    end++;
+                }
+
+                String word = sql.substring(i, end).toUpperCase(
+                    Locale.ENGLISH);
+                for (String dml : DML_KEYWORDS)
+                {
+                    if (dml.equals(word))
+                    {
+                        return true;
+                    }
+                }
+
+                i = end;
+            }
+            else
+            {
+                i++;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Creates the exception for a rejected statement.
+     *
+     * @param sql the SQL statement or {@code null} if unknown.
+     * @return the exception.
+     */
+    private static SQLException reject(
+        String sql)
+    {
+        return new SQLException("Cannot modify data in a read-only transaction"
+            + (sql != null ? ": " + sql : ""), SQL_STATE);
+    }
+
+    /**
+     * Invokes a method of the target and unwraps the exceptions.
+     *
+     * @param target the target.
+     * @param method the method.
+     * @param args the arguments.
+     * @return the result of the method.
+     * @throws Throwable thrown by the method.
+     */
+    private static Object invoke(
+        Object target,
+        Method method,
+        Object[] args)
+    throws Throwable
+    {
+        try
+        {
+            return method.invoke(target, args);
+        }
+        catch (InvocationTargetException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * <p>
+     * Guards a connection.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class ConnectionHandler
+    implements InvocationHandler
+    {
+        private final Connection connection;
+
+        /**
+         * Creates a new handler.
+         *
+         * @param connection the connection.
+         */
+        ConnectionHandler(
+            Connection connection)
+        {
+            this.connection = connection;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object invoke(
+            Object proxy,
+            Method method,
+            Object[] args)
+        throws Throwable
+        {
+            String name = method.getName();
+            if ("setReadOnly".equals(name) && Boolean.FALSE.equals(args[0]))
+            {
+                throw new SQLException(
+                    "Cannot make a connection of a read-only transaction "
+                    + "writable", SQL_STATE);
+            }
+
+            Object result = ReadOnlyConnectionGuard.invoke(connection, method,
+                args);
+            if ("createStatement".equals(name))
+            {
+                return Proxy.newProxyInstance(ReadOnlyConnectionGuard.class
+                    .getClassLoader(), new Class<?>[] { Statement.class },
+                    new StatementHandler((Statement) result, (Connection) proxy,
+                        null));
+            }
+
+            if ("prepareStatement".equals(name))
+            {
+                return Proxy.newProxyInstance(ReadOnlyConnectionGuard.class
+                    .getClassLoader(),
+                    new Class<?>[] { PreparedStatement.class },
+                    new StatementHandler((Statement) result, (Connection) proxy,
+                        (String) args[0]));
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * <p>
+     * Guards a statement.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class StatementHandler
+    implements InvocationHandler
+    {
+        private final Statement statement;
+
+        private final Connection connection;
+
+        private final String preparedSql;
+
+        /**
+         * Creates a new handler.
+         *
+         * @param statement the statement.
+         * @param connection the guarded connection.
+         * @param preparedSql the SQL of a prepared statement or {@code null}.
+         */
+        StatementHandler(
+            Statement statement,
+            Connection connection,
+            String preparedSql)
+        {
+            this.statement = statement;
+            this.connection = connection;
+            this.preparedSql = preparedSql;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object invoke(
+            Object proxy,
+            Method method,
+            Object[] args)
+        throws Throwable
+        {
+            String name = method.getName();
+            if (name.startsWith("executeUpdate")
+                || name.startsWith("executeLargeUpdate")
+                || name.startsWith("executeBatch")
+                || name.startsWith("executeLargeBatch")
+                || "addBatch".equals(name))
+            {
+                throw reject(args != null && args.length > 0
+                    && args[0] instanceof String ? (String) args[0]
+                    : preparedSql);
+            }
+
+            if ("execute".equals(name) || "executeQuery".equals(name))
+            {
+                String sql = args != null && args.length > 0 ? (String) args[0]
+                    : preparedSql;
+                if (!isQuery(sql))
+                {
+                    throw reject(sql);
+                }
+            }
+
+            if ("getConnection".equals(name))
+            {
+                return connection;
+            }
+
+            return ReadOnlyConnectionGuard.invoke(statement, method, args);
+        }
+    }
+}
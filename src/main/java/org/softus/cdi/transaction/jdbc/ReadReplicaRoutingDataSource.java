@@ -0,0 +1,229 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.jdbc;
+
+import java.io.PrintWriter;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import org.softus.cdi.transaction.ReadOnlyTransactions;
+import org.softus.cdi.transaction.TransactionSupport;
+
+/**
+ * <p>
+ * Data source that obtains the connections of read-only transactions from a
+ * replica and all the other connections from the primary data source, see
+ * {@link ReadOnlyTransactions}.
+ * </p>
+ *
+ * <p>
+ * The replica connections are marked read-only. If the write guard is
+ * enabled, they also reject the statements that obviously modify data with
+ * {@link SQLException} in the {@code 25006} (read-only SQL transaction)
+ * state, so an accidental write fails early. The guard is best-effort, the
+ * read-only flag is what the database enforces.
+ * </p>
+ *
+ * <p>
+ * The data source is usually exposed with a producer method:
+ * </p>
+ *
+ * <pre>
+ * &#064;Produces
+ * &#064;ApplicationScoped
+ * DataSource produceDataSource(TransactionSupport transactionSupport)
+ * {
+ *     return new ReadReplicaRoutingDataSource(transactionSupport, primary,
+ *         replica, true);
+ * }
+ * </pre>
+ *
+ * @author Vlad Arkhipov
+ */
+public class ReadReplicaRoutingDataSource
+implements DataSource
+{
+    private final TransactionSupport transactionSupport;
+
+    private final DataSource primary;
+
+    private final DataSource replica;
+
+    private final boolean guardWrites;
+
+    /**
+     * Creates a new data source.
+     *
+     * @param transactionSupport the transaction support.
+     * @param primary the primary data source.
+     * @param replica the replica data source.
+     * @param guardWrites {@code true} if the replica connections must reject
+     *        the statements that modify data.
+     */
+    public ReadReplicaRoutingDataSource(
+        TransactionSupport transactionSupport,
+        DataSource primary,
+        DataSource replica,
+        boolean guardWrites)
+    {
+        this.transactionSupport = transactionSupport;
+        this.primary = primary;
+        this.replica = replica;
+        this.guardWrites = guardWrites;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Connection getConnection()
+    throws SQLException
+    {
+        if (!ReadOnlyTransactions.isReadOnly(transactionSupport))
+        {
+            return primary.getConnection();
+        }
+
+        return prepareReplica(replica.getConnection());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Connection getConnection(
+        String username,
+        String password)
+    throws SQLException
+    {
+        if (!ReadOnlyTransactions.isReadOnly(transactionSupport))
+        {
+            return primary.getConnection(username, password);
+        }
+
+        return prepareReplica(replica.getConnection(username, password));
+    }
+
+    /**
+     * Marks a replica connection read-only and guards it if necessary.
+     *
+     * @param connection the replica connection.
+     * @return the connection to return to the caller.
+     * @throws SQLException thrown if the connection cannot be marked
+     *         read-only.
+     */
+    private Connection prepareReplica(
+        Connection connection)
+    throws SQLException
+    {
+        try
+        {
+            if (guardWrites)
+            {
+                return ReadOnlyConnectionGuard.guard(connection);
+            }
+
+            connection.setReadOnly(true);
+            return connection;
+        }
+        catch (SQLException e)
+        {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public PrintWriter getLogWriter()
+    throws SQLException
+    {
+        return primary.getLogWriter();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setLogWriter(
+        PrintWriter out)
+    throws SQLException
+    {
+        primary.setLogWriter(out);
+        replica.setLogWriter(out);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setLoginTimeout(
+        int seconds)
+    throws SQLException
+    {
+        primary.setLoginTimeout(seconds);
+        replica.setLoginTimeout(seconds);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getLoginTimeout()
+    throws SQLException
+    {
+        return primary.getLoginTimeout();
+    }
+
+    /**
+     * Not supported.
+     *
+     * @return never returns.
+     * @throws SQLFeatureNotSupportedException always thrown.
+     */
+    public Logger getParentLogger()
+    throws SQLFeatureNotSupportedException
+    {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public <T> T unwrap(
+        Class<T> iface)
+    throws SQLException
+    {
+        if (iface.isInstance(this))
+        {
+            return iface.cast(this);
+        }
+
+        return primary.unwrap(iface);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean isWrapperFor(
+        Class<?> iface)
+    throws SQLException
+    {
+        return iface.isInstance(this) || primary.isWrapperFor(iface);
+    }
+}
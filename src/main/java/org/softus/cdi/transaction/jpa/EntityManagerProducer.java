@@ -0,0 +1,270 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.jpa;
+
+import javax.enterprise.inject.Typed;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.softus.cdi.transaction.TransactionScoped;
+import org.softus.cdi.transaction.TransactionSupport;
+
+/**
+ * <p>
+ * Creates the entity managers of {@link TransactionScoped} producers, so
+ * every injection point within a transaction shares one persistence context.
+ * </p>
+ *
+ * <p>
+ * An entity manager is created when it is first used within a transaction
+ * and joined to the transaction. It is cleared and closed by the disposer
+ * when the transaction scoped beans of the transaction are destroyed, which
+ * happens after the transaction completes. The factory must use JTA entity
+ * managers.
+ * </p>
+ *
+ * <p>
+ * If the single flush is enabled, the flush mode of the entity managers is
+ * set to {@link FlushModeType#COMMIT}, so the queries do not flush the
+ * changes, and the changes are flushed once before the transaction
+ * completes. The queries of a transaction then may not see its own
+ * unflushed changes.
+ * </p>
+ *
+ * <pre>
+ * &#064;Produces
+ * &#064;Singleton
+ * EntityManagerProducer produceEntityManagerProducer(
+ *     TransactionSupport transactionSupport)
+ * {
+ *     return new EntityManagerProducer(transactionSupport,
+ *         entityManagerFactory, true);
+ * }
+ *
+ * &#064;Produces
+ * &#064;TransactionScoped
+ * EntityManager produceEntityManager(EntityManagerProducer producer)
+ * {
+ *     return producer.create();
+ * }
+ *
+ * void disposeEntityManager(&#064;Disposes EntityManager entityManager,
+ *     EntityManagerProducer producer)
+ * {
+ *     producer.close(entityManager);
+ * }
+ * </pre>
+ *
+ * <p>
+ * The producer is not proxyable, so it is produced in the
+ * {@link javax.inject.Singleton} pseudo-scope. The class is annotated with an
+ * empty {@link Typed}, so the container does not discover it as a bean of
+ * its own and the producer is the only bean of the type.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+@Typed()
+public class EntityManagerProducer
+{
+    private static final Logger log = LoggerFactory
+        .getLogger(EntityManagerProducer.class);
+
+    private final TransactionSupport transactionSupport;
+
+    private final EntityManagerFactory entityManagerFactory;
+
+    private final boolean singleFlush;
+
+    /**
+     * Creates a new producer.
+     *
+     * @param transactionSupport the transaction support.
+     * @param entityManagerFactory the factory of the entity managers.
+     * @param singleFlush {@code true} if the changes are flushed once before
+     *        the transaction completes.
+     */
+    public EntityManagerProducer(
+        TransactionSupport transactionSupport,
+        EntityManagerFactory entityManagerFactory,
+        boolean singleFlush)
+    {
+        if (transactionSupport == null || entityManagerFactory == null)
+        {
+            throw new IllegalArgumentException(
+                "No transaction support or entity manager factory specified");
+        }
+
+        this.transactionSupport = transactionSupport;
+        this.entityManagerFactory = entityManagerFactory;
+        this.singleFlush = singleFlush;
+    }
+
+    /**
+     * Creates an entity manager joined to the current transaction.
+     *
+     * @return the entity manager.
+     * @throws IllegalStateException thrown if there is no active transaction.
+     */
+    public EntityManager create()
+    {
+        try
+        {
+            if (transactionSupport.getStatus() != Status.STATUS_ACTIVE)
+            {
+                throw new IllegalStateException(
+                    "Active transaction is required to create an entity "
+                    + "manager");
+            }
+        }
+        catch (SystemException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        EntityManager entityManager = entityManagerFactory
+            .createEntityManager();
+        try
+        {
+            entityManager.joinTransaction();
+            if (singleFlush)
+            {
+                entityManager.setFlushMode(FlushModeType.COMMIT);
+                transactionSupport.registerSynchronization(new Flush(
+                    entityManager));
+            }
+        }
+        catch (RollbackException e)
+        {
+            entityManager.close();
+            throw new IllegalStateException(
+                "Active transaction is required to create an entity manager",
+                e);
+        }
+        catch (SystemException e)
+        {
+            entityManager.close();
+            throw new RuntimeException(e);
+        }
+        catch (RuntimeException e)
+        {
+            entityManager.close();
+            throw e;
+        }
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("Created entity manager " + entityManager);
+        }
+
+        return entityManager;
+    }
+
+    /**
+     * Clears and closes an entity manager. Does nothing if the entity manager
+     * is already closed.
+     *
+     * @param entityManager the entity manager.
+     */
+    public void close(
+        EntityManager entityManager)
+    {
+        if (!entityManager.isOpen())
+        {
+            return;
+        }
+
+        try
+        {
+            entityManager.clear();
+        }
+        finally
+        {
+            entityManager.close();
+        }
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("Closed entity manager " + entityManager);
+        }
+    }
+
+    /**
+     * <p>
+     * Flushes the changes of an entity manager before the transaction
+     * completes.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private class Flush
+    implements Synchronization
+    {
+        private final EntityManager entityManager;
+
+        /**
+         * Creates a new synchronization.
+         *
+         * @param entityManager the entity manager.
+         */
+        Flush(
+            EntityManager entityManager)
+        {
+            this.entityManager = entityManager;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void beforeCompletion()
+        {
+            try
+            {
+                if (!entityManager.isOpen()
+                    || transactionSupport.getStatus() == Status
+                        .STATUS_MARKED_ROLLBACK)
+                {
+                    return;
+                }
+            }
+            catch (SystemException e)
+            {
+                throw new RuntimeException(e);
+            }
+
+            entityManager.flush();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void afterCompletion(
+            int status)
+        {
+
+        }
+    }
+}
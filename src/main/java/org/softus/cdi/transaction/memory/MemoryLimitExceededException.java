@@ -0,0 +1,41 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.memory;
+
+/**
+ * <p>
+ * Thrown when a transaction allocates more memory than the limit of its
+ * {@link TransactionMemory}.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public class MemoryLimitExceededException
+extends RuntimeException
+{
+    private static final long serialVersionUID = 7381926450183746211L;
+
+    /**
+     * Creates a new exception.
+     *
+     * @param message the detail message.
+     */
+    public MemoryLimitExceededException(
+        String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.memory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Byte buffer of a transaction that keeps its contents on the heap while the
+ * transaction stays within the spill threshold of its
+ * {@link TransactionMemory} and moves them to a temporary file once the
+ * threshold is exceeded. The heap it holds is accounted to the transaction.
+ * The buffer is freed when the transaction completes.
+ * </p>
+ *
+ * <p>
+ * The buffer is not thread-safe.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public class SpillableBuffer
+{
+    private static final Logger log = LoggerFactory
+        .getLogger(SpillableBuffer.class);
+
+    private static final int MIN_CAPACITY = 256;
+
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final TransactionMemory memory;
+
+    private byte[] data;
+
+    private long size;
+
+    private File file;
+
+    private FileChannel channel;
+
+    private boolean freed;
+
+    /**
+     * Creates a new buffer.
+     *
+     * @param memory the accounting of the transaction.
+     */
+    SpillableBuffer(
+        TransactionMemory memory)
+    {
+        this.memory = memory;
+        data = EMPTY;
+    }
+
+    /**
+     * Appends bytes to the buffer.
+     *
+     * @param b the bytes.
+     * @throws IOException thrown if the bytes cannot be written to the
+     *         temporary file.
+     */
+    public void write(
+        byte[] b)
+    throws IOException
+    {
+        write(b, 0, b.length);
+    }
+
+    /**
+     * Appends bytes to the buffer.
+     *
+     * @param b the bytes.
+     * @param off the offset of the first byte.
+     * @param len the number of bytes.
+     * @throws IOException thrown if the bytes cannot be written to the
+     *         temporary file.
+     * @throws MemoryLimitExceededException thrown if the buffer cannot grow
+     *         within the limit of the transaction.
+     */
+    public void write(
+        byte[] b,
+        int off,
+        int len)
+    throws IOException
+    {
+        checkNotFreed();
+        if (channel == null && size + len > data.length)
+        {
+            grow(size + len);
+        }
+
+        if (channel != null)
+        {
+            ByteBuffer src = ByteBuffer.wrap(b, off, len);
+            long position = size;
+            while (src.hasRemaining())
+            {
+                position += channel.write(src, position);
+            }
+        }
+        else
+        {
+            System.arraycopy(b, off, data, (int) size, len);
+        }
+
+        size += len;
+    }
+
+    /**
+     * Reads bytes from the buffer.
+     *
+     * @param position the position of the first byte.
+     * @param b the array to read the bytes into.
+     * @param off the offset in the array.
+     * @param len the maximum number of bytes.
+     * @return the number of bytes read, or -1 if the position is at the end of
+     *         the buffer.
+     * @throws IOException thrown if the bytes cannot be read from the
+     *         temporary file.
+     */
+    public int read(
+        long position,
+        byte[] b,
+        int off,
+        int len)
+    throws IOException
+    {
+        checkNotFreed();
+        if (position >= size)
+        {
+            return -1;
+        }
+
+        int n = (int) Math.min(len, size - position);
+        if (channel != null)
+        {
+            ByteBuffer dst = ByteBuffer.wrap(b, off, n);
+            while (dst.hasRemaining())
+            {
+                if (channel.read(dst, position + dst.position() - off) < 0)
+                {
+                    break;
+                }
+            }
+
+            return dst.position() - off;
+        }
+
+        System.arraycopy(data, (int) position, b, off, n);
+        return n;
+    }
+
+    /**
+     * Returns a stream that reads the buffer from the beginning.
+     *
+     * @return the stream.
+     */
+    public InputStream getInputStream()
+    {
+        return new InputStream()
+        {
+            private long position;
+
+            @Override
+            public int read()
+            throws IOException
+            {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(
+                byte[] b,
+                int off,
+                int len)
+            throws IOException
+            {
+                if (len == 0)
+                {
+                    return 0;
+                }
+
+                int n = SpillableBuffer.this.read(position, b, off, len);
+                if (n > 0)
+                {
+                    position += n;
+                }
+
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Returns the number of bytes in the buffer.
+     *
+     * @return the number of bytes.
+     */
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * Checks if the contents of the buffer have been moved to a temporary
+     * file.
+     *
+     * @return {@code true} if the buffer has spilled.
+     */
+    public boolean isSpilled()
+    {
+        return channel != null;
+    }
+
+    /**
+     * Frees the buffer before the transaction completes.
+     */
+    public void free()
+    {
+        if (!freed)
+        {
+            memory.release(data.length);
+            discard();
+        }
+    }
+
+    /**
+     * Grows the heap array or spills the buffer if the transaction would
+     * exceed its spill threshold.
+     *
+     * @param required the required capacity.
+     * @throws IOException thrown if the buffer cannot be spilled.
+     */
+    private void grow(
+        long required)
+    throws IOException
+    {
+        long capacity = Math.max(Math.max(required, (long) data.length * 2),
+            MIN_CAPACITY);
+        if (capacity > MAX_CAPACITY)
+        {
+            capacity = required;
+        }
+
+        long extra = capacity - data.length;
+        if (capacity > MAX_CAPACITY || memory.needsSpill(extra))
+        {
+            spill();
+            return;
+        }
+
+        memory.allocate(extra);
+        data = Arrays.copyOf(data, (int) capacity);
+    }
+
+    /**
+     * Moves the contents of the buffer to a temporary file and releases the
+     * heap array.
+     *
+     * @throws IOException thrown if the temporary file cannot be written.
+     */
+    private void spill()
+    throws IOException
+    {
+        file = File.createTempFile("transaction-", ".spill");
+        try
+        {
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            ByteBuffer src = ByteBuffer.wrap(data, 0, (int) size);
+            while (src.hasRemaining())
+            {
+                channel.write(src, src.position());
+            }
+        }
+        catch (IOException e)
+        {
+            closeChannel();
+            throw e;
+        }
+
+        if (log.isDebugEnabled())
+        {
+            log.debug("Spilled " + size + " bytes to " + file);
+        }
+
+        memory.release(data.length);
+        data = EMPTY;
+    }
+
+    /**
+     * Discards the contents of the buffer without accounting.
+     */
+    void discard()
+    {
+        freed = true;
+        data = EMPTY;
+        size = 0;
+        closeChannel();
+    }
+
+    /**
+     * Closes and deletes the temporary file.
+     */
+    private void closeChannel()
+    {
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                log.warn("Cannot close " + file, e);
+            }
+
+            channel = null;
+        }
+
+        if (file != null)
+        {
+            if (!file.delete() && file.exists())
+            {
+                log.warn("Cannot delete " + file);
+            }
+
+            file = null;
+        }
+    }
+
+    /**
+     * Checks that the buffer has not been freed.
+     *
+     * @throws IllegalStateException thrown if the buffer has been freed.
+     */
+    private void checkNotFreed()
+    {
+        if (freed)
+        {
+            throw new IllegalStateException("Buffer has been freed");
+        }
+    }
+}
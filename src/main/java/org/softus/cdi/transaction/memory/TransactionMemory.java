@@ -0,0 +1,266 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.memory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.softus.cdi.transaction.TransactionLocal;
+import org.softus.cdi.transaction.TransactionSupport;
+
+/**
+ * <p>
+ * Accounts the memory held by the state of each transaction, such as the
+ * buffers of transaction scoped beans and the transaction resources, against
+ * a budget.
+ * </p>
+ *
+ * <p>
+ * The holders of the state report the memory they allocate and release. A
+ * warning is logged once per transaction when its usage exceeds the warning
+ * threshold, and an allocation that would exceed the limit fails with
+ * {@link MemoryLimitExceededException}. Once the usage would exceed the spill
+ * threshold, the {@link SpillableBuffer}s of the transaction move their
+ * contents to temporary files instead of growing on the heap. The usage is
+ * discarded and the buffers are freed when the transaction completes.
+ * </p>
+ *
+ * <p>
+ * The accounting is usually exposed as an application scoped bean:
+ * </p>
+ *
+ * <pre>
+ * &#064;Produces
+ * &#064;ApplicationScoped
+ * TransactionMemory produceTransactionMemory(
+ *     TransactionSupport transactionSupport)
+ * {
+ *     return new TransactionMemory(transactionSupport, 64 &lt;&lt; 20,
+ *         128 &lt;&lt; 20, 256 &lt;&lt; 20);
+ * }
+ * </pre>
+ *
+ * @author Vlad Arkhipov
+ */
+public class TransactionMemory
+{
+    private static final Logger log = LoggerFactory
+        .getLogger(TransactionMemory.class);
+
+    private final TransactionSupport transactionSupport;
+
+    private final long spillThreshold;
+
+    private final long warningThreshold;
+
+    private final long limit;
+
+    private final TransactionLocal<Usage> usage;
+
+    /**
+     * Creates a new accounting. A threshold that is not positive is
+     * disabled.
+     *
+     * @param transactionSupport the transaction support.
+     * @param spillThreshold the usage in bytes above which the buffers spill
+     *        to temporary files.
+     * @param warningThreshold the usage in bytes above which a warning is
+     *        logged.
+     * @param limit the maximum usage in bytes.
+     */
+    public TransactionMemory(
+        TransactionSupport transactionSupport,
+        long spillThreshold,
+        long warningThreshold,
+        long limit)
+    {
+        if (transactionSupport == null)
+        {
+            throw new IllegalArgumentException(
+                "No transaction support specified");
+        }
+
+        this.transactionSupport = transactionSupport;
+        this.spillThreshold = spillThreshold;
+        this.warningThreshold = warningThreshold;
+        this.limit = limit;
+
+        usage = new TransactionLocal<Usage>()
+        {
+            @Override
+            protected Usage initialValue()
+            {
+                return new Usage();
+            }
+
+            @Override
+            protected void onCompletion(
+                Usage value,
+                int status)
+            {
+                value.free();
+            }
+        };
+    }
+
+    /**
+     * Accounts memory allocated within the current transaction.
+     *
+     * @param bytes the number of bytes.
+     * @throws MemoryLimitExceededException thrown if the allocation would
+     *         exceed the limit.
+     * @throws IllegalStateException thrown if there is no current
+     *         transaction.
+     */
+    public void allocate(
+        long bytes)
+    {
+        Usage u = usage.get(transactionSupport);
+        long used;
+        synchronized (u)
+        {
+            used = u.used + bytes;
+            if (limit > 0 && used > limit)
+            {
+                throw new MemoryLimitExceededException("Transaction cannot "
+                    + "use " + used + " bytes, the limit is " + limit);
+            }
+
+            u.used = used;
+            if (warningThreshold <= 0 || used <= warningThreshold || u.warned)
+            {
+                return;
+            }
+
+            u.warned = true;
+        }
+
+        log.warn("Transaction uses " + used + " bytes, more than "
+            + warningThreshold);
+    }
+
+    /**
+     * Accounts memory released within the current transaction.
+     *
+     * @param bytes the number of bytes.
+     * @throws IllegalStateException thrown if there is no current
+     *         transaction.
+     */
+    public void release(
+        long bytes)
+    {
+        Usage u = usage.get(transactionSupport);
+        synchronized (u)
+        {
+            u.used = Math.max(u.used - bytes, 0);
+        }
+    }
+
+    /**
+     * Returns the memory used by the current transaction.
+     *
+     * @return the number of bytes.
+     * @throws IllegalStateException thrown if there is no current
+     *         transaction.
+     */
+    public long getUsed()
+    {
+        Usage u = usage.get(transactionSupport);
+        synchronized (u)
+        {
+            return u.used;
+        }
+    }
+
+    /**
+     * Creates a new buffer that is freed when the current transaction
+     * completes.
+     *
+     * @return the buffer.
+     * @throws IllegalStateException thrown if there is no current
+     *         transaction.
+     */
+    public SpillableBuffer newBuffer()
+    {
+        Usage u = usage.get(transactionSupport);
+        SpillableBuffer buffer = new SpillableBuffer(this);
+        synchronized (u)
+        {
+            u.buffers.add(buffer);
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Checks if an allocation within the current transaction would exceed
+     * the spill threshold.
+     *
+     * @param bytes the number of bytes.
+     * @return {@code true} if the allocation must be spilled.
+     */
+    boolean needsSpill(
+        long bytes)
+    {
+        return spillThreshold > 0 && getUsed() + bytes > spillThreshold;
+    }
+
+    /**
+     * <p>
+     * The memory used by a transaction and its buffers.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class Usage
+    {
+        private final List<SpillableBuffer> buffers;
+
+        private long used;
+
+        private boolean warned;
+
+        /**
+         * Creates a new usage.
+         */
+        Usage()
+        {
+            buffers = new ArrayList<SpillableBuffer>();
+        }
+
+        /**
+         * Frees the buffers.
+         */
+        void free()
+        {
+            List<SpillableBuffer> freed;
+            synchronized (this)
+            {
+                freed = new ArrayList<SpillableBuffer>(buffers);
+                buffers.clear();
+                used = 0;
+            }
+
+            for (SpillableBuffer buffer : freed)
+            {
+                buffer.discard();
+            }
+        }
+    }
+}
@@ -0,0 +1,796 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.store;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.softus.cdi.transaction.TransactionSupport;
+
+/**
+ * <p>
+ * In-memory multi-version key-value store that participates in the current
+ * transaction through a synchronization object.
+ * </p>
+ *
+ * <p>
+ * A transaction reads a snapshot of the store taken when it first accesses
+ * the store and sees its own changes. The changes are validated before the
+ * transaction completes: if a concurrent transaction has committed or is
+ * committing a change of any key the transaction read or wrote, the
+ * transaction is marked for rollback and {@link WriteConflictException} is
+ * thrown. Otherwise the changes become visible atomically when the
+ * transaction commits, so the committed transactions are serializable.
+ * </p>
+ *
+ * <p>
+ * Outside of a transaction, reads return the latest committed values and each
+ * change is committed immediately.
+ * </p>
+ *
+ * <p>
+ * Versions that are no longer visible to any active transaction are discarded
+ * when the key is changed and periodically for the whole store.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public class MvccStore<K, V>
+{
+    private static final Logger log = LoggerFactory.getLogger(MvccStore.class);
+
+    /**
+     * Marks a key deleted within a transaction.
+     */
+    private static final Object DELETED = new Object();
+
+    /**
+     * Owns a version chain that is being removed from the store.
+     */
+    private static final Object COLLECTOR = new Object();
+
+    /**
+     * Replaces the tail of a version chain discarded by the garbage
+     * collection.
+     */
+    private static final Version<Object> PRUNED = new Version<Object>(-1, null,
+        null);
+
+    /**
+     * The number of commits between garbage collections of the whole store.
+     */
+    private static final int COLLECTION_INTERVAL = 1024;
+
+    private final Object resourceKey = new Object();
+
+    private final TransactionSupport transactionSupport;
+
+    private final ConcurrentMap<K, VersionChain<V>> chains;
+
+    private final AtomicLong clock;
+
+    private final Object commitLock;
+
+    private final TreeMap<Long, int[]> snapshots;
+
+    private int commitsSinceCollection;
+
+    /**
+     * Creates a new store.
+     *
+     * @param transactionSupport a {@link TransactionSupport} bean.
+     */
+    public MvccStore(
+        TransactionSupport transactionSupport)
+    {
+        if (transactionSupport == null)
+        {
+            throw new IllegalArgumentException(
+                "No transaction support specified");
+        }
+
+        this.transactionSupport = transactionSupport;
+
+        chains = new ConcurrentHashMap<K, VersionChain<V>>();
+        clock = new AtomicLong();
+        commitLock = new Object();
+        snapshots = new TreeMap<Long, int[]>();
+    }
+
+    /**
+     * Returns the value associated with the key.
+     *
+     * @param key the key.
+     * @return the value or {@code null} if there is no value for the key.
+     */
+    public V get(
+        K key)
+    {
+        checkKey(key);
+
+        TransactionState state = getState();
+        if (state == null)
+        {
+            return readLatest(key);
+        }
+
+        return state.get(key);
+    }
+
+    /**
+     * Associates the value with the key.
+     *
+     * @param key the key.
+     * @param value the value.
+     */
+    public void put(
+        K key,
+        V value)
+    {
+        if (value == null)
+        {
+            throw new IllegalArgumentException("No value specified");
+        }
+
+        change(key, value);
+    }
+
+    /**
+     * Removes the value associated with the key.
+     *
+     * @param key the key.
+     */
+    public void remove(
+        K key)
+    {
+        change(key, DELETED);
+    }
+
+    /**
+     * Returns the timestamp of the last committed transaction.
+     *
+     * @return the timestamp.
+     */
+    public long getCommittedVersion()
+    {
+        return clock.get();
+    }
+
+    /**
+     * Discards the versions that are no longer visible to any active
+     * transaction.
+     */
+    public void collectGarbage()
+    {
+        long horizon = getOldestSnapshot();
+        for (Map.Entry<K, VersionChain<V>> e : chains.entrySet())
+        {
+            prune(e.getKey(), e.getValue(), horizon);
+        }
+    }
+
+    /**
+     * Records a change of the key either in the current transaction or
+     * commits it immediately.
+     *
+     * @param key the key.
+     * @param change the new value or {@link #DELETED}.
+     */
+    private void change(
+        K key,
+        Object change)
+    {
+        checkKey(key);
+
+        TransactionState state = getState();
+        if (state != null)
+        {
+            state.writes.put(key, change);
+            return;
+        }
+
+        for (;;)
+        {
+            state = new TransactionState(beginSnapshot());
+            state.writes.put(key, change);
+            try
+            {
+                state.prepare();
+                state.afterCompletion(Status.STATUS_COMMITTED);
+                return;
+            }
+            catch (WriteConflictException e)
+            {
+                state.afterCompletion(Status.STATUS_ROLLEDBACK);
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Checks that the key is not {@code null}.
+     *
+     * @param key the key.
+     */
+    private void checkKey(
+        K key)
+    {
+        if (key == null)
+        {
+            throw new IllegalArgumentException("No key specified");
+        }
+    }
+
+    /**
+     * Reads the latest committed value of the key.
+     *
+     * @param key the key.
+     * @return the value or {@code null}.
+     */
+    private V readLatest(
+        K key)
+    {
+        VersionChain<V> chain = chains.get(key);
+        if (chain == null)
+        {
+            return null;
+        }
+
+        for (;;)
+        {
+            // The snapshot is not registered, the versions it needs may be
+            // pruned meanwhile. Retry with a newer snapshot in that case.
+            Version<V> version = chain.find(clock.get());
+            if (version != PRUNED)
+            {
+                return version == null ? null : version.value;
+            }
+        }
+    }
+
+    /**
+     * Retrieves the state of the store in the current transaction.
+     *
+     * @return the state or {@code null} if there is no transaction.
+     */
+    private TransactionState getState()
+    {
+        int status;
+        try
+        {
+            status = transactionSupport.getStatus();
+        }
+        catch (SystemException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        if (status != Status.STATUS_ACTIVE
+            && status != Status.STATUS_MARKED_ROLLBACK)
+        {
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        TransactionState state = (TransactionState) transactionSupport
+            .getResource(resourceKey);
+        if (state == null)
+        {
+            if (status == Status.STATUS_ACTIVE)
+            {
+                state = new TransactionState(beginSnapshot());
+                try
+                {
+                    transactionSupport.registerSynchronization(state);
+                }
+                catch (RollbackException e)
+                {
+                    endSnapshot(state.snapshot);
+                    state = new TransactionState(-1);
+                }
+                catch (SystemException e)
+                {
+                    endSnapshot(state.snapshot);
+                    throw new RuntimeException(e);
+                }
+            }
+            else
+            {
+                // A transaction marked for rollback never commits, so it
+                // reads the latest values without holding a snapshot.
+                state = new TransactionState(-1);
+            }
+
+            transactionSupport.putResource(resourceKey, state);
+        }
+
+        return state;
+    }
+
+    /**
+     * Registers a new snapshot.
+     *
+     * @return the timestamp of the snapshot.
+     */
+    private long beginSnapshot()
+    {
+        synchronized (snapshots)
+        {
+            Long snapshot = clock.get();
+            int[] count = snapshots.get(snapshot);
+            if (count == null)
+            {
+                snapshots.put(snapshot, new int[] { 1 });
+            }
+            else
+            {
+                count[0]++;
+            }
+
+            return snapshot;
+        }
+    }
+
+    /**
+     * Unregisters the snapshot.
+     *
+     * @param snapshot the timestamp of the snapshot.
+     */
+    private void endSnapshot(
+        long snapshot)
+    {
+        if (snapshot < 0)
+        {
+            return;
+        }
+
+        synchronized (snapshots)
+        {
+            int[] count = snapshots.get(snapshot);
+            if (--count[0] == 0)
+            {
+                snapshots.remove(snapshot);
+            }
+        }
+    }
+
+    /**
+     * Returns the oldest timestamp that may be read by an active transaction.
+     *
+     * @return the timestamp.
+     */
+    private long getOldestSnapshot()
+    {
+        synchronized (snapshots)
+        {
+            long latest = clock.get();
+            return snapshots.isEmpty() ? latest : Math.min(
+                snapshots.firstKey(), latest);
+        }
+    }
+
+    /**
+     * Discards the versions of the key that are not visible to any snapshot
+     * not older than the horizon. Removes the key if it is deleted.
+     *
+     * @param key the key.
+     * @param chain the version chain of the key.
+     * @param horizon the oldest snapshot.
+     */
+    private void prune(
+        K key,
+        VersionChain<V> chain,
+        long horizon)
+    {
+        Version<V> head = chain.head;
+        Version<V> version = chain.find(horizon);
+        if (version == null || version == PRUNED)
+        {
+            return;
+        }
+
+        if (version.next != null)
+        {
+            version.next = pruned();
+        }
+
+        if (version == head && head.value == null
+            && chain.owner.compareAndSet(null, COLLECTOR))
+        {
+            if (chain.head == head)
+            {
+                // The chain stays owned by the collector forever, writers that
+                // obtained it before the removal will retry.
+                chains.remove(key, chain);
+            }
+            else
+            {
+                chain.owner.set(null);
+            }
+        }
+    }
+
+    /**
+     * Returns {@link #PRUNED} cast to the value type.
+     *
+     * @return {@link #PRUNED}.
+     */
+    @SuppressWarnings("unchecked")
+    private static <V> Version<V> pruned()
+    {
+        return (Version<V>) (Version<?>) PRUNED;
+    }
+
+    /**
+     * <p>
+     * State of the store within a transaction: the snapshot, the keys read
+     * from it and the changes made by the transaction.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private class TransactionState
+    implements Synchronization
+    {
+        private final long snapshot;
+
+        private final Map<K, Object> writes = new LinkedHashMap<K, Object>();
+
+        private final Set<K> reads = new HashSet<K>();
+
+        private final Map<K, VersionChain<V>> locked =
+            new LinkedHashMap<K, VersionChain<V>>();
+
+        /**
+         * Creates a new state.
+         *
+         * @param snapshot the timestamp of the snapshot or {@code -1} if the
+         *        transaction reads the latest values.
+         */
+        TransactionState(
+            long snapshot)
+        {
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * Reads the value of the key.
+         *
+         * @param key the key.
+         * @return the value or {@code null}.
+         */
+        @SuppressWarnings("unchecked")
+        V get(
+            K key)
+        {
+            Object change = writes.get(key);
+            if (change != null)
+            {
+                return change == DELETED ? null : (V) change;
+            }
+
+            if (snapshot < 0)
+            {
+                return readLatest(key);
+            }
+
+            reads.add(key);
+            VersionChain<V> chain = chains.get(key);
+            Version<V> version = chain == null ? null : chain.find(snapshot);
+            return version == null ? null : version.value;
+        }
+
+        /**
+         * Locks the changed keys and validates the keys read and written by the
+         * transaction.
+         *
+         * @throws WriteConflictException thrown if there is a conflicting
+         *         transaction.
+         */
+        void prepare()
+        {
+            for (K key : writes.keySet())
+            {
+                VersionChain<V> chain;
+                for (;;)
+                {
+                    chain = chains.get(key);
+                    if (chain == null)
+                    {
+                        VersionChain<V> newChain = new VersionChain<V>();
+                        chain = chains.putIfAbsent(key, newChain);
+                        if (chain == null)
+                        {
+                            chain = newChain;
+                        }
+                    }
+
+                    if (!chain.owner.compareAndSet(null, this))
+                    {
+                        if (chain.owner.get() == COLLECTOR)
+                        {
+                            // Removed by the collector, use a new chain.
+                            chains.remove(key, chain);
+                            continue;
+                        }
+
+                        conflict(key);
+                    }
+
+                    if (chains.get(key) == chain)
+                    {
+                        break;
+                    }
+
+                    chain.owner.set(null);
+                }
+
+                locked.put(key, chain);
+
+                Version<V> head = chain.head;
+                if (head != null && head.timestamp > snapshot)
+                {
+                    conflict(key);
+                }
+            }
+
+            // Keys that were only read need to be validated only if the
+            // transaction writes anything.
+            if (writes.isEmpty())
+            {
+                return;
+            }
+
+            for (K key : reads)
+            {
+                if (writes.containsKey(key))
+                {
+                    continue;
+                }
+
+                VersionChain<V> chain = chains.get(key);
+                if (chain != null)
+                {
+                    Object owner = chain.owner.get();
+                    Version<V> head = chain.head;
+                    if ((owner != null && owner != COLLECTOR)
+                        || (head != null && head.timestamp > snapshot))
+                    {
+                        conflict(key);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Unlocks the keys and throws {@link WriteConflictException}.
+         *
+         * @param key the conflicting key.
+         */
+        private void conflict(
+            K key)
+        {
+            unlock();
+            throw new WriteConflictException(
+                "Concurrent transaction has changed the key " + key);
+        }
+
+        /**
+         * Unlocks the keys locked by the transaction. Removes the keys that
+         * were created by the transaction.
+         */
+        private void unlock()
+        {
+            for (Map.Entry<K, VersionChain<V>> e : locked.entrySet())
+            {
+                VersionChain<V> chain = e.getValue();
+                if (chain.head == null
+                    && chain.owner.compareAndSet(this, COLLECTOR))
+                {
+                    chains.remove(e.getKey(), chain);
+                }
+                else
+                {
+                    chain.owner.compareAndSet(this, null);
+                }
+            }
+
+            locked.clear();
+        }
+
+        /**
+         * Makes the changes visible.
+         */
+        @SuppressWarnings("unchecked")
+        private void install()
+        {
+            boolean collect = false;
+            synchronized (commitLock)
+            {
+                long timestamp = clock.get() + 1;
+                for (Map.Entry<K, VersionChain<V>> e : locked.entrySet())
+                {
+                    Object change = writes.get(e.getKey());
+                    VersionChain<V> chain = e.getValue();
+                    chain.head = new Version<V>(timestamp,
+                        change == DELETED ? null : (V) change, chain.head);
+                }
+
+                clock.set(timestamp);
+
+                if (++commitsSinceCollection >= COLLECTION_INTERVAL)
+                {
+                    commitsSinceCollection = 0;
+                    collect = true;
+                }
+            }
+
+            long horizon = getOldestSnapshot();
+            for (Map.Entry<K, VersionChain<V>> e : locked.entrySet())
+            {
+                VersionChain<V> chain = e.getValue();
+                chain.owner.compareAndSet(this, null);
+                prune(e.getKey(), chain, horizon);
+            }
+
+            locked.clear();
+
+            if (collect)
+            {
+                collectGarbage();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void beforeCompletion()
+        {
+            try
+            {
+                prepare();
+            }
+            catch (WriteConflictException e)
+            {
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Rolling back the current transaction", e);
+                }
+
+                try
+                {
+                    transactionSupport.setRollbackOnly();
+                }
+                catch (SystemException se)
+                {
+                    log.warn("Cannot mark the transaction for rollback", se);
+                }
+
+                throw e;
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void afterCompletion(
+            int status)
+        {
+            try
+            {
+                if (status == Status.STATUS_COMMITTED && !locked.isEmpty())
+                {
+                    install();
+                }
+                else
+                {
+                    unlock();
+                }
+            }
+            finally
+            {
+                endSnapshot(snapshot);
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Committed versions of a key, the latest first. The owner is the
+     * transaction that is committing a change of the key.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class VersionChain<V>
+    {
+        private final AtomicReference<Object> owner =
+            new AtomicReference<Object>();
+
+        private volatile Version<V> head;
+
+        /**
+         * Finds the latest version visible to the snapshot.
+         *
+         * @param snapshot the timestamp of the snapshot.
+         * @return the version, {@code null} if there is no such version, or
+         *         {@link MvccStore#PRUNED} if the version has been discarded.
+         */
+        Version<V> find(
+            long snapshot)
+        {
+            Version<V> version = head;
+            while (version != null && version != PRUNED
+                && version.timestamp > snapshot)
+            {
+                version = version.next;
+            }
+
+            return version;
+        }
+    }
+
+    /**
+     * <p>
+     * A committed version of a value. The {@code null} value represents a
+     * deleted key.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    private static class Version<V>
+    {
+        private final long timestamp;
+
+        private final V value;
+
+        private volatile Version<V> next;
+
+        /**
+         * Creates a new version.
+         *
+         * @param timestamp the timestamp of the transaction that committed it.
+         * @param value the value.
+         * @param next the previous version.
+         */
+        Version(
+            long timestamp,
+            V value,
+            Version<V> next)
+        {
+            this.timestamp = timestamp;
+            this.value = value;
+            this.next = next;
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.store;
+
+/**
+ * <p>
+ * Thrown when a transaction cannot commit its changes to an {@link MvccStore}
+ * because a concurrent transaction has changed the keys it read or wrote.
+ * The transaction is rolled back.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public class WriteConflictException
+extends RuntimeException
+{
+    private static final long serialVersionUID = -2297946015836326958L;
+
+    /**
+     * Creates a new exception.
+     *
+     * @param message the detail message.
+     */
+    public WriteConflictException(
+        String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.trace;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+
+import java.text.SimpleDateFormat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * <p>
+ * Decodes a file written by {@link TraceRecorder} into a timeline and
+ * per-method summaries.
+ * </p>
+ *
+ * <p>
+ * Usage: {@code java org.softus.cdi.transaction.trace.TraceDecoder
+ * [--summary] <file>}. Prints the timeline, or the summary if
+ * {@code --summary} is specified.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public class TraceDecoder
+{
+    private final List<Record> records;
+
+    private final Map<Integer, String> methodNames;
+
+    /**
+     * Reads a trace file and the method names written along with it. The
+     * method names are ignored if they do not match the hash in the header
+     * of the trace file, and the methods are printed by their indexes.
+     *
+     * @param file the trace file.
+     * @throws IOException thrown if the file cannot be read or is not a trace
+     *         file.
+     */
+    public TraceDecoder(
+        File file)
+    throws IOException
+    {
+        records = readRecords(file);
+        Map<Integer, String> names = readMethodNames(new File(file.getPath()
+            + TraceRecorder.METHODS_SUFFIX));
+        List<String> list = new ArrayList<String>(names.size());
+        for (int i = 0; i < names.size() && names.containsKey(i); i++)
+        {
+            list.add(names.get(i));
+        }
+
+        if (list.size() == names.size()
+            && TraceRecorder.hash(list) == readNamesHash(file))
+        {
+            methodNames = names;
+        }
+        else
+        {
+            System.err.println("Method names in " + file.getPath()
+                + TraceRecorder.METHODS_SUFFIX + " do not match the trace "
+                + "file, printing the method indexes");
+            methodNames = new HashMap<Integer, String>();
+        }
+    }
+
+    /**
+     * Runs the decoder.
+     *
+     * @param args the command line arguments.
+     * @throws IOException thrown if the file cannot be read.
+     */
+    public static void main(
+        String[] args)
+    throws IOException
+    {
+        boolean summary = args.length == 2 && "--summary".equals(args[0]);
+        if (args.length != (summary ? 2 : 1))
+        {
+            System.err.println("Usage: TraceDecoder [--summary] <file>");
+            System.exit(1);
+        }
+
+        TraceDecoder decoder = new TraceDecoder(new File(args[args.length - 1]));
+        if (summary)
+        {
+            decoder.printSummary(System.out);
+        }
+        else
+        {
+            decoder.printTimeline(System.out);
+        }
+    }
+
+    /**
+     * Returns the records in the order they were written.
+     *
+     * @return the records.
+     */
+    public List<Record> getRecords()
+    {
+        return Collections.unmodifiableList(records);
+    }
+
+    /**
+     * Prints the records in the order they were written.
+     *
+     * @param out the stream to print to.
+     */
+    public void printTimeline(
+        PrintStream out)
+    {
+        SimpleDateFormat format = new SimpleDateFormat(
+            "yyyy-MM-dd HH:mm:ss.SSS");
+        for (Record record : records)
+        {
+            out.println(format.format(new Date(record.getTime())) + " thread="
+                + record.getThreadId() + " " + record.getEvent() + " "
+                + record.getDurationMicros() + "us " + record.getAttribute()
+                + " " + getMethodName(record.getMethodId()));
+        }
+    }
+
+    /**
+     * Prints the number of events and their average and maximum durations for
+     * each method.
+     *
+     * @param out the stream to print to.
+     */
+    public void printSummary(
+        PrintStream out)
+    {
+        Map<String, long[]> summary = new TreeMap<String, long[]>();
+        for (Record record : records)
+        {
+            String key = getMethodName(record.getMethodId()) + " "
+                + record.getEvent();
+            long[] stats = summary.get(key);
+            if (stats == null)
+            {
+                stats = new long[3];
+                summary.put(key, stats);
+            }
+
+            stats[0]++;
+            stats[1] += record.getDurationMicros();
+            stats[2] = Math.max(stats[2], record.getDurationMicros());
+        }
+
+        for (Map.Entry<String, long[]> e : summary.entrySet())
+        {
+            long[] stats = e.getValue();
+            out.println(e.getKey() + ": count=" + stats[0] + " avg="
+                + (stats[1] / stats[0]) + "us max=" + stats[2] + "us");
+        }
+    }
+
+    /**
+     * Returns the name of the method with the specified index.
+     *
+     * @param methodId the index of the method.
+     * @return the name of the method.
+     */
+    private String getMethodName(
+        int methodId)
+    {
+        String name = methodNames.get(methodId);
+        return name != null ? name : "method#" + methodId;
+    }
+
+    /**
+     * Reads the records from a trace file.
+     *
+     * @param file the trace file.
+     * @return the records sorted by their sequence numbers.
+     * @throws IOException thrown if the file cannot be read or is not a trace
+     *         file.
+     */
+    private static List<Record> readRecords(
+        File file)
+    throws IOException
+    {
+        byte[] data;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            data = new byte[(int) raf.length()];
+            raf.readFully(data);
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (data.length < TraceRecorder.HEADER_SIZE
+            || buffer.getInt(0) != TraceRecorder.MAGIC
+            || buffer.getInt(4) != TraceRecorder.VERSION)
+        {
+            throw new IOException("Not a trace file: " + file);
+        }
+
+        int capacity = buffer.getInt(8);
+        int recordSize = buffer.getInt(12);
+        TransactionAttributeType[] attributes = TransactionAttributeType
+            .values();
+        TraceEvent[] events = TraceEvent.values();
+
+        List<Record> records = new ArrayList<Record>();
+        for (int i = 0; i < capacity; i++)
+        {
+            int position = TraceRecorder.HEADER_SIZE + i * recordSize;
+            if (position + recordSize > data.length)
+            {
+                break;
+            }
+
+            long seq = buffer.getLong(position);
+            int attribute = buffer.get(position + 28);
+            int event = buffer.get(position + 29);
+            if (seq == 0 || attribute < 0 || attribute >= attributes.length
+                || event < 0 || event >= events.length)
+            {
+                continue;
+            }
+
+            records.add(new Record(seq, buffer.getLong(position + 8), buffer
+                .getInt(position + 16), buffer.getInt(position + 20), buffer
+                .getInt(position + 24), attributes[attribute], events[event]));
+        }
+
+        Collections.sort(records, new Comparator<Record>()
+        {
+            public int compare(
+                Record o1,
+                Record o2)
+            {
+                return o1.sequence < o2.sequence ? -1
+                    : (o1.sequence > o2.sequence ? 1 : 0);
+            }
+        });
+
+        return records;
+    }
+
+    /**
+     * Reads the hash of the method names from the header of a trace file.
+     *
+     * @param file the trace file.
+     * @return the hash of the method names.
+     * @throws IOException thrown if the file cannot be read.
+     */
+    private static long readNamesHash(
+        File file)
+    throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            raf.seek(16);
+            return raf.readLong();
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the method names.
+     *
+     * @param file the file with the method names.
+     * @return the method names by their indexes, empty if the file does not
+     *         exist.
+     * @throws IOException thrown if the file cannot be read.
+     */
+    private static Map<Integer, String> readMethodNames(
+        File file)
+    throws IOException
+    {
+        Map<Integer, String> names = new HashMap<Integer, String>();
+        if (!file.exists())
+        {
+            return names;
+        }
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new FileInputStream(file), "UTF-8"));
+        try
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                int tab = line.indexOf('\t');
+                if (tab > 0)
+                {
+                    names.put(Integer.valueOf(line.substring(0, tab)),
+                        line.substring(tab + 1));
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        return names;
+    }
+
+    /**
+     * <p>
+     * A decoded trace record.
+     * </p>
+     *
+     * @author Vlad Arkhipov
+     */
+    public static class Record
+    {
+        private final long sequence;
+
+        private final long time;
+
+        private final int durationMicros;
+
+        private final int threadId;
+
+        private final int methodId;
+
+        private final TransactionAttributeType attribute;
+
+        private final TraceEvent event;
+
+        /**
+         * Creates a new record.
+         *
+         * @param sequence the sequence number.
+         * @param time the time in milliseconds.
+         * @param durationMicros the duration in microseconds.
+         * @param threadId the thread identifier.
+         * @param methodId the method index.
+         * @param attribute the transaction attribute.
+         * @param event the event.
+         */
+        Record(
+            long sequence,
+            long time,
+            int durationMicros,
+            int threadId,
+            int methodId,
+            TransactionAttributeType attribute,
+            TraceEvent event)
+        {
+            this.sequence = sequence;
+            this.time = time;
+            this.durationMicros = durationMicros;
+            this.threadId = threadId;
+            this.methodId = methodId;
+            this.attribute = attribute;
+            this.event = event;
+        }
+
+        /**
+         * Returns the time of the event in milliseconds.
+         *
+         * @return the time.
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        /**
+         * Returns the duration of the event in microseconds.
+         *
+         * @return the duration.
+         */
+        public int getDurationMicros()
+        {
+            return durationMicros;
+        }
+
+        /**
+         * Returns the identifier of the thread.
+         *
+         * @return the thread identifier.
+         */
+        public int getThreadId()
+        {
+            return threadId;
+        }
+
+        /**
+         * Returns the index of the method.
+         *
+         * @return the method index.
+         */
+        public int getMethodId()
+        {
+            return methodId;
+        }
+
+        /**
+         * Returns the transaction attribute of the method.
+         *
+         * @return the transaction attribute.
+         */
+        public TransactionAttributeType getAttribute()
+        {
+            return attribute;
+        }
+
+        /**
+         * Returns the event.
+         *
+         * @return the event.
+         */
+        public TraceEvent getEvent()
+        {
+            return event;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.trace;
+
+/**
+ * <p>
+ * Transaction demarcation events recorded by {@link TraceRecorder}. The
+ * ordinals are stored in the trace file, so new events must be appended.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public enum TraceEvent
+{
+    /**
+     * The current transaction was suspended.
+     */
+    SUSPEND,
+
+    /**
+     * A new transaction was started.
+     */
+    BEGIN,
+
+    /**
+     * The transaction was committed.
+     */
+    COMMIT,
+
+    /**
+     * The transaction was rolled back, either explicitly or because the commit
+     * failed.
+     */
+    ROLLBACK,
+
+    /**
+     * The previous transaction was resumed.
+     */
+    RESUME,
+
+    /**
+     * The current transaction was marked for rollback.
+     */
+    SET_ROLLBACK_ONLY
+}
@@ -0,0 +1,258 @@
+/*
+ *    Copyright 2013 The Softus Team.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.softus.cdi.transaction.trace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+
+import java.nio.MappedByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.util.List;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Records transaction demarcation events into a fixed-size memory-mapped ring
+ * file. Recording an event does not allocate memory or take locks, and the
+ * records survive a crash of the process since they are written to the page
+ * cache directly.
+ * </p>
+ *
+ * <p>
+ * The file starts with a header of {@value #HEADER_SIZE} bytes followed by
+ * {@code capacity} records of {@value #RECORD_SIZE} bytes. A record contains
+ * the sequence number of the record plus one (zero marks an empty slot), the
+ * time in milliseconds, the duration in microseconds, the thread identifier,
+ * the method index, the transaction attribute ordinal and the
+ * {@link TraceEvent} ordinal. The method names are written to a separate text
+ * file with the {@value #METHODS_SUFFIX} suffix. Use {@link TraceDecoder} to
+ * read the trace.
+ * </p>
+ *
+ * <p>
+ * The header holds a hash of the method names, so the records of an earlier
+ * run are only kept if the methods have the same indexes. If the methods have
+ * changed, the ring is cleared before the new names are written, so an old
+ * record is never decoded with the name of a different method.
+ * </p>
+ *
+ * @author Vlad Arkhipov
+ */
+public class TraceRecorder
+{
+    /**
+     * The magic number at the start of a trace file.
+     */
+    static final int MAGIC = 0x54584E54;
+
+    /**
+     * The version of the file format.
+     */
+    static final int VERSION = 2;
+
+    /**
+     * The size of the header: magic, version, capacity, record size and the
+     * hash of the method names.
+     */
+    static final int HEADER_SIZE = 24;
+
+    /**
+     * The size of a record.
+     */
+    static final int RECORD_SIZE = 32;
+
+    /**
+     * The suffix of the file that contains the method names.
+     */
+    static final String METHODS_SUFFIX = ".methods";
+
+    private final File file;
+
+    private final int capacity;
+
+    private final MappedByteBuffer buffer;
+
+    private final AtomicLong sequence;
+
+    /**
+     * Opens a trace file, creating it if it does not exist, and writes the
+     * method names. The name at index {@code i} is the name of the method with
+     * index {@code i}. The records of an existing file are preserved until
+     * they are overwritten if the file has been written for the same method
+     * names, and discarded otherwise.
+     *
+     * @param file the trace file.
+     * @param capacity the number of records in the ring.
+     * @param methodNames the method names.
+     * @throws IOException thrown if the file cannot be mapped or the method
+     *         names cannot be written.
+     */
+    public TraceRecorder(
+        File file,
+        int capacity,
+        List<String> methodNames)
+    throws IOException
+    {
+        if (capacity <= 0
+            || capacity > (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE)
+        {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+
+        this.file = file;
+        this.capacity = capacity;
+
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        long namesHash = hash(methodNames);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            boolean compatible = raf.length() == size && raf.readInt() == MAGIC
+                && raf.readInt() == VERSION && raf.readInt() == capacity
+                && raf.readInt() == RECORD_SIZE && raf.readLong() == namesHash;
+            if (!compatible)
+            {
+                raf.setLength(0);
+                raf.setLength(size);
+            }
+
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                size);
+        }
+        finally
+        {
+            // The mapping remains valid after the channel is closed.
+            raf.close();
+        }
+
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, capacity);
+        buffer.putInt(12, RECORD_SIZE);
+        buffer.putLong(16, namesHash);
+
+        long last = 0;
+        for (int i = 0; i < capacity; i++)
+        {
+            last = Math.max(last, buffer.getLong(HEADER_SIZE + i * RECORD_SIZE));
+        }
+
+        sequence = new AtomicLong(last);
+        writeMethodNames(methodNames);
+    }
+
+    /**
+     * Records an event.
+     *
+     * @param methodId the index of the method.
+     * @param attribute the ordinal of the transaction attribute.
+     * @param event the event.
+     * @param durationNanos the duration of the event in nanoseconds.
+     */
+    public void record(
+        int methodId,
+        int attribute,
+        TraceEvent event,
+        long durationNanos)
+    {
+        long seq = sequence.getAndIncrement();
+        int position = HEADER_SIZE + (int) (seq % capacity) * RECORD_SIZE;
+        long micros = durationNanos / 1000;
+
+        // Invalidate the slot first, so a torn record is never decoded.
+        buffer.putLong(position, 0);
+        buffer.putLong(position + 8, System.currentTimeMillis());
+        buffer.putInt(position + 16, (int) Math.min(micros, Integer.MAX_VALUE));
+        buffer.putInt(position + 20, (int) Thread.currentThread().getId());
+        buffer.putInt(position + 24, methodId);
+        buffer.put(position + 28, (byte) attribute);
+        buffer.put(position + 29, (byte) event.ordinal());
+        buffer.putLong(position, seq + 1);
+    }
+
+    /**
+     * Writes the method names.
+     *
+     * @param names the method names.
+     * @throws IOException thrown if the file cannot be written.
+     */
+    private void writeMethodNames(
+        List<String> names)
+    throws IOException
+    {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(
+            file.getPath() + METHODS_SUFFIX), "UTF-8");
+        try
+        {
+            for (int i = 0; i < names.size(); i++)
+            {
+                writer.write(i + "\t" + names.get(i) + "\n");
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+
+    /**
+     * Computes the hash of the method names stored in the header.
+     *
+     * @param names the method names.
+     * @return the 64-bit FNV-1a hash of the names.
+     */
+    static long hash(
+        List<String> names)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (String name : names)
+        {
+            for (int i = 0; i < name.length(); i++)
+            {
+                hash = (hash ^ name.charAt(i)) * 0x100000001b3L;
+            }
+
+            hash = (hash ^ '\n') * 0x100000001b3L;
+        }
+
+        return hash;
+    }
+
+    /**
+     * Flushes the records to the disk.
+     */
+    public void flush()
+    {
+        buffer.force();
+    }
+
+    /**
+     * Returns the trace file.
+     *
+     * @return the trace file.
+     */
+    public File getFile()
+    {
+        return file;
+    }
+}